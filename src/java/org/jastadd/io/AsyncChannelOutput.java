@@ -0,0 +1,361 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes output to a channel from a separate writer thread.
+ *
+ * <p>The expanding thread fills pooled buffers and hands them over to the
+ * writer thread through a bounded queue. When the queue is full, the
+ * expanding thread blocks until the writer thread has caught up. Large
+ * pre-encoded byte arrays are handed over without being copied.
+ *
+ * <p>If writing to the channel fails, the writer thread discards the
+ * remaining output and the error is thrown as an IOException from the
+ * next buffer hand-over, or from {@link #flush()} or {@link #close()}.
+ *
+ * <p>The writer thread is started when output is first handed over, and it
+ * stops after it has been idle for the idle timeout. It is started again if
+ * more output is written, so an output that is never closed does not keep a
+ * thread blocked forever. The output should still be closed, preferably in
+ * a finally block, to flush the last buffer and close the channel.
+ *
+ * <p>An output stream can be used as target by wrapping it with
+ * {@link java.nio.channels.Channels#newChannel(java.io.OutputStream)}.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class AsyncChannelOutput extends ByteOutput {
+
+  /**
+   * Default size of pooled buffers
+   */
+  public static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Default maximum number of buffers waiting to be written
+   */
+  public static final int QUEUE_SIZE = 16;
+
+  /**
+   * Default time in milliseconds that the writer thread waits for output
+   * before it stops
+   */
+  public static final long IDLE_TIMEOUT = 1000;
+
+  /**
+   * Marks the end of the output
+   */
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+  private final WritableByteChannel channel;
+  private final int bufferSize;
+  private final BlockingQueue<ByteBuffer> queue;
+  private final long idleTimeout;
+  private final ConcurrentLinkedQueue<ByteBuffer> pool =
+      new ConcurrentLinkedQueue<ByteBuffer>();
+
+  /**
+   * Guards the written count and the writer thread state
+   */
+  private final Object lock = new Object();
+
+  /**
+   * The current writer thread, or <code>null</code> if the writer thread is
+   * not running
+   */
+  private Thread writer = null;
+
+  /**
+   * Number of buffers handed over to the writer thread
+   */
+  private long queued = 0;
+
+  /**
+   * Number of buffers processed by the writer thread
+   */
+  private long written = 0;
+
+  private volatile IOException error = null;
+
+  private ByteBuffer current = null;
+  private boolean closed = false;
+
+  /**
+   * @param channel The channel to write to
+   */
+  public AsyncChannelOutput(WritableByteChannel channel) {
+    this(channel, BUFFER_SIZE, QUEUE_SIZE);
+  }
+
+  /**
+   * @param channel The channel to write to
+   * @param bufferSize Size of the pooled buffers
+   * @param queueSize Maximum number of buffers waiting to be written before
+   * the expanding thread is blocked
+   */
+  public AsyncChannelOutput(WritableByteChannel channel, int bufferSize, int queueSize) {
+    this(channel, bufferSize, queueSize, IDLE_TIMEOUT);
+  }
+
+  /**
+   * @param channel The channel to write to
+   * @param bufferSize Size of the pooled buffers
+   * @param queueSize Maximum number of buffers waiting to be written before
+   * the expanding thread is blocked
+   * @param idleTimeout Time in milliseconds that the writer thread waits for
+   * output before it stops
+   */
+  public AsyncChannelOutput(WritableByteChannel channel, int bufferSize,
+      int queueSize, long idleTimeout) {
+    this.channel = channel;
+    this.bufferSize = bufferSize;
+    this.queue = new ArrayBlockingQueue<ByteBuffer>(queueSize);
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Start the writer thread if it is not running.
+   */
+  private void startWriter() {
+    synchronized (lock) {
+      if (writer == null) {
+        writer = new Thread("template output writer") {
+          @Override
+          public void run() {
+            writeLoop();
+          }
+        };
+        writer.setDaemon(true);
+        writer.start();
+      }
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      while (true) {
+        ByteBuffer buf;
+        try {
+          buf = queue.poll(idleTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          error = new InterruptedIOException("writer thread interrupted");
+          return;
+        }
+        if (buf == null) {
+          synchronized (lock) {
+            // Output handed over after this check starts a new writer thread.
+            if (queue.isEmpty()) {
+              writer = null;
+              lock.notifyAll();
+              return;
+            }
+          }
+          continue;
+        }
+        if (buf == END) {
+          return;
+        }
+        writeBuffer(buf);
+      }
+    } finally {
+      synchronized (lock) {
+        if (writer == Thread.currentThread()) {
+          writer = null;
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a buffer to the channel, unless an earlier write failed.
+   */
+  private void writeBuffer(ByteBuffer buf) {
+    if (error == null) {
+      try {
+        while (buf.hasRemaining()) {
+          channel.write(buf);
+        }
+      } catch (IOException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        error = new IOException(e);
+      }
+    }
+    if (!buf.isReadOnly()) {
+      buf.clear();
+      pool.offer(buf);
+    }
+    synchronized (lock) {
+      written += 1;
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    if (bytes.length == 0) {
+      return;
+    }
+    ByteBuffer buf = buffer();
+    if (bytes.length <= buf.remaining()) {
+      buf.put(bytes);
+    } else if (bytes.length <= bufferSize / 2) {
+      overflow(buf).put(bytes);
+    } else {
+      handOver();
+      enqueue(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+    }
+  }
+
+  @Override
+  protected ByteBuffer buffer() throws IOException {
+    if (current == null) {
+      checkError();
+      current = pool.poll();
+      if (current == null) {
+        current = ByteBuffer.allocate(bufferSize);
+      }
+    }
+    return current;
+  }
+
+  @Override
+  protected ByteBuffer overflow(ByteBuffer buf) throws IOException {
+    handOver();
+    return buffer();
+  }
+
+  /**
+   * Hand the current buffer over to the writer thread.
+   * @throws IOException
+   */
+  private void handOver() throws IOException {
+    if (current != null && current.position() > 0) {
+      current.flip();
+      ByteBuffer buf = current;
+      current = null;
+      enqueue(buf);
+    }
+  }
+
+  private void enqueue(ByteBuffer buf) throws IOException {
+    checkError();
+    if (closed) {
+      throw new IOException("output is closed");
+    }
+    put(buf);
+    queued += 1;
+  }
+
+  /**
+   * Add a buffer to the queue, blocking while the queue is full, and start
+   * the writer thread if it has stopped.
+   * @throws IOException if the writer thread has failed
+   */
+  private void put(ByteBuffer buf) throws IOException {
+    try {
+      while (!queue.offer(buf, 100, TimeUnit.MILLISECONDS)) {
+        checkError();
+        startWriter();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("interrupted while waiting for writer thread");
+    }
+    startWriter();
+  }
+
+  private void checkError() throws IOException {
+    IOException e = error;
+    if (e != null) {
+      throw new IOException("failed to write template output", e);
+    }
+  }
+
+  /**
+   * Waits until all output has been written to the channel.
+   */
+  @Override
+  public void flush() throws IOException {
+    handOver();
+    synchronized (lock) {
+      while (written < queued && writer != null) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("interrupted while waiting for writer thread");
+        }
+      }
+    }
+    checkError();
+  }
+
+  /**
+   * Writes all output, stops the writer thread, and closes the channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      closed = true;
+      try {
+        Thread thread;
+        synchronized (lock) {
+          thread = writer;
+          if (thread != null) {
+            // The queue is empty after flushing.
+            queue.offer(END);
+          }
+        }
+        if (thread != null) {
+          thread.join();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("interrupted while waiting for writer thread");
+      } finally {
+        channel.close();
+      }
+    }
+  }
+}
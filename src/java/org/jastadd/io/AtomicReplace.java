@@ -0,0 +1,121 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Replaces files by moving a temporary file into place.
+ *
+ * <p>Temporary files are created with the default permissions of new files,
+ * so that the umask applies to them, rather than the owner-only permissions
+ * of {@link Files#createTempFile}. A replaced file keeps its permissions.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+final class AtomicReplace {
+
+  private AtomicReplace() {
+  }
+
+  /**
+   * Create a new empty temporary file with default permissions.
+   * @param dir The directory to create the file in
+   * @param prefix File name prefix
+   * @return The path of the new file
+   * @throws IOException
+   */
+  static Path createTempFile(Path dir, String prefix) throws IOException {
+    while (true) {
+      long n = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+      Path temp = dir.resolve(prefix + n + ".tmp");
+      try {
+        return Files.createFile(temp);
+      } catch (FileAlreadyExistsException e) {
+        // Try another name.
+      }
+    }
+  }
+
+  /**
+   * Move a temporary file to the target path, atomically if the file system
+   * supports it. If the target file exists, its permissions are copied to the
+   * temporary file first.
+   * @param temp The temporary file
+   * @param target The file to replace
+   * @throws IOException
+   */
+  static void replace(Path temp, Path target) throws IOException {
+    if (Files.exists(target)) {
+      copyPermissions(target, temp);
+    }
+    try {
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      // The temporary file is on a different file system.
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Give a file the default permissions of new files in a directory.
+   * @param file
+   * @param dir
+   * @throws IOException
+   */
+  static void setDefaultPermissions(Path file, Path dir) throws IOException {
+    Path probe = createTempFile(dir, "tinytemplate");
+    try {
+      copyPermissions(probe, file);
+    } finally {
+      Files.deleteIfExists(probe);
+    }
+  }
+
+  private static void copyPermissions(Path from, Path to) throws IOException {
+    Set<PosixFilePermission> permissions;
+    try {
+      permissions = Files.getPosixFilePermissions(from);
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX file system.
+      return;
+    }
+    Files.setPosixFilePermissions(to, permissions);
+  }
+}
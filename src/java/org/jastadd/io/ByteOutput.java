@@ -0,0 +1,152 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A UTF-8 byte sink for template expansion.
+ *
+ * <p>Static text is written as pre-encoded byte arrays, while dynamic text is
+ * encoded into the output buffer by a reusable encoder.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public abstract class ByteOutput implements Closeable, Flushable {
+
+  private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+  /**
+   * Write pre-encoded bytes. The array is not modified, and must not be
+   * modified by the caller after this call since it may be retained until the
+   * output is flushed.
+   * @param bytes
+   * @throws IOException
+   */
+  public abstract void write(byte[] bytes) throws IOException;
+
+  /**
+   * Encode and write a character sequence.
+   * @param chars
+   * @throws IOException
+   */
+  public void write(CharSequence chars) throws IOException {
+    write(chars, 0, chars.length());
+  }
+
+  /**
+   * Encode and write part of a character sequence.
+   * @param chars
+   * @param start Index of the first character to write
+   * @param end Index after the last character to write
+   * @throws IOException
+   */
+  public void write(CharSequence chars, int start, int end) throws IOException {
+    if (start == end) {
+      return;
+    }
+    CharBuffer in = CharBuffer.wrap(chars, start, end);
+    ByteBuffer out = buffer();
+    encoder.reset();
+    while (true) {
+      CoderResult result = encoder.encode(in, out, true);
+      if (result.isOverflow()) {
+        out = overflow(out);
+      } else {
+        break;
+      }
+    }
+    while (encoder.flush(out).isOverflow()) {
+      out = overflow(out);
+    }
+  }
+
+  /**
+   * @return <code>true</code> if this output can transfer file regions
+   * more efficiently than writing their content. Templates loaded from a
+   * file only transfer static regions to outputs that support transfers.
+   */
+  public boolean isTransferSupported() {
+    return false;
+  }
+
+  /**
+   * Write a region of a file. The default implementation reads the region
+   * into the output buffer.
+   * @param source The file to read from
+   * @param position Start of the region
+   * @param count Size of the region
+   * @throws IOException
+   */
+  public void transfer(FileChannel source, long position, long count) throws IOException {
+    ByteBuffer out = buffer();
+    long end = position + count;
+    while (position < end) {
+      if (!out.hasRemaining()) {
+        out = overflow(out);
+      }
+      int limit = out.limit();
+      if (out.remaining() > end - position) {
+        out.limit(out.position() + (int) (end - position));
+      }
+      int n = source.read(out, position);
+      out.limit(limit);
+      if (n < 0) {
+        throw new IOException("unexpected end of file");
+      }
+      position += n;
+    }
+  }
+
+  /**
+   * @return The buffer that encoded characters are written to
+   * @throws IOException
+   */
+  protected abstract ByteBuffer buffer() throws IOException;
+
+  /**
+   * Called when the encoding buffer is full.
+   * @param buffer The full buffer
+   * @return A buffer with free space
+   * @throws IOException
+   */
+  protected abstract ByteBuffer overflow(ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,274 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects output as a sequence of byte buffer segments and writes them to a
+ * channel with a gathering write.
+ *
+ * <p>Pre-encoded static text is not copied: the shared byte arrays are wrapped
+ * as read-only segments. Dynamic text is encoded into pooled buffers. Static
+ * arrays shorter than the copy threshold are copied into the current pooled
+ * buffer instead, since a separate segment costs more than the copy.
+ *
+ * <p>Only blocking channels are supported. A channel output can be reset to
+ * write to another channel, which keeps the pooled buffers for reuse.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class ChannelOutput extends ByteOutput {
+
+  /**
+   * Default size of pooled buffers
+   */
+  public static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Default copy threshold for static byte arrays
+   */
+  public static final int COPY_THRESHOLD = 16;
+
+  /**
+   * Maximum number of pending segments before the output is flushed
+   */
+  private static final int MAX_SEGMENTS = 1024;
+
+  private WritableByteChannel channel;
+  private final int bufferSize;
+  private final int copyThreshold;
+
+  /**
+   * Pending output segments
+   */
+  private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+  /**
+   * Pooled buffers that are part of the pending output
+   */
+  private final List<ByteBuffer> used = new ArrayList<ByteBuffer>();
+
+  /**
+   * Free pooled buffers
+   */
+  private final List<ByteBuffer> pool = new ArrayList<ByteBuffer>();
+
+  /**
+   * The pooled buffer that dynamic output is currently written to
+   */
+  private ByteBuffer current = null;
+
+  /**
+   * Start of the current segment in the current buffer
+   */
+  private int segmentStart = 0;
+
+  /**
+   * @param channel The channel to write to
+   * @throws IllegalArgumentException if the channel is in non-blocking mode
+   */
+  public ChannelOutput(WritableByteChannel channel) {
+    this(channel, BUFFER_SIZE, COPY_THRESHOLD);
+  }
+
+  /**
+   * @param channel The channel to write to
+   * @param bufferSize Size of the pooled buffers
+   * @param copyThreshold Static arrays shorter than this are copied
+   * @throws IllegalArgumentException if the channel is in non-blocking mode
+   */
+  public ChannelOutput(WritableByteChannel channel, int bufferSize, int copyThreshold) {
+    checkBlocking(channel);
+    this.channel = channel;
+    this.bufferSize = bufferSize;
+    this.copyThreshold = copyThreshold;
+  }
+
+  /**
+   * Discard any pending output and start writing to another channel. The
+   * pooled buffers are kept.
+   * @param channel The channel to write to
+   * @throws IllegalArgumentException if the channel is in non-blocking mode
+   */
+  public void reset(WritableByteChannel channel) {
+    checkBlocking(channel);
+    this.channel = channel;
+    segments.clear();
+    pool.addAll(used);
+    used.clear();
+    current = null;
+    segmentStart = 0;
+  }
+
+  /**
+   * A non-blocking channel may accept no bytes at all, which would make the
+   * write loop spin.
+   */
+  private static void checkBlocking(WritableByteChannel channel) {
+    if (channel instanceof SelectableChannel
+        && !((SelectableChannel) channel).isBlocking()) {
+      throw new IllegalArgumentException("non-blocking channels are not supported");
+    }
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    if (bytes.length == 0) {
+      return;
+    }
+    if (bytes.length < copyThreshold && bytes.length <= bufferSize) {
+      ByteBuffer buf = buffer();
+      if (buf.remaining() < bytes.length) {
+        buf = overflow(buf);
+      }
+      buf.put(bytes);
+    } else {
+      endSegment();
+      addSegment(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+    }
+  }
+
+  @Override
+  public boolean isTransferSupported() {
+    return true;
+  }
+
+  /**
+   * Transfers the region directly from the source file to the channel,
+   * after writing the pending output.
+   */
+  @Override
+  public void transfer(FileChannel source, long position, long count) throws IOException {
+    flush();
+    long end = position + count;
+    while (position < end) {
+      long n = source.transferTo(position, end - position, channel);
+      if (n <= 0) {
+        throw new IOException("could not transfer file region");
+      }
+      position += n;
+    }
+  }
+
+  @Override
+  protected ByteBuffer buffer() throws IOException {
+    if (current == null) {
+      current = pool.isEmpty() ? ByteBuffer.allocate(bufferSize) : pool.remove(pool.size()-1);
+      current.clear();
+      used.add(current);
+      segmentStart = 0;
+    }
+    return current;
+  }
+
+  @Override
+  protected ByteBuffer overflow(ByteBuffer buf) throws IOException {
+    endSegment();
+    current = null;
+    return buffer();
+  }
+
+  /**
+   * Add the unfinished part of the current buffer as a segment.
+   * @throws IOException
+   */
+  private void endSegment() throws IOException {
+    if (current != null && current.position() > segmentStart) {
+      ByteBuffer segment = current.duplicate();
+      segment.position(segmentStart);
+      segment.limit(current.position());
+      segmentStart = current.position();
+      addSegment(segment);
+    }
+  }
+
+  private void addSegment(ByteBuffer segment) throws IOException {
+    segments.add(segment);
+    if (segments.size() >= MAX_SEGMENTS) {
+      writeSegments();
+    }
+  }
+
+  /**
+   * Write all pending segments to the channel and recycle the pooled buffers.
+   * @throws IOException
+   */
+  private void writeSegments() throws IOException {
+    ByteBuffer[] srcs = segments.toArray(new ByteBuffer[segments.size()]);
+    if (channel instanceof GatheringByteChannel) {
+      GatheringByteChannel gathering = (GatheringByteChannel) channel;
+      int offset = 0;
+      while (offset < srcs.length) {
+        gathering.write(srcs, offset, srcs.length - offset);
+        while (offset < srcs.length && !srcs[offset].hasRemaining()) {
+          offset += 1;
+        }
+      }
+    } else {
+      for (ByteBuffer src: srcs) {
+        while (src.hasRemaining()) {
+          channel.write(src);
+        }
+      }
+    }
+    segments.clear();
+    for (ByteBuffer buf: used) {
+      if (buf != current) {
+        pool.add(buf);
+      }
+    }
+    used.clear();
+    if (current != null) {
+      current.clear();
+      used.add(current);
+      segmentStart = 0;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    endSegment();
+    writeSegments();
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+    channel.close();
+  }
+}
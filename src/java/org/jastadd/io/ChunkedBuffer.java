@@ -0,0 +1,273 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A character buffer built from a list of fixed-size chunks.
+ *
+ * <p>Unlike a StringBuilder, the buffer never copies its content when it
+ * grows, and it does not need a contiguous array for large content. Another
+ * chunked buffer can be linked into this buffer without copying its
+ * characters with {@link #append(ChunkedBuffer)}. Template expansion copies
+ * each expanded line into the buffer; included templates and joins are not
+ * linked. Chunks are taken from a shared pool and should be returned to
+ * the pool by calling {@link #release()} when the buffer is no longer needed.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class ChunkedBuffer implements Appendable, CharSequence {
+
+  /**
+   * Number of characters in a chunk
+   */
+  public static final int CHUNK_SIZE = 4096;
+
+  /**
+   * Maximum number of pooled chunks
+   */
+  private static final int POOL_SIZE = 256;
+
+  private static final ConcurrentLinkedQueue<char[]> pool =
+      new ConcurrentLinkedQueue<char[]>();
+  private static final AtomicInteger pooled = new AtomicInteger();
+
+  private static class Chunk {
+    final char[] data;
+    int length = 0;
+
+    Chunk(char[] data) {
+      this.data = data;
+    }
+  }
+
+  private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+  /**
+   * The chunk that is currently appended to
+   */
+  private Chunk current = null;
+
+  private int length = 0;
+
+  /**
+   * Index of the chunk last read by charAt
+   */
+  private int lastChunk = 0;
+
+  /**
+   * Buffer offset of the first character in the last read chunk
+   */
+  private int lastStart = 0;
+
+  private static char[] allocate() {
+    char[] data = pool.poll();
+    if (data != null) {
+      pooled.decrementAndGet();
+      return data;
+    }
+    return new char[CHUNK_SIZE];
+  }
+
+  private Chunk current() {
+    if (current == null || current.length == current.data.length) {
+      current = new Chunk(allocate());
+      chunks.add(current);
+    }
+    return current;
+  }
+
+  @Override
+  public ChunkedBuffer append(CharSequence csq) {
+    if (csq == null) {
+      return append("null");
+    }
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public ChunkedBuffer append(CharSequence csq, int start, int end) {
+    if (csq == null) {
+      return append("null", start, end);
+    }
+    while (start < end) {
+      Chunk chunk = current();
+      int free = chunk.data.length - chunk.length;
+      int n = Math.min(end - start, free);
+      boolean seal = false;
+      if (n == free && n < end - start
+          && Character.isHighSurrogate(csq.charAt(start + n - 1))) {
+        // Surrogate pairs are not split between chunks.
+        n -= 1;
+        seal = true;
+      }
+      if (csq instanceof String) {
+        ((String) csq).getChars(start, start + n, chunk.data, chunk.length);
+      } else if (csq instanceof StringBuilder) {
+        ((StringBuilder) csq).getChars(start, start + n, chunk.data, chunk.length);
+      } else {
+        for (int i = 0; i < n; ++i) {
+          chunk.data[chunk.length + i] = csq.charAt(start + i);
+        }
+      }
+      chunk.length += n;
+      length += n;
+      start += n;
+      if (seal) {
+        current = null;
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public ChunkedBuffer append(char c) {
+    Chunk chunk = current();
+    if (Character.isHighSurrogate(c) && chunk.length == chunk.data.length - 1) {
+      // Surrogate pairs are not split between chunks.
+      current = null;
+      chunk = current();
+    }
+    chunk.data[chunk.length++] = c;
+    length += 1;
+    return this;
+  }
+
+  /**
+   * Link the content of another buffer to the end of this buffer. The chunks
+   * of the other buffer are moved to this buffer, and the other buffer
+   * becomes empty.
+   * @param other
+   * @return this buffer
+   */
+  public ChunkedBuffer append(ChunkedBuffer other) {
+    if (other == this) {
+      throw new IllegalArgumentException("can not append a buffer to itself");
+    }
+    chunks.addAll(other.chunks);
+    length += other.length;
+    if (!other.chunks.isEmpty()) {
+      current = other.current;
+    }
+    other.chunks.clear();
+    other.current = null;
+    other.length = 0;
+    other.lastChunk = 0;
+    other.lastStart = 0;
+    return this;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException("index: " + index);
+    }
+    if (lastChunk >= chunks.size() || index < lastStart) {
+      lastChunk = 0;
+      lastStart = 0;
+    }
+    // Sequential reads resume the scan from the last read chunk.
+    while (true) {
+      Chunk chunk = chunks.get(lastChunk);
+      if (index < lastStart + chunk.length) {
+        return chunk.data[index - lastStart];
+      }
+      lastStart += chunk.length;
+      lastChunk += 1;
+    }
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().substring(start, end);
+  }
+
+  /**
+   * Write the buffer content to a writer, in chunk order.
+   * @param out
+   * @throws IOException
+   */
+  public void writeTo(Writer out) throws IOException {
+    for (Chunk chunk: chunks) {
+      out.write(chunk.data, 0, chunk.length);
+    }
+  }
+
+  /**
+   * Write the buffer content to a byte output, in chunk order.
+   * @param out
+   * @throws IOException
+   */
+  public void writeTo(ByteOutput out) throws IOException {
+    for (Chunk chunk: chunks) {
+      out.write(CharBuffer.wrap(chunk.data, 0, chunk.length));
+    }
+  }
+
+  /**
+   * Return the chunks of this buffer to the chunk pool. The buffer is
+   * empty after this call.
+   */
+  public void release() {
+    for (Chunk chunk: chunks) {
+      if (pooled.incrementAndGet() <= POOL_SIZE) {
+        pool.offer(chunk.data);
+      } else {
+        pooled.decrementAndGet();
+      }
+    }
+    chunks.clear();
+    current = null;
+    length = 0;
+    lastChunk = 0;
+    lastStart = 0;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(length);
+    for (Chunk chunk: chunks) {
+      sb.append(chunk.data, 0, chunk.length);
+    }
+    return sb.toString();
+  }
+}
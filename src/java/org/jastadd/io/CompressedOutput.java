@@ -0,0 +1,193 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes UTF-8 encoded output to an output stream, compressed on the fly
+ * with a reusable deflater.
+ *
+ * <p>The output is either a zlib stream or, in gzip mode, a gzip member.
+ * Calling {@link #finish()} completes the current stream and resets the
+ * deflater, so that the output can be reused for the next stream. Multiple
+ * gzip members written to the same stream form a valid gzip file.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class CompressedOutput extends StreamOutput {
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  private final Deflater deflater;
+  private final boolean gzip;
+  private final byte[] compressed = new byte[BUFFER_SIZE];
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * Set when the stream header for the current stream has been written
+   */
+  private boolean started = false;
+
+  /**
+   * Set when at least one stream has been completed
+   */
+  private boolean finished = false;
+
+  /**
+   * @param out The output stream to write compressed output to
+   * @param gzip <code>true</code> if the output should be in gzip format,
+   * <code>false</code> for zlib format
+   */
+  public CompressedOutput(OutputStream out, boolean gzip) {
+    this(out, Deflater.DEFAULT_COMPRESSION, gzip);
+  }
+
+  /**
+   * @param out The output stream to write compressed output to
+   * @param level Compression level, 0-9
+   * @param gzip <code>true</code> if the output should be in gzip format,
+   * <code>false</code> for zlib format
+   */
+  public CompressedOutput(OutputStream out, int level, boolean gzip) {
+    super(out);
+    this.deflater = new Deflater(level, gzip);
+    this.gzip = gzip;
+  }
+
+  @Override
+  protected void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    start();
+    if (gzip) {
+      crc.update(bytes, offset, length);
+    }
+    deflater.setInput(bytes, offset, length);
+    while (!deflater.needsInput()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+  }
+
+  private void start() throws IOException {
+    if (!started) {
+      started = true;
+      if (gzip) {
+        byte[] header = {
+          (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8),
+          Deflater.DEFLATED, 0,
+          0, 0, 0, 0,
+          0, 0,
+        };
+        super.writeBytes(header, 0, header.length);
+      }
+    }
+  }
+
+  /**
+   * Run the deflater once and write the compressed bytes.
+   * @return Number of compressed bytes written
+   */
+  private int deflate(int flush) throws IOException {
+    int n = deflater.deflate(compressed, 0, compressed.length, flush);
+    if (n > 0) {
+      super.writeBytes(compressed, 0, n);
+    }
+    return n;
+  }
+
+  /**
+   * Complete the current compressed stream. Output written after this call
+   * starts a new stream.
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    drain();
+    start();
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+    if (gzip) {
+      byte[] trailer = new byte[8];
+      writeInt(trailer, 0, (int) crc.getValue());
+      writeInt(trailer, 4, (int) deflater.getBytesRead());
+      super.writeBytes(trailer, 0, trailer.length);
+    }
+    deflater.reset();
+    crc.reset();
+    started = false;
+    finished = true;
+  }
+
+  private static void writeInt(byte[] buf, int offset, int value) {
+    buf[offset] = (byte) value;
+    buf[offset + 1] = (byte) (value >> 8);
+    buf[offset + 2] = (byte) (value >> 16);
+    buf[offset + 3] = (byte) (value >> 24);
+  }
+
+  /**
+   * Compresses all pending output with a sync flush, so that everything
+   * written so far can be decompressed, before flushing the underlying
+   * stream.
+   */
+  @Override
+  public void flush() throws IOException {
+    drain();
+    if (started) {
+      while (deflate(Deflater.SYNC_FLUSH) == compressed.length) {
+        // The output buffer was filled, there may be more output.
+      }
+    }
+    super.flush();
+  }
+
+  /**
+   * Finish the current stream, if any output was written since the last
+   * stream was completed, and close the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      drain();
+      if (started || !finished) {
+        finish();
+      }
+      super.close();
+    } finally {
+      deflater.end();
+    }
+  }
+}
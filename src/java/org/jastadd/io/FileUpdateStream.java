@@ -0,0 +1,269 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * An output stream that replaces a file only if the new content differs
+ * from the existing content.
+ *
+ * <p>The output is compared to the existing file while it is written.
+ * While the output matches the existing file nothing is written to disk.
+ * At the first difference, a temporary file is created next to the target
+ * file, the matching prefix is copied into it and the rest of the output is
+ * written to it. When the stream is closed the temporary file atomically
+ * replaces the target file, if the content differed. A replaced file keeps
+ * its permissions, and a new file gets the default permissions of new files.
+ *
+ * <p>Alternatively, the output can be compared to a previously stored
+ * SHA-256 digest of the file content. In that case the existing file is not
+ * read, but the output is always written to a temporary file.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class FileUpdateStream extends OutputStream {
+
+  private static final int COMPARE_SIZE = 8192;
+
+  private final Path target;
+  private final byte[] expectedDigest;
+  private final MessageDigest digest;
+
+  /**
+   * Reads the existing file while the output matches it
+   */
+  private InputStream existing = null;
+  private final byte[] compare = new byte[COMPARE_SIZE];
+
+  /**
+   * Number of bytes matching the existing file
+   */
+  private long matched = 0;
+
+  private Path temp = null;
+  private OutputStream tempOut = null;
+
+  private boolean closed = false;
+  private boolean changed = false;
+  private byte[] digestValue = null;
+
+  /**
+   * Compare the output to the content of the target file.
+   * @param target
+   * @throws IOException
+   */
+  public FileUpdateStream(File target) throws IOException {
+    this(target, null);
+  }
+
+  /**
+   * Compare the output to a stored digest of the target file.
+   * @param target
+   * @param expectedDigest SHA-256 digest of the current target file
+   * content, or <code>null</code> to compare with the file content instead
+   * @throws IOException
+   */
+  public FileUpdateStream(File target, byte[] expectedDigest) throws IOException {
+    this.target = target.toPath();
+    this.expectedDigest = expectedDigest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 digest not available", e);
+    }
+    if (expectedDigest == null && target.isFile()) {
+      existing = new BufferedInputStream(Files.newInputStream(this.target));
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("stream is closed");
+    }
+    digest.update(b, off, len);
+    if (tempOut == null) {
+      if (existing != null) {
+        int n = match(b, off, len);
+        matched += n;
+        if (n == len) {
+          return;
+        }
+        off += n;
+        len -= n;
+      }
+      diverge();
+    }
+    tempOut.write(b, off, len);
+  }
+
+  /**
+   * @return The number of leading bytes that match the existing file
+   */
+  private int match(byte[] b, int off, int len) throws IOException {
+    int count = 0;
+    while (count < len) {
+      int n = existing.read(compare, 0, Math.min(len - count, compare.length));
+      if (n == -1) {
+        return count;
+      }
+      for (int i = 0; i < n; ++i) {
+        if (compare[i] != b[off + count + i]) {
+          return count + i;
+        }
+      }
+      count += n;
+    }
+    return count;
+  }
+
+  /**
+   * Start writing to a temporary file, beginning with the part of the
+   * existing file that matched the output.
+   */
+  private void diverge() throws IOException {
+    if (existing != null) {
+      existing.close();
+      existing = null;
+    }
+    Path dir = target.toAbsolutePath().getParent();
+    temp = AtomicReplace.createTempFile(dir, target.getFileName().toString());
+    tempOut = new BufferedOutputStream(Files.newOutputStream(temp));
+    if (matched > 0) {
+      InputStream in = Files.newInputStream(target);
+      try {
+        long remaining = matched;
+        while (remaining > 0) {
+          int n = in.read(compare, 0, (int) Math.min(remaining, compare.length));
+          if (n == -1) {
+            throw new IOException("target file changed while writing");
+          }
+          tempOut.write(compare, 0, n);
+          remaining -= n;
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Discard the output. The target file is not modified.
+   * @throws IOException
+   */
+  public void discard() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (existing != null) {
+        existing.close();
+      }
+      if (tempOut != null) {
+        tempOut.close();
+      }
+    } finally {
+      if (temp != null) {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /**
+   * Replace the target file if the output differs from the previous
+   * content.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    digestValue = digest.digest();
+    if (expectedDigest != null) {
+      changed = !Files.isRegularFile(target) || !Arrays.equals(expectedDigest, digestValue);
+    } else if (tempOut == null && existing != null) {
+      // The output is a prefix of the existing file.
+      changed = existing.read() != -1;
+    } else {
+      changed = true;
+    }
+    if (!changed) {
+      discard();
+      return;
+    }
+    if (tempOut == null) {
+      diverge();
+    }
+    closed = true;
+    boolean moved = false;
+    try {
+      tempOut.close();
+      AtomicReplace.replace(temp, target);
+      moved = true;
+    } finally {
+      if (!moved) {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the target file was replaced. Only valid
+   * after the stream has been closed.
+   */
+  public boolean isChanged() {
+    return changed;
+  }
+
+  /**
+   * @return SHA-256 digest of the written content. Only valid after the
+   * stream has been closed.
+   */
+  public byte[] getDigest() {
+    return digestValue == null ? null : digestValue.clone();
+  }
+}
@@ -64,6 +64,11 @@ public class LookaheadReader extends FilterReader {
 
   private boolean streamAtEOF = false;
 
+  /**
+   * Number of UTF-8 encoded bytes that have been consumed
+   */
+  private long bytePosition = 0;
+
   /**
    * Create a new lookahead reader
    * @param in
@@ -91,15 +96,42 @@ public class LookaheadReader extends FilterReader {
    * @param num Number of characters to skip forward
    */
   public void consume(int num) {
+    countBytes(num);
     pos += num;
   }
 
   @Override
   public long skip(long num) {
+    countBytes((int) num);
     pos += num;
     return num;
   }
 
+  /**
+   * @return The number of bytes consumed so far, assuming that the input
+   * was UTF-8 encoded
+   */
+  public long bytePosition() {
+    return bytePosition;
+  }
+
+  private void countBytes(int num) {
+    for (int i = pos; i < pos + num; ++i) {
+      bytePosition += i < length ? utf8Length(buffer[i]) : 1;
+    }
+  }
+
+  private static int utf8Length(char c) {
+    if (c < 0x80) {
+      return 1;
+    } else if (c < 0x800 || Character.isSurrogate(c)) {
+      // Each half of a surrogate pair contributes two bytes.
+      return 2;
+    } else {
+      return 3;
+    }
+  }
+
   /**
    * @return The next character, or -1 if the next character
    * is past the end of the input stream
@@ -135,10 +167,12 @@ public class LookaheadReader extends FilterReader {
    */
   public int pop() throws IOException {
     refill();
-    if (pos < length)
+    if (pos < length) {
+      bytePosition += utf8Length(buffer[pos]);
       return buffer[pos++];
-    else
+    } else {
       return -1;
+    }
   }
 
   /**
@@ -0,0 +1,281 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A character buffer with a memory budget.
+ *
+ * <p>Content is kept in memory until it exceeds the threshold. After that
+ * the buffer spills to a UTF-8 encoded temporary file and all further content
+ * is written directly to the file, so that heap usage stays bounded regardless
+ * of the size of the content.
+ *
+ * <p>The content can be read back with {@link #openReader()}, or moved into
+ * place with {@link #moveTo(File)}. The temporary file is only readable by
+ * the owner, and is deleted when the buffer is closed unless it has been moved.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class SpillBuffer implements Appendable, Closeable {
+
+  /**
+   * Default memory threshold, in characters
+   */
+  public static final int THRESHOLD = 1 << 20;
+
+  private final long threshold;
+  private final File directory;
+
+  private ChunkedBuffer memory = new ChunkedBuffer();
+  private Path file = null;
+  private Writer writer = null;
+  private long length = 0;
+  private boolean closed = false;
+
+  /**
+   * Scratch array used to write StringBuilder content to the spill file
+   */
+  private char[] scratch = null;
+
+  /**
+   * Create a spill buffer with the default threshold that spills to the
+   * default temporary file directory.
+   */
+  public SpillBuffer() {
+    this(THRESHOLD, null);
+  }
+
+  /**
+   * @param threshold Maximum number of characters kept in memory
+   * @param directory Directory for the temporary file, or <code>null</code>
+   * to use the default temporary file directory
+   */
+  public SpillBuffer(long threshold, File directory) {
+    this.threshold = threshold;
+    this.directory = directory;
+  }
+
+  @Override
+  public SpillBuffer append(CharSequence csq) throws IOException {
+    if (csq == null) {
+      return append("null");
+    }
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public SpillBuffer append(CharSequence csq, int start, int end) throws IOException {
+    if (csq == null) {
+      return append("null", start, end);
+    }
+    ensureOpen();
+    length += end - start;
+    if (writer == null && length > threshold) {
+      spill();
+    }
+    if (writer == null) {
+      memory.append(csq, start, end);
+    } else if (csq instanceof String) {
+      writer.write((String) csq, start, end - start);
+    } else if (csq instanceof StringBuilder) {
+      if (scratch == null) {
+        scratch = new char[ChunkedBuffer.CHUNK_SIZE];
+      }
+      StringBuilder sb = (StringBuilder) csq;
+      while (start < end) {
+        int n = Math.min(end - start, scratch.length);
+        sb.getChars(start, start + n, scratch, 0);
+        writer.write(scratch, 0, n);
+        start += n;
+      }
+    } else {
+      writer.append(csq, start, end);
+    }
+    return this;
+  }
+
+  @Override
+  public SpillBuffer append(char c) throws IOException {
+    ensureOpen();
+    length += 1;
+    if (writer == null && length > threshold) {
+      spill();
+    }
+    if (writer == null) {
+      memory.append(c);
+    } else {
+      writer.write(c);
+    }
+    return this;
+  }
+
+  /**
+   * Move the in-memory content to a new temporary file.
+   * @throws IOException
+   */
+  private void spill() throws IOException {
+    file = createTempFile(directory);
+    writer = new BufferedWriter(new OutputStreamWriter(
+        Files.newOutputStream(file), StandardCharsets.UTF_8));
+    memory.writeTo(writer);
+    memory.release();
+  }
+
+  private static Path createTempFile(File directory) throws IOException {
+    if (directory == null) {
+      return Files.createTempFile("tinytemplate", ".tmp");
+    } else {
+      return Files.createTempFile(directory.toPath(), "tinytemplate", ".tmp");
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("buffer is closed");
+    }
+  }
+
+  /**
+   * @return Number of characters in the buffer
+   */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * @return <code>true</code> if the content has been spilled to a
+   * temporary file
+   */
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  /**
+   * Open a reader for the current content of the buffer. The buffer can
+   * still be appended to while the reader is open, but the reader is not
+   * guaranteed to see content appended after it was opened.
+   * @return A reader for the buffer content
+   * @throws IOException
+   */
+  public Reader openReader() throws IOException {
+    ensureOpen();
+    if (writer == null) {
+      return new StringReader(memory.toString());
+    } else {
+      writer.flush();
+      return new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Move the buffer content to the target file. If the content was spilled,
+   * the temporary file is moved, otherwise the content is written to a
+   * temporary file next to the target first. The target file is replaced
+   * atomically if the file system supports it. A replaced file keeps its
+   * permissions, and a new file gets the default permissions. The buffer is
+   * closed after this call.
+   * @param target
+   * @throws IOException
+   */
+  public void moveTo(File target) throws IOException {
+    ensureOpen();
+    Path dest = target.toPath();
+    Path dir = dest.toAbsolutePath().getParent();
+    if (writer == null) {
+      file = AtomicReplace.createTempFile(dir, target.getName());
+      writer = new BufferedWriter(new OutputStreamWriter(
+          Files.newOutputStream(file), StandardCharsets.UTF_8));
+      memory.writeTo(writer);
+      memory.release();
+    } else if (!Files.exists(dest)) {
+      // The spill file was created with owner-only permissions.
+      AtomicReplace.setDefaultPermissions(file, dir);
+    }
+    writer.close();
+    writer = null;
+    AtomicReplace.replace(file, dest);
+    file = null;
+    close();
+  }
+
+  /**
+   * Release the in-memory content and delete the temporary file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    memory.release();
+    try {
+      if (writer != null) {
+        writer.close();
+        writer = null;
+      }
+    } finally {
+      if (file != null) {
+        Files.deleteIfExists(file);
+        file = null;
+      }
+    }
+  }
+
+  /**
+   * Return the buffer content. If the content has been spilled it is read
+   * back from the temporary file, so the whole content is loaded into memory.
+   */
+  @Override
+  public String toString() {
+    if (writer == null) {
+      return memory.toString();
+    }
+    try {
+      writer.flush();
+      return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new RuntimeException("I/O error while reading spill file '"
+          + file + "'", e);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes UTF-8 encoded output to an output stream through a reusable
+ * byte buffer.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class StreamOutput extends ByteOutput {
+
+  /**
+   * Default buffer size
+   */
+  public static final int BUFFER_SIZE = 8192;
+
+  private final OutputStream out;
+  private final ByteBuffer buffer;
+
+  /**
+   * @param out The output stream to write to
+   */
+  public StreamOutput(OutputStream out) {
+    this(out, BUFFER_SIZE);
+  }
+
+  /**
+   * @param out The output stream to write to
+   * @param bufferSize
+   */
+  public StreamOutput(OutputStream out, int bufferSize) {
+    this.out = out;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    if (bytes.length > buffer.remaining()) {
+      drain();
+      if (bytes.length > buffer.capacity() / 2) {
+        // Large arrays bypass the buffer.
+        writeBytes(bytes, 0, bytes.length);
+        return;
+      }
+    }
+    buffer.put(bytes);
+  }
+
+  @Override
+  protected ByteBuffer buffer() {
+    return buffer;
+  }
+
+  @Override
+  protected ByteBuffer overflow(ByteBuffer buf) throws IOException {
+    drain();
+    return buffer;
+  }
+
+  /**
+   * Write the buffered bytes to the underlying stream.
+   * @throws IOException
+   */
+  protected void drain() throws IOException {
+    if (buffer.position() > 0) {
+      writeBytes(buffer.array(), 0, buffer.position());
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Write bytes to the underlying stream.
+   * @param bytes
+   * @param offset
+   * @param length
+   * @throws IOException
+   */
+  protected void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    out.write(bytes, offset, length);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    drain();
+    out.close();
+  }
+}
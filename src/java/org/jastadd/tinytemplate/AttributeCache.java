@@ -0,0 +1,509 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of attribute accessors, indexed by context class and attribute
+ * name. Failed lookups are cached too.
+ *
+ * <p>The accessor for an attribute is found by trying these resolvers in
+ * order:
+ * <ol>
+ * <li>resolvers added with {@link #addResolver(AttributeResolver)}
+ * <li>attributes registered with {@link #registerAttribute(Class, String, AttributeAccessor)}
+ * <li>the generated attribute tables of the class and its superclasses,
+ * see {@link TemplateAttributes}
+ * <li>a {@link Map} entry with the attribute name as key
+ * <li>a public method with the attribute name and no parameters
+ * <li>a JavaBean getter, <code>getName()</code> or <code>isName()</code>
+ * <li>a public field with the attribute name
+ * </ol>
+ *
+ * <p>Map entries shadow methods such as <code>size</code> or
+ * <code>isEmpty</code>. The method is used only if the map has no entry for
+ * the attribute name.
+ *
+ * <p>Methods and fields are accessed through method handles, which avoid the
+ * argument array and access checks of reflective calls. Members that are not
+ * accessible to a public lookup are accessed reflectively.
+ *
+ * <p>Adding a resolver or registering an attribute starts a new epoch.
+ * Attribute sites discard accessors found in an earlier epoch.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class AttributeCache {
+
+  /**
+   * Cache used when no template engine is given
+   */
+  static final AttributeCache SHARED = new AttributeCache();
+
+  private static final MethodType ACCESSOR_TYPE =
+      MethodType.methodType(Object.class, Object.class);
+
+  /**
+   * An accessor that knows the attribute method it calls
+   */
+  private interface MethodBacked {
+    /**
+     * @return The attribute method, or <code>null</code>
+     */
+    Method method();
+  }
+
+  /**
+   * Invokes an attribute method, or reads a field, through a method handle
+   */
+  private static class MethodHandleAccessor implements AttributeAccessor, MethodBacked {
+    private final MethodHandle handle;
+    private final Method method;
+
+    /**
+     * @param handle
+     * @param method The invoked method, or <code>null</code> for a field
+     */
+    MethodHandleAccessor(MethodHandle handle, Method method) {
+      this.handle = handle;
+      this.method = method;
+    }
+
+    @Override
+    public Method method() {
+      return method;
+    }
+
+    @Override
+    public Object eval(Object target) throws Exception {
+      try {
+        return (Object) handle.invokeExact(target);
+      } catch (Throwable e) {
+        // Report exceptions from the attribute like reflective calls do.
+        throw new InvocationTargetException(e);
+      }
+    }
+  }
+
+  /**
+   * Invokes an attribute method reflectively
+   */
+  private static class MethodAccessor implements AttributeAccessor, MethodBacked {
+    private final Method method;
+
+    MethodAccessor(Method method) {
+      this.method = method;
+    }
+
+    @Override
+    public Method method() {
+      return method;
+    }
+
+    @Override
+    public Object eval(Object target) throws Exception {
+      return method.invoke(target);
+    }
+  }
+
+  /**
+   * Reads an attribute field reflectively
+   */
+  private static class FieldAccessor implements AttributeAccessor {
+    private final Field field;
+
+    FieldAccessor(Field field) {
+      this.field = field;
+    }
+
+    @Override
+    public Object eval(Object target) throws Exception {
+      return field.get(target);
+    }
+  }
+
+  /**
+   * An accessor from a generated attribute table
+   */
+  private static class TableAccessor implements AttributeAccessor, MethodBacked {
+    private final AttributeAccessor accessor;
+    private final Method method;
+
+    TableAccessor(AttributeAccessor accessor, Method method) {
+      this.accessor = accessor;
+      this.method = method;
+    }
+
+    @Override
+    public Object eval(Object target) throws Exception {
+      return accessor.eval(target);
+    }
+
+    @Override
+    public Method method() {
+      return method;
+    }
+  }
+
+  /**
+   * Looks up the attribute name in a map
+   */
+  private static class MapAccessor implements AttributeAccessor {
+    private final String key;
+
+    /**
+     * Used when the map has no entry for the key, or <code>null</code>
+     */
+    private final AttributeAccessor fallback;
+
+    MapAccessor(String key, AttributeAccessor fallback) {
+      this.key = key;
+      this.fallback = fallback;
+    }
+
+    @Override
+    public Object eval(Object target) throws Exception {
+      Map<?, ?> map = (Map<?, ?>) target;
+      Object value = map.get(key);
+      if (value == null && fallback != null && !map.containsKey(key)) {
+        return fallback.eval(target);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * An attribute registered for a class and its subclasses
+   */
+  private static class Registration {
+    final Class<?> type;
+    final String attribute;
+    final AttributeAccessor accessor;
+
+    Registration(Class<?> type, String attribute, AttributeAccessor accessor) {
+      this.type = type;
+      this.attribute = attribute;
+      this.accessor = accessor;
+    }
+  }
+
+  /**
+   * Marks attributes that do not exist
+   */
+  private static final AttributeAccessor MISSING = new AttributeAccessor() {
+    @Override
+    public Object eval(Object target) throws Exception {
+      throw new NoSuchMethodException();
+    }
+  };
+
+  /**
+   * Marks classes that have no attribute table
+   */
+  private static final AttributeTable NO_TABLE = new AttributeTable() {
+    @Override
+    public AttributeAccessor accessor(String attribute) {
+      return null;
+    }
+  };
+
+  /**
+   * Generated attribute tables by class. The tables are stored with each
+   * class, so that they do not keep class loaders from being unloaded.
+   */
+  private static final ClassValue<AttributeTable> tables = new ClassValue<AttributeTable>() {
+    @Override
+    protected AttributeTable computeValue(Class<?> type) {
+      return loadTable(type);
+    }
+  };
+
+  /**
+   * Cached accessors by class. Like the attribute tables, the accessors are
+   * stored with each class so that the cache does not keep class loaders
+   * from being unloaded. The cache is cleared by replacing the class value.
+   */
+  private volatile ClassValue<ConcurrentMap<String, AttributeAccessor>> cache = newCache();
+
+  private final List<AttributeResolver> resolvers =
+      new CopyOnWriteArrayList<AttributeResolver>();
+
+  private final List<Registration> registrations =
+      new CopyOnWriteArrayList<Registration>();
+
+  /**
+   * Incremented when cached accessors become invalid
+   */
+  private final AtomicInteger epoch = new AtomicInteger();
+
+  /**
+   * Add a resolver. Added resolvers are tried in the order they were added,
+   * before the built-in resolvers.
+   * @param resolver
+   */
+  public void addResolver(AttributeResolver resolver) {
+    resolvers.add(resolver);
+    clear();
+  }
+
+  /**
+   * Register an attribute for a class and its subclasses. Registered
+   * attributes take precedence over attribute methods.
+   * @param type The context class
+   * @param attribute The attribute name
+   * @param accessor Evaluates the attribute
+   */
+  public void registerAttribute(Class<?> type, String attribute,
+      AttributeAccessor accessor) {
+    registrations.add(new Registration(type, attribute, accessor));
+    clear();
+  }
+
+  /**
+   * Find the accessor for an attribute.
+   * @param type The context object class
+   * @param attribute The attribute name
+   * @return The accessor for the attribute
+   * @throws NoSuchMethodException if the class has no such attribute
+   */
+  public AttributeAccessor lookup(Class<?> type, String attribute)
+      throws NoSuchMethodException {
+    ConcurrentMap<String, AttributeAccessor> accessors = cache.get(type);
+    AttributeAccessor accessor = accessors.get(attribute);
+    if (accessor == null) {
+      accessor = createAccessor(type, attribute);
+      accessors.put(attribute, accessor);
+    }
+    if (accessor == MISSING) {
+      throw new NoSuchMethodException(type.getName() + "." + attribute + "()");
+    }
+    return accessor;
+  }
+
+  /**
+   * Create a new accessor for an attribute.
+   * @param type
+   * @param attribute
+   * @return The new accessor, or {@link #MISSING}
+   */
+  private AttributeAccessor createAccessor(Class<?> type, String attribute) {
+    for (AttributeResolver resolver: resolvers) {
+      AttributeAccessor accessor = resolver.resolve(type, attribute);
+      if (accessor != null) {
+        return accessor;
+      }
+    }
+    for (Registration registration: registrations) {
+      if (registration.attribute.equals(attribute)
+          && registration.type.isAssignableFrom(type)) {
+        return registration.accessor;
+      }
+    }
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      AttributeAccessor accessor = table(c).accessor(attribute);
+      if (accessor != null) {
+        return new TableAccessor(accessor, findDeclaredMethod(c, attribute));
+      }
+    }
+    AttributeAccessor member = memberAccessor(type, attribute);
+    if (Map.class.isAssignableFrom(type)) {
+      return new MapAccessor(attribute, member);
+    }
+    return member == null ? MISSING : member;
+  }
+
+  /**
+   * @return An accessor for a method, getter or field with the attribute
+   * name, or <code>null</code>
+   */
+  private static AttributeAccessor memberAccessor(Class<?> type, String attribute) {
+    Method method = findMethod(type, attribute);
+    if (method == null && !attribute.isEmpty()) {
+      String property = Character.toUpperCase(attribute.charAt(0)) + attribute.substring(1);
+      method = findMethod(type, "get" + property);
+      if (method == null) {
+        method = findMethod(type, "is" + property);
+        if (method != null && method.getReturnType() != boolean.class) {
+          method = null;
+        }
+      }
+    }
+    if (method != null) {
+      return methodAccessor(method);
+    }
+    Field field = findField(type, attribute);
+    if (field != null) {
+      return fieldAccessor(field);
+    }
+    return null;
+  }
+
+  /**
+   * @return The public method with the given name and no parameters, or
+   * <code>null</code>
+   */
+  private static Method findMethod(Class<?> type, String name) {
+    try {
+      return type.getMethod(name);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return The method declared in the class with the given name and no
+   * parameters, or <code>null</code>
+   */
+  private static Method findDeclaredMethod(Class<?> type, String name) {
+    try {
+      return type.getDeclaredMethod(name);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (SecurityException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return The public instance field with the given name, or
+   * <code>null</code>
+   */
+  private static Field findField(Class<?> type, String name) {
+    try {
+      Field field = type.getField(name);
+      return Modifier.isStatic(field.getModifiers()) ? null : field;
+    } catch (NoSuchFieldException e) {
+      return null;
+    }
+  }
+
+  private static AttributeAccessor methodAccessor(Method method) {
+    try {
+      MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+      return new MethodHandleAccessor(handle.asType(ACCESSOR_TYPE), method);
+    } catch (IllegalAccessException e) {
+      // The method is not accessible through a public lookup, for example
+      // because the declaring class is not public.
+      return new MethodAccessor(method);
+    }
+  }
+
+  private static AttributeAccessor fieldAccessor(Field field) {
+    try {
+      MethodHandle handle = MethodHandles.publicLookup().unreflectGetter(field);
+      return new MethodHandleAccessor(handle.asType(ACCESSOR_TYPE), null);
+    } catch (IllegalAccessException e) {
+      return new FieldAccessor(field);
+    }
+  }
+
+  /**
+   * @param accessor An accessor found by this cache
+   * @return The method called by the accessor, or <code>null</code> if the
+   * accessor does not call an attribute method
+   */
+  static Method method(AttributeAccessor accessor) {
+    if (accessor instanceof MethodBacked) {
+      return ((MethodBacked) accessor).method();
+    }
+    return null;
+  }
+
+  /**
+   * Find the generated attribute table for a class.
+   * @param type
+   * @return The attribute table of the class, or {@link #NO_TABLE}
+   */
+  private static AttributeTable table(Class<?> type) {
+    return tables.get(type);
+  }
+
+  private static AttributeTable loadTable(Class<?> type) {
+    if (type == Object.class || type.getClassLoader() == null) {
+      return NO_TABLE;
+    }
+    try {
+      Class<?> tableClass = Class.forName(type.getName() + AttributeTable.SUFFIX,
+          true, type.getClassLoader());
+      return (AttributeTable) tableClass.getDeclaredConstructor().newInstance();
+    } catch (ClassNotFoundException e) {
+      return NO_TABLE;
+    } catch (NoSuchMethodException e) {
+      return NO_TABLE;
+    } catch (InvocationTargetException e) {
+      return NO_TABLE;
+    } catch (InstantiationException e) {
+      return NO_TABLE;
+    } catch (IllegalAccessException e) {
+      return NO_TABLE;
+    } catch (ClassCastException e) {
+      return NO_TABLE;
+    }
+  }
+
+  /**
+   * Remove all cached accessors and start a new epoch, so that attribute
+   * sites also discard their accessors.
+   */
+  public void clear() {
+    cache = newCache();
+    epoch.incrementAndGet();
+  }
+
+  private static ClassValue<ConcurrentMap<String, AttributeAccessor>> newCache() {
+    return new ClassValue<ConcurrentMap<String, AttributeAccessor>>() {
+      @Override
+      protected ConcurrentMap<String, AttributeAccessor> computeValue(Class<?> type) {
+        return new ConcurrentHashMap<String, AttributeAccessor>();
+      }
+    };
+  }
+
+  /**
+   * @return The current epoch. Accessors found in an earlier epoch are no
+   * longer valid.
+   */
+  public int getEpoch() {
+    return epoch.get();
+  }
+}
@@ -0,0 +1,233 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-expansion memo table for attribute values.
+ *
+ * <p>While a template is being expanded, each attribute is evaluated at most
+ * once per context object, identified by object identity. Failed evaluations
+ * are not memoized, so they are reported each time. The memo table is cleared
+ * when the top-level template expansion ends, so attribute values are never
+ * reused between expansions.
+ *
+ * <p>Each thread has its own memo table. Attributes evaluated outside of a
+ * template expansion started by the template engine are not memoized.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class AttributeMemo {
+
+  /**
+   * Marks memoized null values
+   */
+  private static final Object NULL = new Object();
+
+  private static class State {
+    int depth = 0;
+    final Map<Object, Map<String, Object>> values =
+        new IdentityHashMap<Object, Map<String, Object>>();
+  }
+
+  private final ThreadLocal<State> state = new ThreadLocal<State>() {
+    @Override
+    protected State initialValue() {
+      return new State();
+    }
+  };
+
+  /**
+   * Cache used to evaluate attributes that are not memoized, or
+   * <code>null</code>
+   */
+  private final AttributeResultCache results;
+
+  private volatile boolean enabled = false;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Create a memo table that evaluates attributes directly.
+   */
+  public AttributeMemo() {
+    this(null);
+  }
+
+  /**
+   * @param results Cache used to evaluate attributes that are not yet
+   * memoized, or <code>null</code>
+   */
+  public AttributeMemo(AttributeResultCache results) {
+    this.results = results;
+  }
+
+  /**
+   * @param enabled <code>true</code> if attribute values should be
+   * memoized
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * @return <code>true</code> if attribute values are memoized
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Called when a template expansion starts.
+   * @return <code>true</code> if the expansion was counted, and must be
+   * ended with <code>end(true)</code>
+   */
+  boolean begin() {
+    if (enabled) {
+      state.get().depth += 1;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Called when a template expansion ends. The memo table is cleared when
+   * the top-level expansion ends.
+   * @param counted The result of the matching call to {@link #begin()}
+   */
+  void end(boolean counted) {
+    if (!counted) {
+      return;
+    }
+    State current = state.get();
+    current.depth -= 1;
+    if (current.depth == 0) {
+      current.values.clear();
+    }
+  }
+
+  /**
+   * Evaluate an attribute, or reuse the value from an earlier evaluation in
+   * the current template expansion.
+   * @param attribute
+   * @param context The context object
+   * @param site Inline cache for the evaluation site, or <code>null</code>
+   * @param cache Attribute cache used to evaluate the attribute
+   * @return The attribute value
+   */
+  public Object eval(String attribute, Object context, AttributeSite site,
+      AttributeCache cache) {
+    if (context == null) {
+      return TinyTemplate.evalAttribute(attribute, context, site, cache);
+    }
+    try {
+      return access(attribute, context, site, cache);
+    } catch (Exception e) {
+      return TinyTemplate.attributeProblem(attribute, e);
+    }
+  }
+
+  /**
+   * Evaluate an attribute like {@link #eval}, but throw the exception if the
+   * evaluation fails. Failed evaluations are not memoized.
+   * @throws Exception if the attribute could not be evaluated
+   */
+  Object access(String attribute, Object context, AttributeSite site,
+      AttributeCache cache) throws Exception {
+    State current = state.get();
+    if (!enabled || current.depth == 0 || context == null) {
+      return accessUnmemoized(attribute, context, site, cache);
+    }
+    Map<String, Object> values = current.values.get(context);
+    if (values == null) {
+      values = new HashMap<String, Object>();
+      current.values.put(context, values);
+    }
+    Object value = values.get(attribute);
+    if (value != null) {
+      hits.incrementAndGet();
+      return value == NULL ? null : value;
+    }
+    misses.incrementAndGet();
+    value = accessUnmemoized(attribute, context, site, cache);
+    values.put(attribute, value == null ? NULL : value);
+    return value;
+  }
+
+  private Object accessUnmemoized(String attribute, Object context, AttributeSite site,
+      AttributeCache cache) throws Exception {
+    if (results != null && results.isEnabled()) {
+      return results.access(attribute, context, site, cache);
+    }
+    return TinyTemplate.accessAttribute(attribute, context, site, cache);
+  }
+
+  /**
+   * @return Number of attribute evaluations that reused a memoized value
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return Number of memoized attribute evaluations that called the
+   * attribute
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return The fraction of memoized attribute evaluations that reused a
+   * memoized value, or 0 if no attributes were evaluated
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : h / (double) total;
+  }
+
+  /**
+   * Reset the statistics counters.
+   */
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "AttributeMemo(hits: " + hits.get() + ", misses: " + misses.get() + ")";
+  }
+}
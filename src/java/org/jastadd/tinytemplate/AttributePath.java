@@ -0,0 +1,165 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+/**
+ * A dotted attribute path, like <code>a.b.c</code>. The first attribute is
+ * evaluated in the template context, and each following attribute is
+ * evaluated on the value of the previous attribute.
+ *
+ * <p>Each step of the path has its own inline cache. If an attribute in the
+ * path evaluates to <code>null</code>, the rest of the path is skipped and
+ * the path evaluates to <code>null</code>. If an attribute in the path can
+ * not be evaluated, the rest of the path is skipped and the failed step is
+ * reported together with the whole path.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class AttributePath {
+
+  private final String path;
+  private final String[] names;
+  private final AttributeSite[] sites;
+
+  /**
+   * @param path Dot-separated attribute names
+   */
+  public AttributePath(String path) {
+    this.path = path;
+    this.names = path.split("\\.", -1);
+    this.sites = new AttributeSite[names.length];
+    for (int i = 0; i < sites.length; ++i) {
+      sites[i] = new AttributeSite();
+    }
+  }
+
+  /**
+   * Evaluate the attribute path
+   * @param context
+   * @return The value of the last attribute in the path, or
+   * <code>null</code> if any attribute in the path was <code>null</code>
+   */
+  public Object eval(TemplateContext context) {
+    if (names.length == 1) {
+      return context.evalAttribute(names[0], sites[0]);
+    }
+    Object value;
+    try {
+      value = context.accessAttribute(names[0], sites[0]);
+    } catch (Exception e) {
+      return problem(0, e);
+    }
+    return eval(1, value, context);
+  }
+
+  /**
+   * Evaluate the attribute path on an object other than the context object
+   * @param object The object to evaluate the first attribute on
+   * @param context The context that provides the attribute cache and memo
+   * tables
+   * @return The value of the last attribute in the path, or
+   * <code>null</code> if the object or any attribute in the path was
+   * <code>null</code>
+   */
+  public Object evalOn(Object object, TemplateContext context) {
+    return eval(0, object, context);
+  }
+
+  private Object eval(int start, Object value, TemplateContext context) {
+    AttributeCache cache = context.getAttributeCache();
+    AttributeMemo memo = context.getAttributeMemo();
+    AttributeResultCache results = context.getAttributeResultCache();
+    for (int i = start; i < names.length && value != null; ++i) {
+      try {
+        if (memo != null && memo.isEnabled()) {
+          value = memo.access(names[i], value, sites[i], cache);
+        } else if (results != null && results.isEnabled()) {
+          value = results.access(names[i], value, sites[i], cache);
+        } else {
+          value = TinyTemplate.accessAttribute(names[i], value, sites[i], cache);
+        }
+      } catch (Exception e) {
+        return problem(i, e);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Report a failed step of the path
+   * @param index The index of the failed attribute
+   * @return The value to use for the path
+   */
+  private Object problem(int index, Exception e) {
+    if (names.length == 1) {
+      return TinyTemplate.attributeProblem(names[0], e);
+    }
+    return TinyTemplate.attributePathProblem(path, names[index], e);
+  }
+
+  /**
+   * Link the first attribute of the path to a context class. The types of
+   * the following attributes are not known until the path is evaluated.
+   * @param type The context class
+   * @param cache
+   * @throws NoSuchMethodException if the context class has no such
+   * attribute
+   */
+  public void link(Class<?> type, AttributeCache cache) throws NoSuchMethodException {
+    sites[0].link(type, names[0], cache);
+  }
+
+  /**
+   * @return The inline cache of the first attribute in the path
+   */
+  public AttributeSite getSite() {
+    return sites[0];
+  }
+
+  /**
+   * @return The number of attributes in the path
+   */
+  public int length() {
+    return names.length;
+  }
+
+  /**
+   * @param index
+   * @return The attribute name at the given index
+   */
+  public String getName(int index) {
+    return names[index];
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+}
@@ -0,0 +1,478 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the values of cacheable attributes between template expansions.
+ *
+ * <p>Values are indexed by context object identity and attribute name. The
+ * context objects are weakly referenced, but the cached values are strongly
+ * referenced. A cached value that refers back to its context object, for
+ * example an attribute returning the object itself or its parent, keeps the
+ * context object alive until the value is evicted or invalidated. The cache
+ * holds at most a fixed number of values, which bounds the memory that is
+ * retained this way. The least recently used values are evicted first.
+ * Values can optionally expire after a fixed time.
+ *
+ * <p>Only cacheable attributes are cached. An attribute is cacheable if the
+ * method it resolves to, or its context class, is annotated with
+ * {@link CacheableAttribute}, or if it was declared cacheable with
+ * {@link #declareCacheable(Class)} or {@link #declareCacheable(Class, String)}.
+ * The method is found through the attribute cache, so JavaBean getters and
+ * methods in generated attribute tables are also checked for the annotation.
+ *
+ * <p>Failed evaluations and null values are not cached.
+ *
+ * <p>The cache is disabled by default.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class AttributeResultCache {
+
+  /**
+   * Default maximum number of cached values
+   */
+  public static final int MAX_SIZE = 10000;
+
+  /**
+   * Matches all attributes of a class
+   */
+  private static final String ALL = "*";
+
+  /**
+   * A context object and attribute name
+   */
+  private interface Key {
+    Object referent();
+    String attribute();
+  }
+
+  private static int hash(Object referent, String attribute) {
+    return System.identityHashCode(referent) * 31 + attribute.hashCode();
+  }
+
+  private static boolean matches(Key key, Object o) {
+    if (!(o instanceof Key)) {
+      return false;
+    }
+    Key other = (Key) o;
+    Object referent = key.referent();
+    return referent != null && referent == other.referent()
+        && key.attribute().equals(other.attribute());
+  }
+
+  /**
+   * Key of a cached value
+   */
+  private static class EntryKey extends WeakReference<Object> implements Key {
+    final String attribute;
+    final int hash;
+
+    EntryKey(Object referent, String attribute, ReferenceQueue<Object> queue) {
+      super(referent, queue);
+      this.attribute = attribute;
+      this.hash = hash(referent, attribute);
+    }
+
+    @Override
+    public Object referent() {
+      return get();
+    }
+
+    @Override
+    public String attribute() {
+      return attribute;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return this == o || matches(this, o);
+    }
+  }
+
+  /**
+   * Key used to look up cached values
+   */
+  private static class LookupKey implements Key {
+    final Object referent;
+    final String attribute;
+
+    LookupKey(Object referent, String attribute) {
+      this.referent = referent;
+      this.attribute = attribute;
+    }
+
+    @Override
+    public Object referent() {
+      return referent;
+    }
+
+    @Override
+    public String attribute() {
+      return attribute;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash(referent, attribute);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return matches(this, o);
+    }
+  }
+
+  private static class CachedValue {
+    final Object value;
+    final boolean expiring;
+    final long expires;
+
+    CachedValue(Object value, long timeToLive) {
+      this.value = value;
+      this.expiring = timeToLive > 0;
+      this.expires = expiring ? System.nanoTime() + timeToLive : 0;
+    }
+
+    boolean isExpired() {
+      return expiring && expires - System.nanoTime() <= 0;
+    }
+  }
+
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+  /**
+   * Cached values in least recently used order. Guarded by this.
+   */
+  private final LinkedHashMap<Key, CachedValue> values =
+      new LinkedHashMap<Key, CachedValue>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, CachedValue> eldest) {
+      if (size() > maxSize) {
+        evictions += 1;
+        return true;
+      }
+      return false;
+    }
+  };
+
+  /**
+   * Declared cacheable attributes, by class
+   */
+  private final ConcurrentMap<Class<?>, ConcurrentMap<String, Boolean>> declared =
+      new ConcurrentHashMap<Class<?>, ConcurrentMap<String, Boolean>>();
+
+  /**
+   * Cacheable decisions, by class and attribute name
+   */
+  private final ConcurrentMap<Class<?>, ConcurrentMap<String, Boolean>> cacheable =
+      new ConcurrentHashMap<Class<?>, ConcurrentMap<String, Boolean>>();
+
+  private volatile boolean enabled = false;
+  private volatile int maxSize = MAX_SIZE;
+  private volatile long timeToLive = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * @param enabled <code>true</code> if cacheable attribute values should
+   * be cached
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * @return <code>true</code> if cacheable attribute values are cached
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param size Maximum number of cached values
+   */
+  public synchronized void setMaxSize(int size) {
+    maxSize = size;
+    Iterator<Key> iter = values.keySet().iterator();
+    while (values.size() > maxSize && iter.hasNext()) {
+      iter.next();
+      iter.remove();
+      evictions += 1;
+    }
+  }
+
+  /**
+   * Set the time after which cached values expire. Values added before the
+   * time to live is changed keep their previous expiry time.
+   * @param duration Time to live, or 0 if values should not expire
+   * @param unit
+   */
+  public void setTimeToLive(long duration, TimeUnit unit) {
+    timeToLive = unit.toNanos(duration);
+  }
+
+  /**
+   * Declare all attributes of a class, and its subclasses, cacheable.
+   * @param type
+   */
+  public void declareCacheable(Class<?> type) {
+    declareCacheable(type, ALL);
+  }
+
+  /**
+   * Declare an attribute of a class, and its subclasses, cacheable.
+   * @param type
+   * @param attribute
+   */
+  public void declareCacheable(Class<?> type, String attribute) {
+    ConcurrentMap<String, Boolean> attributes = declared.get(type);
+    if (attributes == null) {
+      attributes = new ConcurrentHashMap<String, Boolean>();
+      ConcurrentMap<String, Boolean> previous = declared.putIfAbsent(type, attributes);
+      if (previous != null) {
+        attributes = previous;
+      }
+    }
+    attributes.put(attribute, Boolean.TRUE);
+    cacheable.clear();
+  }
+
+  /**
+   * @param type The context class
+   * @param attribute The attribute name
+   * @return <code>true</code> if the attribute is cacheable
+   */
+  public boolean isCacheable(Class<?> type, String attribute) {
+    return isCacheable(type, attribute, AttributeCache.SHARED);
+  }
+
+  /**
+   * @param type The context class
+   * @param attribute The attribute name
+   * @param cache Attribute cache used to find the attribute method
+   * @return <code>true</code> if the attribute is cacheable
+   */
+  public boolean isCacheable(Class<?> type, String attribute, AttributeCache cache) {
+    ConcurrentMap<String, Boolean> attributes = cacheable.get(type);
+    if (attributes == null) {
+      attributes = new ConcurrentHashMap<String, Boolean>();
+      ConcurrentMap<String, Boolean> previous = cacheable.putIfAbsent(type, attributes);
+      if (previous != null) {
+        attributes = previous;
+      }
+    }
+    Boolean result = attributes.get(attribute);
+    if (result == null) {
+      result = findCacheable(type, attribute, cache);
+      attributes.put(attribute, result);
+    }
+    return result;
+  }
+
+  private boolean findCacheable(Class<?> type, String attribute, AttributeCache cache) {
+    for (Map.Entry<Class<?>, ConcurrentMap<String, Boolean>> entry: declared.entrySet()) {
+      if (entry.getKey().isAssignableFrom(type)) {
+        Map<String, Boolean> attributes = entry.getValue();
+        if (attributes.containsKey(ALL) || attributes.containsKey(attribute)) {
+          return true;
+        }
+      }
+    }
+    if (type.isAnnotationPresent(CacheableAttribute.class)) {
+      return true;
+    }
+    try {
+      Method method = AttributeCache.method(cache.lookup(type, attribute));
+      return method != null && method.isAnnotationPresent(CacheableAttribute.class);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Evaluate an attribute, or reuse its cached value if the attribute is
+   * cacheable.
+   * @param attribute
+   * @param context The context object
+   * @param site Inline cache for the evaluation site, or <code>null</code>
+   * @param cache Attribute cache used to evaluate the attribute
+   * @return The attribute value
+   */
+  public Object eval(String attribute, Object context, AttributeSite site,
+      AttributeCache cache) {
+    if (context == null) {
+      return TinyTemplate.evalAttribute(attribute, context, site, cache);
+    }
+    try {
+      return access(attribute, context, site, cache);
+    } catch (Exception e) {
+      return TinyTemplate.attributeProblem(attribute, e);
+    }
+  }
+
+  /**
+   * Evaluate an attribute like {@link #eval}, but throw the exception if the
+   * evaluation fails.
+   * @throws Exception if the attribute could not be evaluated
+   */
+  Object access(String attribute, Object context, AttributeSite site,
+      AttributeCache cache) throws Exception {
+    if (!enabled || context == null
+        || !isCacheable(context.getClass(), attribute, cache)) {
+      return TinyTemplate.accessAttribute(attribute, context, site, cache);
+    }
+    LookupKey key = new LookupKey(context, attribute);
+    synchronized (this) {
+      expunge();
+      CachedValue entry = values.get(key);
+      if (entry != null) {
+        if (!entry.isExpired()) {
+          hits += 1;
+          return entry.value;
+        }
+        values.remove(key);
+      }
+      misses += 1;
+    }
+    Object value = TinyTemplate.accessAttribute(attribute, context, site, cache);
+    if (value != null) {
+      synchronized (this) {
+        values.put(new EntryKey(context, attribute, queue),
+            new CachedValue(value, timeToLive));
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Remove values of garbage collected context objects. Guarded by this.
+   */
+  private void expunge() {
+    Object ref;
+    while ((ref = queue.poll()) != null) {
+      values.remove(ref);
+    }
+  }
+
+  /**
+   * Remove all cached values of a context object.
+   * @param context
+   */
+  public synchronized void invalidate(Object context) {
+    expunge();
+    Iterator<Key> iter = values.keySet().iterator();
+    while (iter.hasNext()) {
+      if (iter.next().referent() == context) {
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Remove the cached value of an attribute of a context object.
+   * @param context
+   * @param attribute
+   */
+  public synchronized void invalidate(Object context, String attribute) {
+    expunge();
+    values.remove(new LookupKey(context, attribute));
+  }
+
+  /**
+   * Remove all cached values.
+   */
+  public synchronized void invalidateAll() {
+    expunge();
+    values.clear();
+  }
+
+  /**
+   * @return Number of cached values
+   */
+  public synchronized int size() {
+    expunge();
+    return values.size();
+  }
+
+  /**
+   * @return Number of evaluations that reused a cached value
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Number of evaluations of cacheable attributes that called the
+   * attribute
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return Number of values evicted because the cache was full
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Reset the statistics counters.
+   */
+  public synchronized void resetStatistics() {
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "AttributeResultCache(size: " + values.size() + ", hits: " + hits
+        + ", misses: " + misses + ", evictions: " + evictions + ")";
+  }
+}
@@ -0,0 +1,236 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.util.Arrays;
+
+/**
+ * Inline cache for an attribute evaluation site in a template.
+ *
+ * <p>A site remembers the accessors for the last few context classes it was
+ * evaluated with. Most sites only see one context class, and can then
+ * find the accessor without a map lookup. When the site is full, lookups for
+ * other classes go to the shared attribute cache.
+ *
+ * <p>A site can also be linked to a context class when its template is
+ * bound to that class. Context objects of the linked class then use the
+ * accessor resolved at link time. Subclasses may resolve the attribute
+ * differently, so they are looked up like any other class.
+ *
+ * <p>Each accessor is tagged with the epoch of the attribute cache it was
+ * found in. Accessors from an earlier epoch are resolved again, so that
+ * resolvers and attributes registered after expansion has started are
+ * used.
+ *
+ * <p>The statistics counters are not synchronized, and are approximate when
+ * a template is expanded from multiple threads.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class AttributeSite {
+
+  /**
+   * Default number of cached classes per site
+   */
+  public static final int SIZE = 4;
+
+  private static class Entry {
+    final Class<?> type;
+    final AttributeAccessor accessor;
+    final int epoch;
+
+    Entry(Class<?> type, AttributeAccessor accessor, int epoch) {
+      this.type = type;
+      this.accessor = accessor;
+      this.epoch = epoch;
+    }
+  }
+
+  private static final Entry[] EMPTY = new Entry[0];
+
+  private final int size;
+
+  /**
+   * Replaced, never modified, when an entry is added
+   */
+  private volatile Entry[] entries = EMPTY;
+
+  /**
+   * Accessor resolved when the site was linked, or <code>null</code>
+   */
+  private volatile Entry linked = null;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long megamorphic = 0;
+
+  /**
+   * Create a site with the default size.
+   */
+  public AttributeSite() {
+    this(SIZE);
+  }
+
+  /**
+   * @param size Maximum number of cached classes
+   */
+  public AttributeSite(int size) {
+    this.size = size;
+  }
+
+  /**
+   * Find the accessor for an attribute.
+   * @param type The context object class
+   * @param attribute The attribute name
+   * @param cache Shared cache used on a miss
+   * @return The accessor for the attribute
+   * @throws NoSuchMethodException if the class has no such attribute
+   */
+  public AttributeAccessor lookup(Class<?> type, String attribute, AttributeCache cache)
+      throws NoSuchMethodException {
+    int epoch = cache.getEpoch();
+    Entry bound = linked;
+    if (bound != null && bound.type == type) {
+      if (bound.epoch != epoch) {
+        bound = new Entry(bound.type, cache.lookup(bound.type, attribute), epoch);
+        linked = bound;
+      }
+      hits += 1;
+      return bound.accessor;
+    }
+    Entry[] cached = entries;
+    for (Entry entry: cached) {
+      if (entry.type == type && entry.epoch == epoch) {
+        hits += 1;
+        return entry.accessor;
+      }
+    }
+    AttributeAccessor accessor = cache.lookup(type, attribute);
+    cached = current(cached, epoch);
+    if (cached.length < size) {
+      Entry[] updated = Arrays.copyOf(cached, cached.length + 1);
+      updated[cached.length] = new Entry(type, accessor, epoch);
+      entries = updated;
+      misses += 1;
+    } else {
+      megamorphic += 1;
+    }
+    return accessor;
+  }
+
+  /**
+   * @return The entries from the given epoch
+   */
+  private static Entry[] current(Entry[] cached, int epoch) {
+    int count = 0;
+    for (Entry entry: cached) {
+      if (entry.epoch == epoch) {
+        count += 1;
+      }
+    }
+    if (count == cached.length) {
+      return cached;
+    }
+    Entry[] result = new Entry[count];
+    int index = 0;
+    for (Entry entry: cached) {
+      if (entry.epoch == epoch) {
+        result[index++] = entry;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Link this site to a context class. The attribute accessor is resolved
+   * immediately.
+   * @param type The context class
+   * @param attribute The attribute name
+   * @param cache Shared cache used to find the accessor
+   * @throws NoSuchMethodException if the class has no such attribute
+   */
+  public void link(Class<?> type, String attribute, AttributeCache cache)
+      throws NoSuchMethodException {
+    int epoch = cache.getEpoch();
+    linked = new Entry(type, cache.lookup(type, attribute), epoch);
+  }
+
+  /**
+   * @return The context class this site is linked to, or <code>null</code>
+   */
+  public Class<?> getLinkedType() {
+    Entry bound = linked;
+    return bound == null ? null : bound.type;
+  }
+
+  /**
+   * @return Number of lookups that were found in this site
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Number of lookups that added a new class to this site
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return Number of lookups that went to the shared cache because the
+   * site was full
+   */
+  public long getMegamorphicLookups() {
+    return megamorphic;
+  }
+
+  /**
+   * @return Number of classes cached in this site
+   */
+  public int getEntryCount() {
+    return entries.length;
+  }
+
+  /**
+   * Reset the statistics counters.
+   */
+  public void resetStatistics() {
+    hits = 0;
+    misses = 0;
+    megamorphic = 0;
+  }
+
+  @Override
+  public String toString() {
+    return "AttributeSite(classes: " + entries.length + ", hits: " + hits
+        + ", misses: " + misses + ", megamorphic: " + megamorphic + ")";
+  }
+}
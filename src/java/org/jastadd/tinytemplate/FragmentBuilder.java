@@ -32,6 +32,7 @@ package org.jastadd.tinytemplate;
 import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
 import org.jastadd.tinytemplate.fragment.AttributeReference;
 import org.jastadd.tinytemplate.fragment.Conditional;
+import org.jastadd.tinytemplate.fragment.Foreach;
 import org.jastadd.tinytemplate.fragment.Fragment;
 import org.jastadd.tinytemplate.fragment.Include;
 import org.jastadd.tinytemplate.fragment.Join;
@@ -100,6 +101,25 @@ public interface FragmentBuilder {
    */
   Join join(String iterable, String sep) throws SyntaxError;
 
+  /**
+   * @param iterable
+   * @param sep
+   * @param projection attribute path, starting with <code>#</code>, or
+   * template name applied to each element
+   * @return the concatenation fragment
+   * @throws SyntaxError
+   */
+  Join join(String iterable, String sep, String projection) throws SyntaxError;
+
+  /**
+   * @param variable loop variable name
+   * @param iterable the sequence to loop over
+   * @param body the loop body
+   * @return the loop fragment
+   * @throws SyntaxError
+   */
+  Foreach foreach(String variable, String iterable, Template body) throws SyntaxError;
+
   /**
    * Get indentation fragment corresponding to the given
    * number of indentation levels.
@@ -158,6 +178,17 @@ public interface FragmentBuilder {
       return new Join(iterable, sep);
     }
 
+    @Override
+    public Join join(String iterable, String sep, String projection) throws SyntaxError {
+      return new Join(iterable, sep, projection);
+    }
+
+    @Override
+    public Foreach foreach(String variable, String iterable, Template body)
+        throws SyntaxError {
+      return new Foreach(variable, iterable, body);
+    }
+
     @Override
     public Fragment indentation(int levels) {
       return Indentation.getFragment(levels);
@@ -0,0 +1,280 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.jastadd.io.ChunkedBuffer;
+import org.jastadd.io.FileUpdateStream;
+import org.jastadd.io.StreamOutput;
+
+/**
+ * Expands templates to files in parallel.
+ *
+ * <p>Each job expands one template, with one context object, to one target
+ * file. The jobs are expanded in memory by a pool of worker threads, and the
+ * results are written with a bounded number of concurrently open files.
+ * Target files are only replaced if their content changed, and keep their
+ * permissions when they are replaced. Missing directories are created.
+ *
+ * <p>If any job fails, {@link #run()} throws an exception for the first
+ * failed job, in the order the jobs were added, with the failures of later
+ * jobs added as suppressed exceptions.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class GenerationPipeline {
+
+  /**
+   * Default maximum number of concurrently written files
+   */
+  public static final int MAX_OPEN_FILES = 16;
+
+  /**
+   * A template expansion to a file
+   */
+  public static class Job {
+    private final String templateName;
+    private final Object contextObject;
+    private final File target;
+
+    Job(String templateName, Object contextObject, File target) {
+      this.templateName = templateName;
+      this.contextObject = contextObject;
+      this.target = target;
+    }
+
+    /**
+     * @return The name of the expanded template
+     */
+    public String getTemplateName() {
+      return templateName;
+    }
+
+    /**
+     * @return The context object the template is expanded with
+     */
+    public Object getContextObject() {
+      return contextObject;
+    }
+
+    /**
+     * @return The target file
+     */
+    public File getTarget() {
+      return target;
+    }
+  }
+
+  /**
+   * The result of a completed job
+   */
+  public static class JobResult {
+    private final Job job;
+    private final boolean changed;
+    private final long expandTime;
+    private final long writeTime;
+
+    JobResult(Job job, boolean changed, long expandTime, long writeTime) {
+      this.job = job;
+      this.changed = changed;
+      this.expandTime = expandTime;
+      this.writeTime = writeTime;
+    }
+
+    /**
+     * @return The completed job
+     */
+    public Job getJob() {
+      return job;
+    }
+
+    /**
+     * @return <code>true</code> if the target file was changed
+     */
+    public boolean isChanged() {
+      return changed;
+    }
+
+    /**
+     * @return Time spent expanding the template, in nanoseconds
+     */
+    public long getExpandTime() {
+      return expandTime;
+    }
+
+    /**
+     * @return Time spent writing the target file, including time waiting
+     * for a free file handle, in nanoseconds
+     */
+    public long getWriteTime() {
+      return writeTime;
+    }
+  }
+
+  private final TinyTemplate templates;
+  private final int threads;
+  private final Semaphore openFiles;
+  private final List<Job> jobs = new ArrayList<Job>();
+
+  /**
+   * Create a pipeline with one worker thread per available processor.
+   * @param templates
+   */
+  public GenerationPipeline(TinyTemplate templates) {
+    this(templates, Runtime.getRuntime().availableProcessors(), MAX_OPEN_FILES);
+  }
+
+  /**
+   * @param templates
+   * @param threads Number of worker threads
+   * @param maxOpenFiles Maximum number of concurrently written files
+   */
+  public GenerationPipeline(TinyTemplate templates, int threads, int maxOpenFiles) {
+    this.templates = templates;
+    this.threads = threads;
+    this.openFiles = new Semaphore(maxOpenFiles);
+  }
+
+  /**
+   * Add a job to the pipeline.
+   * @param templateName The template to expand
+   * @param contextObject The context object to expand the template with
+   * @param target The file to write the expansion to
+   * @return The added job
+   */
+  public Job addJob(String templateName, Object contextObject, File target) {
+    Job job = new Job(templateName, contextObject, target);
+    jobs.add(job);
+    return job;
+  }
+
+  /**
+   * @return The jobs in this pipeline
+   */
+  public List<Job> getJobs() {
+    return Collections.unmodifiableList(jobs);
+  }
+
+  /**
+   * Run all jobs and wait for them to complete.
+   * @return The job results, in the order the jobs were added
+   * @throws IOException if any job failed
+   * @throws InterruptedException
+   */
+  public List<JobResult> run() throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<JobResult>> futures = new ArrayList<Future<JobResult>>(jobs.size());
+      for (final Job job: jobs) {
+        futures.add(executor.submit(new Callable<JobResult>() {
+          @Override
+          public JobResult call() throws IOException, InterruptedException {
+            return runJob(job);
+          }
+        }));
+      }
+      List<JobResult> results = new ArrayList<JobResult>(jobs.size());
+      IOException failure = null;
+      for (int i = 0; i < futures.size(); ++i) {
+        try {
+          results.add(futures.get(i).get());
+        } catch (ExecutionException e) {
+          Job job = jobs.get(i);
+          IOException error = new IOException("failed to generate " + job.target
+              + " from template '" + job.templateName + "'", e.getCause());
+          if (failure == null) {
+            failure = error;
+          } else {
+            failure.addSuppressed(error);
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private JobResult runJob(Job job) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    ChunkedBuffer buf = new ChunkedBuffer();
+    try {
+      TemplateContext context = new SimpleContext(templates, job.contextObject);
+      context.expand(job.templateName, buf);
+      long expanded = System.nanoTime();
+      boolean changed;
+      openFiles.acquire();
+      try {
+        changed = write(buf, job.target);
+      } finally {
+        openFiles.release();
+      }
+      return new JobResult(job, changed, expanded - start, System.nanoTime() - expanded);
+    } finally {
+      buf.release();
+    }
+  }
+
+  private static boolean write(ChunkedBuffer buf, File target) throws IOException {
+    File dir = target.getAbsoluteFile().getParentFile();
+    if (dir != null) {
+      Files.createDirectories(dir.toPath());
+    }
+    FileUpdateStream out = new FileUpdateStream(target);
+    boolean done = false;
+    try {
+      StreamOutput output = new StreamOutput(out);
+      buf.writeTo(output);
+      output.flush();
+      done = true;
+    } finally {
+      if (!done) {
+        out.discard();
+      }
+    }
+    out.close();
+    return out.isChanged();
+  }
+}
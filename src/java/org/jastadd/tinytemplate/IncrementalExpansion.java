@@ -0,0 +1,475 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jastadd.io.ByteOutput;
+import org.jastadd.tinytemplate.fragment.Fragment;
+
+/**
+ * Repeated expansion of a template that only re-expands the template lines
+ * whose inputs have changed.
+ *
+ * <p>For each top-level line of the template, the variables, attributes
+ * and indentation levels read while expanding the line are recorded
+ * together with the output of the line. When the template is expanded again,
+ * the recorded inputs are evaluated and compared to the recorded values.
+ * Lines with unchanged inputs reuse their previous output.
+ *
+ * <p>Values are compared to the recorded value by their string form, and
+ * iterable values and arrays by the string form of each element, since that
+ * is what the template output depends on. Strings, boxed primitives and enum
+ * constants are immutable, so they are first compared by identity and
+ * equality, and only formatted if that check fails. Iterators, enumerations
+ * and streams can only be read once, so lines that join them are re-expanded
+ * each time. Lines that evaluate attributes on other objects than the context
+ * object, like a join projection evaluated on each joined element, are also
+ * re-expanded each time. Attributes with side effects are not tracked.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class IncrementalExpansion {
+
+  /**
+   * A changed region of the expansion
+   */
+  public static class Change {
+    private final int line;
+    private final int offset;
+    private final String oldText;
+    private final String newText;
+
+    Change(int line, int offset, String oldText, String newText) {
+      this.line = line;
+      this.offset = offset;
+      this.oldText = oldText;
+      this.newText = newText;
+    }
+
+    /**
+     * @return Index of the changed template line
+     */
+    public int getLine() {
+      return line;
+    }
+
+    /**
+     * @return Character offset of the changed region in the new expansion
+     */
+    public int getOffset() {
+      return offset;
+    }
+
+    /**
+     * @return Previous expansion of the line
+     */
+    public String getOldText() {
+      return oldText;
+    }
+
+    /**
+     * @return New expansion of the line
+     */
+    public String getNewText() {
+      return newText;
+    }
+
+    @Override
+    public String toString() {
+      return "line " + line + " at " + offset + ": \"" + oldText + "\" -> \""
+          + newText + "\"";
+    }
+  }
+
+  /**
+   * A value read during expansion
+   */
+  private class Dependency {
+    static final int VARIABLE = 0;
+    static final int ATTRIBUTE = 1;
+    static final int INDENTATION = 2;
+
+    final int kind;
+    final String name;
+    final int level;
+
+    /**
+     * The value that was read
+     */
+    final Object raw;
+
+    /**
+     * Fingerprint of the value that was read
+     */
+    final Object value;
+
+    /**
+     * The evaluated attribute path, or <code>null</code>
+     */
+    AttributePath path = null;
+
+    /**
+     * The evaluation site of the attribute, or <code>null</code>
+     */
+    AttributeSite site = null;
+
+    Dependency(int kind, String name, int level, Object raw) {
+      this.kind = kind;
+      this.name = name;
+      this.level = level;
+      this.raw = raw;
+      this.value = kind == INDENTATION ? raw : fingerprint(raw);
+    }
+
+    Dependency(AttributePath path, Object raw) {
+      this(ATTRIBUTE, path.toString(), 0, raw);
+      this.path = path;
+    }
+
+    Dependency(String attrName, AttributeSite site, Object raw) {
+      this(ATTRIBUTE, attrName, 0, raw);
+      this.site = site;
+    }
+
+    /**
+     * @return <code>true</code> if the dependency still has the same value
+     */
+    boolean isValid(TemplateContext context) {
+      Object current;
+      switch (kind) {
+        case VARIABLE:
+          current = context.evalVariable(name);
+          break;
+        case ATTRIBUTE:
+          if (path != null) {
+            current = context.evalAttribute(path);
+          } else if (site != null) {
+            current = context.evalAttribute(name, site);
+          } else {
+            current = context.evalAttribute(name);
+          }
+          break;
+        default:
+          return value.equals(context.evalIndentation(level));
+      }
+      if (isImmutable(raw) && (current == raw || raw.equals(current))) {
+        return true;
+      }
+      return value.equals(fingerprint(current));
+    }
+  }
+
+  /**
+   * The recorded expansion of one template line
+   */
+  private static class Region {
+    String output = null;
+
+    /**
+     * The recorded dependencies, or <code>null</code> if the line is always
+     * re-expanded
+     */
+    Collection<Dependency> dependencies = Collections.emptyList();
+  }
+
+  /**
+   * Forwards to the underlying context and records the values read.
+   */
+  private class RecordingContext extends TemplateContext {
+    Map<String, Dependency> dependencies = null;
+
+    /**
+     * Set when attributes are evaluated outside of this context, on objects
+     * whose values are not recorded
+     */
+    boolean untracked = false;
+
+    @Override
+    public Object evalVariable(String varName) {
+      Object value = context.evalVariable(varName);
+      record("$" + varName, new Dependency(Dependency.VARIABLE, varName, 0, value));
+      return value;
+    }
+
+    @Override
+    public Object evalAttribute(String attrName) {
+      Object value = context.evalAttribute(attrName);
+      record("#" + attrName, new Dependency(Dependency.ATTRIBUTE, attrName, 0, value));
+      return value;
+    }
+
+    @Override
+    public Object evalAttribute(String attrName, AttributeSite site) {
+      Object value = context.evalAttribute(attrName, site);
+      record("#" + attrName, new Dependency(attrName, site, value));
+      return value;
+    }
+
+    @Override
+    public Object evalAttribute(AttributePath path) {
+      Object value = context.evalAttribute(path);
+      record("#" + path, new Dependency(path, value));
+      return value;
+    }
+
+    @Override
+    public ValueFormatters getValueFormatters() {
+      return context.getValueFormatters();
+    }
+
+    // The attribute caches are only requested by code that evaluates
+    // attributes on other objects than the context object, such as join
+    // projections and nested scopes.
+
+    @Override
+    public AttributeCache getAttributeCache() {
+      untracked = true;
+      return context.getAttributeCache();
+    }
+
+    @Override
+    public AttributeMemo getAttributeMemo() {
+      untracked = true;
+      return context.getAttributeMemo();
+    }
+
+    @Override
+    public AttributeResultCache getAttributeResultCache() {
+      untracked = true;
+      return context.getAttributeResultCache();
+    }
+
+    @Override
+    public String evalIndentation(int level) {
+      String value = context.evalIndentation(level);
+      record(" " + level, new Dependency(Dependency.INDENTATION, null, level, value));
+      return value;
+    }
+
+    private void record(String key, Dependency dependency) {
+      if (!dependencies.containsKey(key)) {
+        dependencies.put(key, dependency);
+      }
+    }
+
+    @Override
+    public void expand(TemplateContext tc, String templateName, PrintStream out) {
+      context.expand(tc, templateName, out);
+    }
+
+    @Override
+    public void expand(TemplateContext tc, String templateName, PrintWriter out) {
+      context.expand(tc, templateName, out);
+    }
+
+    @Override
+    public void expand(TemplateContext tc, String templateName, StringBuffer out) {
+      context.expand(tc, templateName, out);
+    }
+
+    @Override
+    public void expand(TemplateContext tc, String templateName, StringBuilder out) {
+      context.expand(tc, templateName, out);
+    }
+
+    @Override
+    public void expand(TemplateContext tc, String templateName, Appendable out)
+        throws IOException {
+      context.expand(tc, templateName, out);
+    }
+
+    @Override
+    public void expand(TemplateContext tc, String templateName, ByteOutput out)
+        throws IOException {
+      context.expand(tc, templateName, out);
+    }
+
+    @Override
+    public Template getTemplate(String templateName) {
+      return context.getTemplate(templateName);
+    }
+
+    @Override
+    public void bind(String varName, Object value) {
+      context.bind(varName, value);
+    }
+
+    @Override
+    public void flushVariables() {
+      context.flushVariables();
+    }
+  }
+
+  private final TemplateContext context;
+  private final String templateName;
+  private final Template template;
+  private final RecordingContext recorder = new RecordingContext();
+  private final List<Region> regions = new ArrayList<Region>();
+  private final List<Change> changes = new ArrayList<Change>();
+  private int expandedLines = 0;
+
+  /**
+   * @param context The context to expand the template in
+   * @param templateName The template to expand
+   * @throws IllegalArgumentException if the template does not exist, or
+   * the context does not expose its templates through
+   * {@link TemplateContext#getTemplate(String)}
+   */
+  public IncrementalExpansion(TemplateContext context, String templateName) {
+    this.context = context;
+    this.templateName = templateName;
+    this.template = context.getTemplate(templateName);
+    if (template == null) {
+      throw new IllegalArgumentException("unknown template '" + templateName + "'");
+    }
+    for (int i = 0; i < template.lines.size(); ++i) {
+      regions.add(new Region());
+    }
+  }
+
+  /**
+   * Expand the template, re-expanding only the lines whose inputs have
+   * changed since the previous expansion.
+   * @return The template expansion
+   */
+  public String expand() {
+    changes.clear();
+    expandedLines = 0;
+    StringBuilder out = new StringBuilder();
+    StringBuilder buf = new StringBuilder();
+    try {
+      for (int i = 0; i < regions.size(); ++i) {
+        Region region = regions.get(i);
+        if (region.output == null || !isValid(region)) {
+          List<Fragment> line = template.lines.get(i);
+          recorder.dependencies = new LinkedHashMap<String, Dependency>();
+          recorder.untracked = false;
+          template.expandLine(recorder, line, buf);
+          String output = buf.toString();
+          expandedLines += 1;
+          if (region.output != null && !region.output.equals(output)) {
+            changes.add(new Change(i, out.length(), region.output, output));
+          }
+          region.output = output;
+          region.dependencies = recorder.untracked
+              ? null : recorder.dependencies.values();
+          recorder.dependencies = null;
+        }
+        out.append(region.output);
+      }
+    } catch (TemplateExpansionWarning e) {
+      throw new TemplateExpansionWarning("while expanding template '"
+          + templateName + "': " + e.getProblem());
+    }
+    return out.toString();
+  }
+
+  private boolean isValid(Region region) {
+    if (region.dependencies == null) {
+      return false;
+    }
+    try {
+      for (Dependency dependency: region.dependencies) {
+        if (!dependency.isValid(context)) {
+          return false;
+        }
+      }
+      return true;
+    } catch (RuntimeException e) {
+      // Re-expand the line to report the problem.
+      return false;
+    }
+  }
+
+  /**
+   * @return The lines that changed in the last expansion. Lines expanded
+   * for the first time are not included.
+   */
+  public List<Change> getChanges() {
+    return Collections.unmodifiableList(changes);
+  }
+
+  /**
+   * @return The number of template lines that were expanded in the last
+   * expansion, rather than reused
+   */
+  public int getExpandedLines() {
+    return expandedLines;
+  }
+
+  /**
+   * Forget all recorded expansions, so that the next expansion expands
+   * every line.
+   */
+  public void reset() {
+    for (Region region: regions) {
+      region.output = null;
+      region.dependencies = Collections.emptyList();
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the value is a string, a boxed primitive or
+   * an enum constant, whose string form can not change
+   */
+  private static boolean isImmutable(Object value) {
+    return value instanceof String || value instanceof Integer
+        || value instanceof Long || value instanceof Boolean
+        || value instanceof Character || value instanceof Double
+        || value instanceof Float || value instanceof Short
+        || value instanceof Byte || value instanceof Enum;
+  }
+
+  /**
+   * @return A comparable snapshot of the value, as it would be expanded
+   */
+  private Object fingerprint(Object value) {
+    ValueFormatters formatters = context.getValueFormatters();
+    if (value instanceof Iterable || (value != null && value.getClass().isArray())) {
+      List<String> elements = new ArrayList<String>();
+      Iterator<?> iterator = Sequences.iterator(value);
+      while (iterator.hasNext()) {
+        elements.add(formatters.format(iterator.next()));
+      }
+      return elements;
+    }
+    return formatters.format(value);
+  }
+}
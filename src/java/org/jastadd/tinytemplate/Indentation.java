@@ -30,6 +30,7 @@
 package org.jastadd.tinytemplate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.jastadd.tinytemplate.fragment.AbstractFragment;
@@ -68,7 +69,12 @@ public class Indentation {
   }
 
   private final String indentation;
-  private final List<String> ind = new ArrayList<String>(32);
+
+  /**
+   * Indentation strings by level. The array is replaced, never modified,
+   * when more levels are needed, so that it can be read without locking.
+   */
+  private volatile String[] ind = { "" };
 
   private static final List<Fragment> fragments =
     new ArrayList<Fragment>(32);
@@ -79,7 +85,6 @@ public class Indentation {
    */
   public Indentation(String indent) {
     indentation = indent;
-    ind.add("");
   }
 
   /**
@@ -98,10 +103,24 @@ public class Indentation {
    * @return The indentation string for the given indentation level
    */
   public String get(int level) {
-    while (ind.size() < (level+1)) {
-      ind.add(ind.get(ind.size()-1) + indentation);
+    String[] levels = ind;
+    if (level < levels.length) {
+      return levels[level];
+    }
+    return grow(level);
+  }
+
+  private synchronized String grow(int level) {
+    String[] levels = ind;
+    if (level >= levels.length) {
+      int size = levels.length;
+      levels = Arrays.copyOf(levels, Math.max(level + 1, 2 * size));
+      for (int i = size; i < levels.length; ++i) {
+        levels[i] = levels[i-1] + indentation;
+      }
+      ind = levels;
     }
-    return ind.get(level);
+    return levels[level];
   }
 
 }
@@ -0,0 +1,342 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jastadd.io.ByteOutput;
+
+/**
+ * The context of a loop body. Binds the loop variable and forwards
+ * everything else, including attribute evaluation, to the enclosing
+ * context.
+ *
+ * <p>Attributes of the element are read through variable paths: the
+ * variable <code>x.name</code> evaluates the attribute <code>name</code> on
+ * the element bound to the loop variable <code>x</code>. Variables bound on
+ * the loop context are local to the current iteration: they are unbound when
+ * the loop variable is rebound.
+ *
+ * <p>One loop context is used for all iterations of a loop: the loop
+ * variable is rebound for each element. Elements of int, long and boolean
+ * arrays are bound without boxing.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class LoopContext extends TemplateContext {
+
+  private static final int OBJECT = 0;
+  private static final int INT = 1;
+  private static final int LONG = 2;
+  private static final int BOOLEAN = 3;
+
+  private final TemplateContext parentContext;
+  private final String variable;
+
+  private int kind = OBJECT;
+  private Object value = null;
+  private long primitive = 0;
+
+  /**
+   * The attribute paths of the loop variable, by variable name
+   */
+  private final Map<String, AttributePath> paths = new HashMap<String, AttributePath>();
+
+  /**
+   * Variables bound in the loop body, or <code>null</code> if there are none
+   */
+  private SimpleContext locals = null;
+
+  /**
+   * @param parent The enclosing context
+   * @param variable The name of the loop variable
+   */
+  public LoopContext(TemplateContext parent, String variable) {
+    this.parentContext = parent;
+    this.variable = variable;
+  }
+
+  /**
+   * Bind the loop variable
+   * @param value
+   */
+  public void setValue(Object value) {
+    this.kind = OBJECT;
+    this.value = value;
+    flushVariables();
+  }
+
+  /**
+   * Bind the loop variable to an int value
+   * @param value
+   */
+  public void setInt(int value) {
+    setPrimitive(INT, value);
+  }
+
+  /**
+   * Bind the loop variable to a long value
+   * @param value
+   */
+  public void setLong(long value) {
+    setPrimitive(LONG, value);
+  }
+
+  /**
+   * Bind the loop variable to a boolean value
+   * @param value
+   */
+  public void setBoolean(boolean value) {
+    setPrimitive(BOOLEAN, value ? 1 : 0);
+  }
+
+  private void setPrimitive(int kind, long value) {
+    this.kind = kind;
+    this.value = null;
+    this.primitive = value;
+    flushVariables();
+  }
+
+  @Override
+  public Object evalVariable(String varName) {
+    if (!variable.equals(varName)) {
+      if (isPath(varName)) {
+        return evalPath(varName);
+      }
+      return outerContext().evalVariable(varName);
+    }
+    return element();
+  }
+
+  /**
+   * @return The value bound to the loop variable
+   */
+  private Object element() {
+    switch (kind) {
+      case INT:
+        return (int) primitive;
+      case LONG:
+        return primitive;
+      case BOOLEAN:
+        return primitive != 0;
+      default:
+        return value;
+    }
+  }
+
+  @Override
+  public void expandVariable(String varName, TemplateContext renderContext,
+      StringBuilder out) {
+    if (!variable.equals(varName)) {
+      if (isPath(varName)) {
+        appendValue(evalPath(varName), renderContext, out);
+      } else {
+        outerContext().expandVariable(varName, renderContext, out);
+      }
+      return;
+    }
+    switch (kind) {
+      case INT:
+        getValueFormatters().append((int) primitive, out);
+        break;
+      case LONG:
+        getValueFormatters().append(primitive, out);
+        break;
+      case BOOLEAN:
+        getValueFormatters().append(primitive != 0, out);
+        break;
+      default:
+        appendValue(value, renderContext, out);
+    }
+  }
+
+  @Override
+  public boolean evalBooleanVariable(String varName) {
+    if (!variable.equals(varName)) {
+      if (isPath(varName)) {
+        return isTrue(evalPath(varName));
+      }
+      return outerContext().evalBooleanVariable(varName);
+    }
+    switch (kind) {
+      case BOOLEAN:
+        return primitive != 0;
+      case OBJECT:
+        return isTrue(value);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the variable name is an attribute path on
+   * the loop variable
+   */
+  private boolean isPath(String varName) {
+    return varName.length() > variable.length()
+        && varName.charAt(variable.length()) == '.'
+        && varName.startsWith(variable);
+  }
+
+  /**
+   * Evaluate an attribute path on the element bound to the loop variable
+   */
+  private Object evalPath(String varName) {
+    AttributePath path = paths.get(varName);
+    if (path == null) {
+      path = new AttributePath(varName.substring(variable.length() + 1));
+      paths.put(varName, path);
+    }
+    return path.evalOn(element(), this);
+  }
+
+  /**
+   * @return The context that variables other than the loop variable are
+   * looked up in
+   */
+  private TemplateContext outerContext() {
+    return locals != null ? locals : parentContext;
+  }
+
+  @Override
+  public Object evalAttribute(String attrName) {
+    return parentContext.evalAttribute(attrName);
+  }
+
+  @Override
+  public Object evalAttribute(String attrName, AttributeSite site) {
+    return parentContext.evalAttribute(attrName, site);
+  }
+
+  @Override
+  public Object evalAttribute(AttributePath path) {
+    return parentContext.evalAttribute(path);
+  }
+
+  @Override
+  public AttributeCache getAttributeCache() {
+    return parentContext.getAttributeCache();
+  }
+
+  @Override
+  public ValueFormatters getValueFormatters() {
+    return parentContext.getValueFormatters();
+  }
+
+  @Override
+  public AttributeMemo getAttributeMemo() {
+    return parentContext.getAttributeMemo();
+  }
+
+  @Override
+  public AttributeResultCache getAttributeResultCache() {
+    return parentContext.getAttributeResultCache();
+  }
+
+  @Override
+  public String evalIndentation(int level) {
+    return parentContext.evalIndentation(level);
+  }
+
+  @Override
+  public void expand(TemplateContext tc, String templateName, PrintStream out) {
+    parentContext.expand(tc, templateName, out);
+  }
+
+  @Override
+  public void expand(TemplateContext tc, String templateName, PrintWriter out) {
+    parentContext.expand(tc, templateName, out);
+  }
+
+  @Override
+  public void expand(TemplateContext tc, String templateName, StringBuffer out) {
+    parentContext.expand(tc, templateName, out);
+  }
+
+  @Override
+  public void expand(TemplateContext tc, String templateName, StringBuilder out) {
+    parentContext.expand(tc, templateName, out);
+  }
+
+  @Override
+  public void expand(TemplateContext tc, String templateName, Appendable out)
+      throws IOException {
+    parentContext.expand(tc, templateName, out);
+  }
+
+  @Override
+  public void expand(TemplateContext tc, String templateName, ByteOutput out)
+      throws IOException {
+    parentContext.expand(tc, templateName, out);
+  }
+
+  @Override
+  public Template getTemplate(String templateName) {
+    return parentContext.getTemplate(templateName);
+  }
+
+  @Override
+  public void bind(String varName, Object value) {
+    localContext().bind(varName, value);
+  }
+
+  @Override
+  public void bindInt(String varName, int value) {
+    localContext().bindInt(varName, value);
+  }
+
+  @Override
+  public void bindLong(String varName, long value) {
+    localContext().bindLong(varName, value);
+  }
+
+  @Override
+  public void bindBoolean(String varName, boolean value) {
+    localContext().bindBoolean(varName, value);
+  }
+
+  @Override
+  public void flushVariables() {
+    if (locals != null) {
+      locals.flushVariables();
+    }
+  }
+
+  private SimpleContext localContext() {
+    if (locals == null) {
+      locals = new SimpleContext(parentContext, null);
+    }
+    return locals;
+  }
+}
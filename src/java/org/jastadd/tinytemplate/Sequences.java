@@ -0,0 +1,236 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Sequence values that can be joined in templates.
+ *
+ * <p>A sequence is an <code>Iterable</code>, an object or primitive array,
+ * an <code>Iterator</code>, an <code>Enumeration</code>, or, when running
+ * on Java 8 or later, a <code>java.util.stream.BaseStream</code>. Iterators,
+ * enumerations and streams are consumed lazily, one element at a time.
+ * Iterators, enumerations and streams that are <code>AutoCloseable</code>
+ * can only be joined once, and are closed by {@link #close(Object)} after
+ * they have been joined.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class Sequences {
+
+  /**
+   * The stream base interface, or <code>null</code> if not available
+   */
+  private static final Class<?> BASE_STREAM;
+
+  /**
+   * The iterator method of the stream base interface
+   */
+  private static final Method STREAM_ITERATOR;
+
+  static {
+    Class<?> type = null;
+    Method iterator = null;
+    try {
+      type = Class.forName("java.util.stream.BaseStream");
+      iterator = type.getMethod("iterator");
+    } catch (ClassNotFoundException e) {
+      type = null;
+    } catch (NoSuchMethodException e) {
+      type = null;
+    }
+    BASE_STREAM = type;
+    STREAM_ITERATOR = iterator;
+  }
+
+  private Sequences() {
+  }
+
+  /**
+   * @param value
+   * @return <code>true</code> if the value is a sequence
+   */
+  public static boolean isSequence(Object value) {
+    return value instanceof Iterable
+        || value instanceof Iterator
+        || value instanceof Enumeration
+        || (value != null && value.getClass().isArray())
+        || isStream(value);
+  }
+
+  /**
+   * @param value
+   * @return <code>true</code> if the value is an array of a primitive type
+   */
+  public static boolean isPrimitiveArray(Object value) {
+    return value != null && value.getClass().isArray()
+        && value.getClass().getComponentType().isPrimitive();
+  }
+
+  private static boolean isStream(Object value) {
+    return BASE_STREAM != null && BASE_STREAM.isInstance(value);
+  }
+
+  /**
+   * Create an iterator over the elements of a sequence. The elements of
+   * primitive arrays are boxed by the iterator.
+   * @param value
+   * @return An iterator over the elements of the sequence, or
+   * <code>null</code> if the value is not a sequence
+   */
+  public static Iterator<?> iterator(Object value) {
+    if (value instanceof Iterable) {
+      return ((Iterable<?>) value).iterator();
+    } else if (value instanceof Iterator) {
+      return (Iterator<?>) value;
+    } else if (value instanceof Enumeration) {
+      return new EnumerationIterator((Enumeration<?>) value);
+    } else if (value != null && value.getClass().isArray()) {
+      return new ArrayIterator(value);
+    } else if (isStream(value)) {
+      try {
+        return (Iterator<?>) STREAM_ITERATOR.invoke(value);
+      } catch (IllegalAccessException e) {
+        throw new TemplateExpansionWarning("failed to iterate stream: " + e.getMessage());
+      } catch (InvocationTargetException e) {
+        throw new TemplateExpansionWarning("failed to iterate stream: "
+            + e.getCause().getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Close a sequence after it has been joined, if it can only be iterated
+   * once and is <code>AutoCloseable</code>. Iterables are not closed, since
+   * they can be joined again.
+   * @param value
+   * @throws TemplateExpansionWarning if closing the sequence fails
+   */
+  public static void close(Object value) {
+    if (value instanceof AutoCloseable && !(value instanceof Iterable)) {
+      try {
+        ((AutoCloseable) value).close();
+      } catch (Exception e) {
+        throw new TemplateExpansionWarning("failed to close sequence: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Append an element of an array to the output. Elements of primitive
+   * arrays are appended without boxing, unless a value formatter has been
+   * registered.
+   * @param array
+   * @param index
+   * @param formatters
+   * @param out
+   */
+  public static void appendElement(Object array, int index,
+      ValueFormatters formatters, StringBuilder out) {
+    if (array instanceof int[]) {
+      formatters.append(((int[]) array)[index], out);
+    } else if (array instanceof long[]) {
+      formatters.append(((long[]) array)[index], out);
+    } else if (array instanceof boolean[]) {
+      formatters.append(((boolean[]) array)[index], out);
+    } else if (array instanceof double[]) {
+      formatters.append(((double[]) array)[index], out);
+    } else if (array instanceof float[]) {
+      formatters.append(((float[]) array)[index], out);
+    } else if (array instanceof char[]) {
+      formatters.append(((char[]) array)[index], out);
+    } else if (array instanceof short[]) {
+      formatters.append(((short[]) array)[index], out);
+    } else if (array instanceof byte[]) {
+      formatters.append(((byte[]) array)[index], out);
+    } else {
+      formatters.append(((Object[]) array)[index], out);
+    }
+  }
+
+  private static class EnumerationIterator implements Iterator<Object> {
+    private final Enumeration<?> enumeration;
+
+    EnumerationIterator(Enumeration<?> enumeration) {
+      this.enumeration = enumeration;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return enumeration.hasMoreElements();
+    }
+
+    @Override
+    public Object next() {
+      return enumeration.nextElement();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class ArrayIterator implements Iterator<Object> {
+    private final Object array;
+    private final int length;
+    private int index = 0;
+
+    ArrayIterator(Object array) {
+      this.array = array;
+      this.length = Array.getLength(array);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index < length;
+    }
+
+    @Override
+    public Object next() {
+      if (index >= length) {
+        throw new NoSuchElementException();
+      }
+      return Array.get(array, index++);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
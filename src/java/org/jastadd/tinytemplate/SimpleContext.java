@@ -29,11 +29,14 @@
  */
 package org.jastadd.tinytemplate;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.jastadd.io.ByteOutput;
+
 /**
  * A simple template context
  *
@@ -43,9 +46,60 @@ public class SimpleContext extends TemplateContext {
 
   private final TemplateContext parentContext;
 
+  /**
+   * A primitive variable value
+   */
+  private static class PrimitiveValue {
+    static final int INT = 0;
+    static final int LONG = 1;
+    static final int BOOLEAN = 2;
+
+    int kind;
+    long value;
+
+    Object box() {
+      switch (kind) {
+        case INT:
+          return (int) value;
+        case LONG:
+          return value;
+        default:
+          return value != 0;
+      }
+    }
+
+    void appendTo(ValueFormatters formatters, StringBuilder out) {
+      switch (kind) {
+        case INT:
+          formatters.append((int) value, out);
+          break;
+        case LONG:
+          formatters.append(value, out);
+          break;
+        default:
+          formatters.append(value != 0, out);
+      }
+    }
+  }
+
   private final Map<String, Object> variables = new HashMap<String, Object>();
 
-  private final Object contextObject;
+  /**
+   * Variables bound to primitive values. A variable is bound in at most one
+   * of the variable maps.
+   */
+  private final Map<String, PrimitiveValue> primitives =
+      new HashMap<String, PrimitiveValue>();
+
+  private Object contextObject;
+
+  private final AttributeCache attributeCache;
+
+  private final AttributeMemo attributeMemo;
+
+  private final AttributeResultCache attributeResults;
+
+  private final ValueFormatters valueFormatters;
 
   /**
    * Create a new simple context
@@ -55,6 +109,19 @@ public class SimpleContext extends TemplateContext {
   public SimpleContext(TemplateContext parent, Object context) {
     parentContext = parent;
     contextObject = context;
+    attributeCache = parent.getAttributeCache();
+    attributeMemo = parent.getAttributeMemo();
+    attributeResults = parent.getAttributeResultCache();
+    valueFormatters = parent.getValueFormatters();
+  }
+
+  /**
+   * Change the context object. This allows one context to be reused for
+   * expanding a template with several context objects.
+   * @param context The new context object
+   */
+  public void setContextObject(Object context) {
+    contextObject = context;
   }
 
   @Override
@@ -62,14 +129,94 @@ public class SimpleContext extends TemplateContext {
     Object var = variables.get(varName);
     if (var != null) {
       return var;
-    } else {
-      return parentContext.evalVariable(varName);
     }
+    if (!primitives.isEmpty()) {
+      PrimitiveValue primitive = primitives.get(varName);
+      if (primitive != null) {
+        return primitive.box();
+      }
+    }
+    return parentContext.evalVariable(varName);
+  }
+
+  @Override
+  public void expandVariable(String varName, TemplateContext renderContext,
+      StringBuilder out) {
+    Object var = variables.get(varName);
+    if (var != null) {
+      appendValue(var, renderContext, out);
+      return;
+    }
+    if (!primitives.isEmpty()) {
+      PrimitiveValue primitive = primitives.get(varName);
+      if (primitive != null) {
+        primitive.appendTo(valueFormatters, out);
+        return;
+      }
+    }
+    parentContext.expandVariable(varName, renderContext, out);
+  }
+
+  @Override
+  public boolean evalBooleanVariable(String varName) {
+    Object var = variables.get(varName);
+    if (var != null) {
+      return isTrue(var);
+    }
+    if (!primitives.isEmpty()) {
+      PrimitiveValue primitive = primitives.get(varName);
+      if (primitive != null) {
+        return primitive.kind == PrimitiveValue.BOOLEAN && primitive.value != 0;
+      }
+    }
+    return parentContext.evalBooleanVariable(varName);
   }
 
   @Override
   public Object evalAttribute(String attribute) {
-    return TinyTemplate.evalAttribute(attribute, contextObject);
+    return evalAttribute(attribute, null);
+  }
+
+  @Override
+  public Object evalAttribute(String attribute, AttributeSite site) {
+    if (attributeMemo != null && attributeMemo.isEnabled()) {
+      return attributeMemo.eval(attribute, contextObject, site, attributeCache);
+    }
+    if (attributeResults != null && attributeResults.isEnabled()) {
+      return attributeResults.eval(attribute, contextObject, site, attributeCache);
+    }
+    return TinyTemplate.evalAttribute(attribute, contextObject, site, attributeCache);
+  }
+
+  @Override
+  Object accessAttribute(String attribute, AttributeSite site) throws Exception {
+    if (attributeMemo != null && attributeMemo.isEnabled()) {
+      return attributeMemo.access(attribute, contextObject, site, attributeCache);
+    }
+    if (attributeResults != null && attributeResults.isEnabled()) {
+      return attributeResults.access(attribute, contextObject, site, attributeCache);
+    }
+    return TinyTemplate.accessAttribute(attribute, contextObject, site, attributeCache);
+  }
+
+  @Override
+  public AttributeCache getAttributeCache() {
+    return attributeCache;
+  }
+
+  @Override
+  public ValueFormatters getValueFormatters() {
+    return valueFormatters;
+  }
+
+  @Override
+  public AttributeMemo getAttributeMemo() {
+    return attributeMemo;
+  }
+
+  @Override
+  public AttributeResultCache getAttributeResultCache() {
+    return attributeResults;
   }
 
   @Override
@@ -97,13 +244,63 @@ public class SimpleContext extends TemplateContext {
     parentContext.expand(tc, templateName, out);
   }
 
+  @Override
+  public void expand(TemplateContext tc, String templateName, Appendable out)
+      throws IOException {
+    parentContext.expand(tc, templateName, out);
+  }
+
+  @Override
+  public void expand(TemplateContext tc, String templateName, ByteOutput out)
+      throws IOException {
+    parentContext.expand(tc, templateName, out);
+  }
+
+  @Override
+  public Template getTemplate(String templateName) {
+    return parentContext.getTemplate(templateName);
+  }
+
   @Override
   public void flushVariables() {
     variables.clear();
+    primitives.clear();
   }
 
   @Override
   public void bind(String varName, Object value) {
     variables.put(varName, value);
+    if (!primitives.isEmpty()) {
+      primitives.remove(varName);
+    }
+  }
+
+  @Override
+  public void bindInt(String varName, int value) {
+    bindPrimitive(varName, PrimitiveValue.INT, value);
+  }
+
+  @Override
+  public void bindLong(String varName, long value) {
+    bindPrimitive(varName, PrimitiveValue.LONG, value);
+  }
+
+  @Override
+  public void bindBoolean(String varName, boolean value) {
+    bindPrimitive(varName, PrimitiveValue.BOOLEAN, value ? 1 : 0);
+  }
+
+  /**
+   * Rebinding a primitive variable reuses its storage.
+   */
+  private void bindPrimitive(String varName, int kind, long value) {
+    PrimitiveValue primitive = primitives.get(varName);
+    if (primitive == null) {
+      primitive = new PrimitiveValue();
+      primitives.put(varName, primitive);
+      variables.remove(varName);
+    }
+    primitive.kind = kind;
+    primitive.value = value;
   }
 }
@@ -29,9 +29,12 @@
  */
 package org.jastadd.tinytemplate;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 
+import org.jastadd.io.ByteOutput;
+
 /**
  * Process a file as a single template declaration.
  * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
@@ -59,6 +62,31 @@ public class SingleTemplateProcessor {
       return parentContext.evalAttribute(attribute);
     }
 
+    @Override
+    public Object evalAttribute(String attribute, AttributeSite site) {
+      return parentContext.evalAttribute(attribute, site);
+    }
+
+    @Override
+    public AttributeCache getAttributeCache() {
+      return parentContext.getAttributeCache();
+    }
+
+    @Override
+    public ValueFormatters getValueFormatters() {
+      return parentContext.getValueFormatters();
+    }
+
+    @Override
+    public AttributeMemo getAttributeMemo() {
+      return parentContext.getAttributeMemo();
+    }
+
+    @Override
+    public AttributeResultCache getAttributeResultCache() {
+      return parentContext.getAttributeResultCache();
+    }
+
     @Override
     public String evalIndentation(int levels) {
       return parentContext.evalIndentation(levels);
@@ -84,6 +112,23 @@ public class SingleTemplateProcessor {
       parentContext.expand(tc, templateName, out);
     }
 
+    @Override
+    public void expand(TemplateContext tc, String templateName, Appendable out)
+        throws IOException {
+      parentContext.expand(tc, templateName, out);
+    }
+
+    @Override
+    public void expand(TemplateContext tc, String templateName, ByteOutput out)
+        throws IOException {
+      parentContext.expand(tc, templateName, out);
+    }
+
+    @Override
+    public Template getTemplate(String templateName) {
+      return parentContext.getTemplate(templateName);
+    }
+
     @Override
     public void flushVariables() {
     }
@@ -29,15 +29,24 @@
  */
 package org.jastadd.tinytemplate;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.jastadd.io.ByteOutput;
 import org.jastadd.tinytemplate.Indentation.IndentationFragment;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.fragment.AbstractFragment;
 import org.jastadd.tinytemplate.fragment.Fragment;
 import org.jastadd.tinytemplate.fragment.NestedIndentationFragment;
+import org.jastadd.tinytemplate.fragment.StaticFragment;
 
 /**
  * Template
@@ -53,6 +62,23 @@ public class Template {
     lines.add(new ArrayList<Fragment>());
   }
 
+  /**
+   * The template file this template was loaded from, or <code>null</code>
+   */
+  private TemplateSource source = null;
+
+  /**
+   * Byte offset in the template file for each template line
+   */
+  private final List<Long> lineOffsets = new ArrayList<Long>();
+
+  /**
+   * Byte offset in the template file of the end of the template
+   */
+  private long sourceEnd = 0;
+
+  private volatile SourceRuns sourceRuns = null;
+
   /**
    * Expand the template to a PrintStream
    * @param context
@@ -98,11 +124,314 @@ public class Template {
    * @param out
    */
   public void expand(TemplateContext context, StringBuilder out) {
+    // Lines are expanded directly into the output, and removed again if
+    // they are deleted.
+    for (List<Fragment> line: lines) {
+      int start = out.length();
+      boolean expanded = false;
+      for (Fragment fragment : line) {
+        expanded |= fragment.isExpansion();
+        fragment.expand(context, out);
+      }
+      if (expanded && isEmptyLine(out, start)) {
+        out.setLength(start);
+      }
+    }
+  }
+
+  /**
+   * Expand the template to an Appendable.
+   *
+   * <p>Each line is expanded into a heap buffer before it is appended to the
+   * output, because a line is removed if it expands to only whitespace. A
+   * single line that expands to very large content, for example through an
+   * include or a join, is therefore held in memory in full.
+   * @param context
+   * @param out
+   * @throws IOException
+   */
+  public void expand(TemplateContext context, Appendable out) throws IOException {
     StringBuilder buf = new StringBuilder();
     for (List<Fragment> line: lines) {
       expandLine(context, line, buf);
-      out.append(buf.toString());
+      out.append(buf);
+    }
+  }
+
+  /**
+   * Expand the template to a byte output. Static fragments are written in
+   * their pre-encoded form, only the dynamic parts of the template are
+   * encoded during expansion.
+   *
+   * <p>If the template was loaded from a template source and the output
+   * supports transfers, large runs of static lines are transferred directly
+   * from the template file. The runs are verified again if the size or
+   * modification time of the file changes.
+   * @param context
+   * @param out
+   * @throws IOException
+   */
+  public void expand(TemplateContext context, ByteOutput out) throws IOException {
+    SourceRuns runs = out.isTransferSupported() ? sourceRuns(context) : null;
+    FileChannel channel = null;
+    try {
+      StringBuilder buf = new StringBuilder();
+      int[] marks = new int[16];
+      for (int index = 0; index < lines.size(); ++index) {
+        if (runs != null && runs.length[index] > 0) {
+          if (channel == null) {
+            channel = source.open();
+            if (channel.size() != runs.fileSize) {
+              // The file changed after the runs were verified.
+              channel.close();
+              channel = null;
+              runs = null;
+              sourceRuns = null;
+            }
+          }
+          if (runs != null) {
+            out.transfer(channel, runs.offset[index], runs.length[index]);
+            index = runs.end[index] - 1;
+            continue;
+          }
+        }
+        List<Fragment> line = lines.get(index);
+        if (!hasExpansion(line)) {
+          // The line can not be deleted, so write it fragment by fragment.
+          for (Fragment fragment: line) {
+            if (fragment instanceof StaticFragment) {
+              out.write(((StaticFragment) fragment).getBytes());
+            } else {
+              buf.setLength(0);
+              fragment.expand(context, buf);
+              out.write(buf);
+            }
+          }
+        } else {
+          if (marks.length < line.size()) {
+            marks = new int[line.size()];
+          }
+          buf.setLength(0);
+          for (int i = 0; i < line.size(); ++i) {
+            marks[i] = buf.length();
+            line.get(i).expand(context, buf);
+          }
+          // Non-empty lines that become empty after expansion are deleted.
+          if (isEmptyLine(buf)) {
+            continue;
+          }
+          for (int i = 0; i < line.size(); ++i) {
+            Fragment fragment = line.get(i);
+            int end = (i+1) < line.size() ? marks[i+1] : buf.length();
+            if (fragment instanceof StaticFragment) {
+              out.write(((StaticFragment) fragment).getBytes());
+            } else {
+              out.write(buf, marks[i], end);
+            }
+          }
+        }
+      }
+    } finally {
+      if (channel != null) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Runs of static template lines that can be transferred from the
+   * template file.
+   */
+  private static class SourceRuns {
+    /**
+     * The indentation that the runs were verified with
+     */
+    final String indentation;
+
+    /**
+     * Size and modification time of the template file when the runs were
+     * verified
+     */
+    final long fileSize;
+    final long modified;
+
+    /**
+     * Indexed by the first line of a run
+     */
+    final long[] offset;
+    final long[] length;
+    final int[] end;
+
+    SourceRuns(String indentation, long fileSize, long modified, int size) {
+      this.indentation = indentation;
+      this.fileSize = fileSize;
+      this.modified = modified;
+      offset = new long[size];
+      length = new long[size];
+      end = new int[size];
+    }
+  }
+
+  /**
+   * @param context
+   * @return The transferable static runs of this template, or
+   * <code>null</code> if the template has no source
+   * @throws IOException
+   */
+  private SourceRuns sourceRuns(TemplateContext context) throws IOException {
+    if (source == null || lineOffsets.size() != lines.size()) {
+      return null;
     }
+    String indentation = context.evalIndentation(1);
+    SourceRuns runs = sourceRuns;
+    File file = source.getFile();
+    if (runs == null || !runs.indentation.equals(indentation)
+        || runs.fileSize != file.length() || runs.modified != file.lastModified()) {
+      runs = findSourceRuns(context, indentation);
+      sourceRuns = runs;
+    }
+    return runs;
+  }
+
+  /**
+   * Find runs of static lines whose expansion is identical to the
+   * corresponding bytes in the template file.
+   */
+  private SourceRuns findSourceRuns(TemplateContext context, String indentation)
+      throws IOException {
+    File file = source.getFile();
+    long modified = file.lastModified();
+    FileChannel channel = source.open();
+    SourceRuns runs = new SourceRuns(indentation, channel.size(), modified, lines.size());
+    try {
+      int index = 0;
+      while (index < lines.size()) {
+        int end = index;
+        while (end < lines.size() && isStaticLine(lines.get(end))) {
+          end += 1;
+        }
+        if (end > index) {
+          long offset = lineOffsets.get(index);
+          long length = (end < lines.size() ? lineOffsets.get(end) : sourceEnd) - offset;
+          if (length >= source.getTransferThreshold()
+              && offset + length <= channel.size()
+              && matchesSource(context, index, end,
+                  channel.map(FileChannel.MapMode.READ_ONLY, offset, length))) {
+            runs.offset[index] = offset;
+            runs.length[index] = length;
+            runs.end[index] = end;
+          }
+          index = end;
+        } else {
+          index += 1;
+        }
+      }
+    } finally {
+      channel.close();
+    }
+    return runs;
+  }
+
+  private static boolean isStaticLine(List<Fragment> line) {
+    for (Fragment fragment: line) {
+      if (!(fragment instanceof StaticFragment) && !fragment.isIndentation()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> if the expansion of the given lines is
+   * identical to the mapped source bytes
+   */
+  private boolean matchesSource(TemplateContext context, int start, int end,
+      ByteBuffer source) {
+    StringBuilder buf = new StringBuilder();
+    for (int index = start; index < end; ++index) {
+      for (Fragment fragment: lines.get(index)) {
+        byte[] bytes;
+        if (fragment instanceof StaticFragment) {
+          bytes = ((StaticFragment) fragment).getBytes();
+        } else {
+          buf.setLength(0);
+          fragment.expand(context, buf);
+          bytes = buf.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        if (bytes.length > source.remaining()) {
+          return false;
+        }
+        for (byte b: bytes) {
+          if (source.get() != b) {
+            return false;
+          }
+        }
+      }
+    }
+    return !source.hasRemaining();
+  }
+
+  /**
+   * Set the template source and the source offset of the first line.
+   * @param templateSource
+   * @param offset
+   */
+  void setSource(TemplateSource templateSource, long offset) {
+    source = templateSource;
+    lineOffsets.clear();
+    lineOffsets.add(offset);
+    sourceRuns = null;
+  }
+
+  /**
+   * Record the source offset of the last added line.
+   * @param offset
+   */
+  void addSourceLine(long offset) {
+    if (source != null) {
+      lineOffsets.add(offset);
+    }
+  }
+
+  /**
+   * Record the source offset of the end of the template.
+   * @param offset
+   */
+  void setSourceEnd(long offset) {
+    sourceEnd = offset;
+  }
+
+  private void removeSourceLine(int line) {
+    if (source != null && line < lineOffsets.size()) {
+      lineOffsets.remove(line);
+    }
+  }
+
+  /**
+   * Resolve the attributes referenced in this template against a context
+   * class. Included templates, and fragments that do not extend
+   * {@link AbstractFragment}, are not linked.
+   * @param type The context class
+   * @param cache Cache used to find the attribute accessors
+   * @throws SyntaxError if the context class is missing an attribute
+   */
+  public void link(Class<?> type, AttributeCache cache) throws SyntaxError {
+    for (List<Fragment> line: lines) {
+      for (Fragment fragment: line) {
+        if (fragment instanceof AbstractFragment) {
+          ((AbstractFragment) fragment).link(type, cache);
+        }
+      }
+    }
+  }
+
+  static boolean hasExpansion(List<Fragment> line) {
+    for (Fragment fragment: line) {
+      if (fragment.isExpansion()) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -125,7 +454,11 @@ public class Template {
   }
 
   private boolean isEmptyLine(StringBuilder buf) {
-    for (int i = 0; i < buf.length(); ++i) {
+    return isEmptyLine(buf, 0);
+  }
+
+  private boolean isEmptyLine(StringBuilder buf, int start) {
+    for (int i = start; i < buf.length(); ++i) {
       if (!Character.isWhitespace(buf.charAt(i))) {
         return false;
       }
@@ -186,6 +519,24 @@ public class Template {
     trimLineIfEmpty(lines.size()-1);
   }
 
+  /**
+   * @return <code>true</code> if the last line of the template contains only
+   * whitespace and follows a line break, so that
+   * {@link #trimTrailingEmptyLine()} would remove the line break
+   */
+  public boolean endsWithEmptyLine() {
+    int last = lines.size()-1;
+    if (last <= 0) {
+      return false;
+    }
+    for (Fragment fragment: lines.get(last)) {
+      if (!fragment.isWhitespace()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Remove the given line if it contains only whitespace
    * @param line Index of line to trim
@@ -197,6 +548,7 @@ public class Template {
       }
     }
     lines.remove(line);
+    removeSourceLine(line);
     if (line > 0) {
       // remove newline from previous line
       List<Fragment> prevLine = lines.get(line-1);
@@ -205,6 +557,7 @@ public class Template {
         prevLine.remove(last);
         if (last == 0) {
           lines.remove(line-1);
+          removeSourceLine(line-1);
         }
       }
     }
@@ -212,6 +565,7 @@ public class Template {
     if (lines.isEmpty()) {
       // Lines must not be empty.
       lines.add(new ArrayList<Fragment>());
+      source = null;
     }
   }
 
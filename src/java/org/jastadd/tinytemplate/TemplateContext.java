@@ -29,10 +29,17 @@
  */
 package org.jastadd.tinytemplate;
 
-import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.channels.WritableByteChannel;
+
+import org.jastadd.io.ByteOutput;
+import org.jastadd.io.ChannelOutput;
+import org.jastadd.io.FileUpdateStream;
+import org.jastadd.io.StreamOutput;
 
 /**
  * Template context is needed to expand a template. The template context
@@ -40,6 +47,11 @@ import java.io.PrintWriter;
  * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
  */
 public abstract class TemplateContext {
+  /**
+   * Channel output reused by channel expansions, to keep its buffer pool
+   */
+  private ChannelOutput channelOutput = null;
+
   /**
    * Lookup variable on the variable stack and return the variable expansion
    * if it was found.
@@ -49,6 +61,83 @@ public abstract class TemplateContext {
    */
   abstract public Object evalVariable(String varName);
 
+  /**
+   * Append the value of a variable to the output.
+   * @param varName
+   * @param out
+   */
+  public void expandVariable(String varName, StringBuilder out) {
+    expandVariable(varName, this, out);
+  }
+
+  /**
+   * Append the value of a variable to the output.
+   * @param varName
+   * @param renderContext The context that renderable values are rendered in
+   * @param out
+   */
+  public void expandVariable(String varName, TemplateContext renderContext,
+      StringBuilder out) {
+    appendValue(evalVariable(varName), renderContext, out);
+  }
+
+  /**
+   * Append a value to the output. Renderable values are rendered directly
+   * into the output, other values are formatted by the value formatters.
+   * @param value
+   * @param context The context that renderable values are rendered in
+   * @param out
+   */
+  public static void appendValue(Object value, TemplateContext context,
+      StringBuilder out) {
+    if (value instanceof Renderable) {
+      render((Renderable) value, context, out);
+    } else {
+      context.getValueFormatters().append(value, out);
+    }
+  }
+
+  /**
+   * Render a value to the output.
+   * @param value
+   * @param context The context to render the value in
+   * @param out
+   * @throws TemplateExpansionWarning if rendering the value fails with an
+   * I/O error
+   */
+  public static void render(Renderable value, TemplateContext context,
+      Appendable out) {
+    try {
+      value.render(context, out);
+    } catch (IOException e) {
+      throw new TemplateExpansionWarning("failed to render value: "
+          + e.getMessage());
+    }
+  }
+
+  /**
+   * Evaluate a variable as a condition.
+   * @param varName
+   * @return <code>true</code> if the variable value is true
+   * @see #isTrue(Object)
+   */
+  public boolean evalBooleanVariable(String varName) {
+    return isTrue(evalVariable(varName));
+  }
+
+  /**
+   * A condition value is true if it is the Boolean <code>true</code>, or if
+   * its string representation is <code>"true"</code>.
+   * @param value
+   * @return <code>true</code> if the value is true when used as a condition
+   */
+  public static boolean isTrue(Object value) {
+    if (value instanceof Boolean) {
+      return (Boolean) value;
+    }
+    return value != null && value.toString().equals("true");
+  }
+
   /**
    * Evaluate an attribute
    * @param attrName
@@ -56,6 +145,69 @@ public abstract class TemplateContext {
    */
   abstract public Object evalAttribute(String attrName);
 
+  /**
+   * Evaluate an attribute at a template site with an inline cache
+   * @param attrName
+   * @param site The inline cache of the evaluation site
+   * @return The value returned from the attribute
+   */
+  public Object evalAttribute(String attrName, AttributeSite site) {
+    return evalAttribute(attrName);
+  }
+
+  /**
+   * Evaluate an attribute at a template site, and throw the exception if the
+   * evaluation fails. Used for the first step of an attribute path, so that
+   * the rest of the path is not evaluated on a failed value. The default
+   * implementation can not detect failures.
+   * @param attrName
+   * @param site The inline cache of the evaluation site
+   * @return The value returned from the attribute
+   * @throws Exception if the attribute could not be evaluated
+   */
+  Object accessAttribute(String attrName, AttributeSite site) throws Exception {
+    return evalAttribute(attrName, site);
+  }
+
+  /**
+   * Evaluate an attribute path
+   * @param path
+   * @return The value of the attribute path
+   */
+  public Object evalAttribute(AttributePath path) {
+    return path.eval(this);
+  }
+
+  /**
+   * @return The attribute cache used to evaluate attributes in this context
+   */
+  public AttributeCache getAttributeCache() {
+    return AttributeCache.SHARED;
+  }
+
+  /**
+   * @return The value formatters used to append values in this context
+   */
+  public ValueFormatters getValueFormatters() {
+    return ValueFormatters.DEFAULT;
+  }
+
+  /**
+   * @return The attribute memo table used to evaluate attributes in this
+   * context, or <code>null</code>
+   */
+  public AttributeMemo getAttributeMemo() {
+    return null;
+  }
+
+  /**
+   * @return The cache of attribute values used to evaluate attributes in
+   * this context, or <code>null</code>
+   */
+  public AttributeResultCache getAttributeResultCache() {
+    return null;
+  }
+
   /**
    * @param level Number of indentation levels
    * @return The cumulative indentation corresponding to the given
@@ -75,14 +227,114 @@ public abstract class TemplateContext {
   }
 
   /**
-   * Expand a template
+   * Expand a template to an output stream using UTF-8 encoding.
+   * The output stream is closed after the expansion.
    * @param templateName
    * @param out
    */
   final public void expand(String templateName, OutputStream out) {
-    PrintStream ps = new PrintStream(new BufferedOutputStream(out));
-    expand(templateName, ps);
-    ps.close();
+    StreamOutput output = new StreamOutput(out);
+    try {
+      expand(this, templateName, output);
+      output.close();
+    } catch (IOException e) {
+      throw new RuntimeException("I/O error while expanding template '"
+          + templateName + "'", e);
+    }
+  }
+
+  /**
+   * Expand a template to a byte output
+   * @param templateName
+   * @param out
+   * @throws IOException
+   */
+  final public void expand(String templateName, ByteOutput out) throws IOException {
+    expand(this, templateName, out);
+  }
+
+  /**
+   * Expand a template to a channel using UTF-8 encoding. Static template
+   * text is written to the channel without being copied.
+   * The channel is not closed after the expansion. Only blocking channels
+   * are supported.
+   * @param templateName
+   * @param channel
+   * @throws IOException
+   */
+  final public void expand(String templateName, WritableByteChannel channel)
+      throws IOException {
+    // Take the cached output so that a nested expansion gets its own.
+    ChannelOutput output = channelOutput;
+    channelOutput = null;
+    if (output == null) {
+      output = new ChannelOutput(channel);
+    } else {
+      output.reset(channel);
+    }
+    try {
+      expand(this, templateName, output);
+      output.flush();
+    } finally {
+      channelOutput = output;
+    }
+  }
+
+  /**
+   * Expand a template to a file using UTF-8 encoding. The file is only
+   * replaced if the expansion differs from the current file content.
+   * @param templateName
+   * @param file
+   * @return <code>true</code> if the file was changed
+   * @throws IOException
+   */
+  final public boolean expandToFile(String templateName, File file) throws IOException {
+    return expandToFile(templateName, new FileUpdateStream(file));
+  }
+
+  /**
+   * Expand a template to a file using UTF-8 encoding. The file is only
+   * replaced if the SHA-256 digest of the expansion differs from the given
+   * digest of the current file content. The existing file is not read.
+   *
+   * <p>Use {@link #expandToFile(String, FileUpdateStream)} to get the digest
+   * of the new content for the next expansion.
+   * @param templateName
+   * @param file
+   * @param digest The SHA-256 digest of the current file content
+   * @return <code>true</code> if the file was changed
+   * @throws IOException
+   */
+  final public boolean expandToFile(String templateName, File file, byte[] digest)
+      throws IOException {
+    return expandToFile(templateName, new FileUpdateStream(file, digest));
+  }
+
+  /**
+   * Expand a template to a file update stream using UTF-8 encoding. The
+   * stream is closed after the expansion, or discarded if the expansion
+   * fails. The digest of the new content can be read from the stream
+   * afterwards with {@link FileUpdateStream#getDigest()}.
+   * @param templateName
+   * @param out
+   * @return <code>true</code> if the file was changed
+   * @throws IOException
+   */
+  final public boolean expandToFile(String templateName, FileUpdateStream out)
+      throws IOException {
+    boolean done = false;
+    try {
+      StreamOutput output = new StreamOutput(out);
+      expand(this, templateName, output);
+      output.flush();
+      done = true;
+    } finally {
+      if (!done) {
+        out.discard();
+      }
+    }
+    out.close();
+    return out.isChanged();
   }
 
   /**
@@ -112,6 +364,18 @@ public abstract class TemplateContext {
     expand(this, templateName, buf);
   }
 
+  /**
+   * Expand a template to an Appendable, for example a
+   * {@link org.jastadd.io.ChunkedBuffer}. Each line is expanded in memory
+   * before it is appended.
+   * @param templateName
+   * @param out
+   * @throws IOException
+   */
+  final public void expand(String templateName, Appendable out) throws IOException {
+    expand(this, templateName, out);
+  }
+
   /**
    * Expand a template
    * @param tc Context to expand the template in
@@ -144,6 +408,48 @@ public abstract class TemplateContext {
    */
   abstract public void expand(TemplateContext tc, String templateName, StringBuilder out);
 
+  /**
+   * Expand a template. The default implementation expands the template in
+   * memory and then appends it to the output.
+   * @param tc Context to expand the template in
+   * @param templateName
+   * @param out
+   * @throws IOException
+   */
+  public void expand(TemplateContext tc, String templateName, Appendable out)
+      throws IOException {
+    StringBuilder buf = new StringBuilder();
+    expand(tc, templateName, buf);
+    out.append(buf);
+  }
+
+  /**
+   * Expand a template. The default implementation expands the template in
+   * memory and then writes it to the output. Contexts that can write static
+   * template text directly to the output override this method.
+   * @param tc Context to expand the template in
+   * @param templateName
+   * @param out
+   * @throws IOException
+   */
+  public void expand(TemplateContext tc, String templateName, ByteOutput out)
+      throws IOException {
+    StringBuilder buf = new StringBuilder();
+    expand(tc, templateName, buf);
+    out.write(buf);
+  }
+
+  /**
+   * Find a template by name. The default implementation does not expose
+   * any templates, so callers fall back to expanding the template by name.
+   * @param templateName
+   * @return The template with the given name, or <code>null</code> if
+   * there is no such template
+   */
+  public Template getTemplate(String templateName) {
+    return null;
+  }
+
   /**
    * Bind a value to a variable.
    * @param varName Variable to bind
@@ -151,6 +457,35 @@ public abstract class TemplateContext {
    */
   abstract public void bind(String varName, Object value);
 
+  /**
+   * Bind an int value to a variable. Contexts with primitive variable
+   * storage store the value without boxing.
+   * @param varName Variable to bind
+   * @param value Value to bind
+   */
+  public void bindInt(String varName, int value) {
+    bind(varName, value);
+  }
+
+  /**
+   * Bind a long value to a variable. Contexts with primitive variable
+   * storage store the value without boxing.
+   * @param varName Variable to bind
+   * @param value Value to bind
+   */
+  public void bindLong(String varName, long value) {
+    bind(varName, value);
+  }
+
+  /**
+   * Bind a boolean value to a variable.
+   * @param varName Variable to bind
+   * @param value Value to bind
+   */
+  public void bindBoolean(String varName, boolean value) {
+    bind(varName, value);
+  }
+
   /**
    * Bind a template expansion to a variable.
    * Synonymous to <code>bind(varName, expand(templateName))</code>.
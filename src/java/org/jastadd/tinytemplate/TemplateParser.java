@@ -31,14 +31,19 @@ package org.jastadd.tinytemplate;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 
 import org.jastadd.io.LookaheadReader;
 import org.jastadd.tinytemplate.fragment.AttributeReference;
 import org.jastadd.tinytemplate.fragment.Conditional;
 import org.jastadd.tinytemplate.fragment.EmptyFragment;
+import org.jastadd.tinytemplate.fragment.Foreach;
 import org.jastadd.tinytemplate.fragment.Fragment;
 import org.jastadd.tinytemplate.fragment.Include;
 import org.jastadd.tinytemplate.fragment.Join;
@@ -74,8 +79,14 @@ public class TemplateParser {
 
   private final TinyTemplate templates;
   private final LookaheadReader in;
+  private final TemplateSource source;
   private int line = 1;
 
+  /**
+   * The variables of the enclosing foreach statements
+   */
+  private final List<String> loopVariables = new ArrayList<String>();
+
   /**
    * @param tt
    * @param is
@@ -93,6 +104,21 @@ public class TemplateParser {
     this.builder = builder;
     templates = tt;
     in = new LookaheadReader(is, 8);
+    source = null;
+  }
+
+  /**
+   * Parse a UTF-8 encoded template file. The file offsets of the template
+   * lines are recorded in the parsed templates.
+   * @param tt
+   * @param is Input stream for the template file
+   * @param source The template file
+   */
+  public TemplateParser(TinyTemplate tt, InputStream is, TemplateSource source) {
+    this.builder = FragmentBuilder.DEFAULT_BUILDER;
+    templates = tt;
+    in = new LookaheadReader(new InputStreamReader(is, StandardCharsets.UTF_8), 8);
+    this.source = source;
   }
 
   /**
@@ -250,6 +276,8 @@ public class TemplateParser {
           throw new SyntaxError(line, "stray $else");
         } else if (nextFragment.isKeyword("endif")) {
           throw new SyntaxError(line, "stray $endif");
+        } else if (nextFragment.isKeyword("endforeach")) {
+          throw new SyntaxError(line, "stray $endforeach");
         }
         newLine = nextFragment.isNewline();
         template.addFragment(nextFragment);
@@ -266,6 +294,9 @@ public class TemplateParser {
     in.consume(2); // Skip '[['.
 
     Template template = builder.template();
+    if (source != null) {
+      template.setSource(source, in.bytePosition());
+    }
     boolean newLine = true;
     while (true) {
       if (isEOF()) {
@@ -279,14 +310,20 @@ public class TemplateParser {
           throw new SyntaxError(line, "stray $else");
         } else if (nextFragment.isKeyword("endif")) {
           throw new SyntaxError(line, "stray $endif");
+        } else if (nextFragment.isKeyword("endforeach")) {
+          throw new SyntaxError(line, "stray $endforeach");
         }
         newLine = nextFragment.isNewline();
         template.addFragment(nextFragment);
+        if (newLine) {
+          template.addSourceLine(in.bytePosition());
+        }
       } else {
         break;
       }
     }
 
+    template.setSourceEnd(in.bytePosition());
     in.consume(2); // Skip ']]'.
 
     template.trim();
@@ -310,6 +347,8 @@ public class TemplateParser {
 
       if (isKeyword("if")) {
         return parseIfStmt();
+      } else if (isKeyword("foreach")) {
+        return parseForeachStmt();
       } else if (isKeyword("include")) {
         Include include = parseIncludeStmt();
         template.addIndentation(include);
@@ -319,7 +358,11 @@ public class TemplateParser {
         template.addIndentation(join);
         return join;
       } else if (isVariable()) {
+        boolean simple = in.peek(1) != '(';
         String var = nextReference();
+        if (simple) {
+          var = parseLoopVariablePath(var);
+        }
         if (var.isEmpty()) {
           throw new SyntaxError(line, "empty variable name");
         }
@@ -389,6 +432,8 @@ public class TemplateParser {
           part = elsePart;
         } else if (nextFragment.isKeyword("endif")) {
           break;
+        } else if (nextFragment.isKeyword("endforeach")) {
+          throw new SyntaxError(line, "stray $endforeach");
         } else {
           newLine = nextFragment.isNewline();
           part.addFragment(nextFragment);
@@ -412,32 +457,168 @@ public class TemplateParser {
     } else {
       in.pop();
       skipWhitespace();
-      String iterable;
-      if (in.peek() == '#') {
-        in.pop();
-        iterable = "#";
-      } else {
-        if (in.peek() == '$') {
-          in.pop();
-        }
-        iterable = "$";
-      }
-      iterable += parseSimpleReference();
+      String iterable = parseIterable();
 
       skipWhitespace();
 
       String sep = "";
+      String projection = null;
       if (in.peek() == ',') {
         in.pop();
         skipWhitespace();
         sep = parseStringLiteral();
+        skipWhitespace();
+        if (in.peek() == ',') {
+          in.pop();
+          skipWhitespace();
+          projection = parseJoinProjection();
+          skipWhitespace();
+        }
       }
 
       accept(')');
+      if (projection != null) {
+        return builder.join(iterable, sep, projection);
+      }
       return builder.join(iterable, sep);
     }
   }
 
+  /**
+   * Parse the sequence argument of a join or foreach statement.
+   * @return The attribute path, starting with #, or the variable name,
+   * starting with $
+   */
+  private String parseIterable() throws IOException, SyntaxError {
+    if (in.peek() == '#') {
+      in.pop();
+      String attr = parsePathTail(parseSimpleReference());
+      acceptAttributeName(line, attr);
+      return "#" + attr;
+    } else {
+      if (in.peek() == '$') {
+        in.pop();
+      }
+      return "$" + parseLoopVariablePath(parseSimpleReference());
+    }
+  }
+
+  /**
+   * Parse the attribute path following a reference to the variable of an
+   * enclosing foreach statement, like <code>$field.name</code>.
+   * @param var The variable name
+   * @return The variable name, followed by the attribute path if there is one
+   */
+  private String parseLoopVariablePath(String var) throws IOException, SyntaxError {
+    if (!loopVariables.contains(var)) {
+      return var;
+    }
+    return parsePathTail(var);
+  }
+
+  /**
+   * Parse the rest of a dotted path, like <code>.b.c</code> after
+   * <code>a</code>. A dot is only part of the path if it is followed by an
+   * identifier.
+   * @param head The first name of the path
+   * @return The whole path
+   */
+  private String parsePathTail(String head) throws IOException, SyntaxError {
+    String path = head;
+    while (in.peek() == '.' && in.peek(1) != '$'
+        && Character.isJavaIdentifierStart(in.peek(1))) {
+      in.pop();
+      path += "." + parseSimpleReference();
+    }
+    return path;
+  }
+
+  private Foreach parseForeachStmt() throws IOException, SyntaxError {
+    in.consume(8); // Skip '$foreach'.
+    skipWhitespace();
+    if (in.peek() != '(') {
+      throw new SyntaxError(line, "missing foreach parameters");
+    }
+    in.pop();
+    skipWhitespace();
+    String variable = parseSimpleReference();
+    if (variable.isEmpty()) {
+      throw new SyntaxError(line, "missing foreach variable");
+    }
+    acceptVariableName(line, variable);
+    skipWhitespace();
+    accept(':');
+    skipWhitespace();
+    String iterable = parseIterable();
+    skipWhitespace();
+    accept(')');
+
+    Template body = builder.template();
+    boolean newLine = true;
+    loopVariables.add(variable);
+    try {
+      while (true) {
+        if (isEOF()) {
+          throw new SyntaxError(line,
+              "unexpected end of input while parsing foreach statement");
+        }
+
+        Fragment nextFragment = nextFragment(body, newLine);
+        if (!nextFragment.isEmpty()) {
+          if (nextFragment.isKeyword("endforeach")) {
+            break;
+          } else if (nextFragment.isKeyword("else")) {
+            throw new SyntaxError(line, "stray $else");
+          } else if (nextFragment.isKeyword("endif")) {
+            throw new SyntaxError(line, "stray $endif");
+          }
+          newLine = nextFragment.isNewline();
+          body.addFragment(nextFragment);
+        } else {
+          throw new SyntaxError(line, "missing $endforeach");
+        }
+      }
+    } finally {
+      loopVariables.remove(loopVariables.size() - 1);
+    }
+
+    body.trim();
+
+    return builder.foreach(variable, iterable, body);
+  }
+
+  /**
+   * Parse the element projection of a join statement: an attribute path or
+   * an include statement.
+   * @return The attribute path, starting with #, or the included template
+   * name
+   */
+  private String parseJoinProjection() throws IOException, SyntaxError {
+    if (in.peek() == '#') {
+      in.pop();
+      String attr = parsePathTail(parseSimpleReference());
+      if (attr.isEmpty()) {
+        throw new SyntaxError(line, "empty attribute name in join projection");
+      }
+      acceptAttributeName(line, attr);
+      return "#" + attr;
+    } else if (isKeyword("include")) {
+      in.consume(8); // Skip '$include'.
+      skipWhitespace();
+      if (in.peek() != '(') {
+        throw new SyntaxError(line, "missing template name");
+      }
+      String template = parseParenthesizedReference().trim();
+      if (template.isEmpty()) {
+        throw new SyntaxError(line, "missing template name");
+      }
+      return template;
+    } else {
+      throw new SyntaxError(line,
+          "join projection must be an attribute or an $include statement");
+    }
+  }
+
   private char accept(char c) throws SyntaxError, IOException {
     return acceptAlternatives(c);
   }
@@ -600,11 +781,31 @@ public class TemplateParser {
 
   /**
    * Throws a SyntaxError if the given string was not a valid attribute name
+   * or attribute path
    * @param line
    * @param attr
    * @throws SyntaxError
    */
   public static void acceptAttributeName(int line, String attr) throws SyntaxError {
+    if (attr.indexOf('.') == -1) {
+      acceptIdentifier(line, attr);
+    } else {
+      for (String name: attr.split("\\.", -1)) {
+        if (name.isEmpty()) {
+          String msg = "the attribute path '" + attr +
+              "' contains an empty attribute name";
+          if (line == -1) {
+            throw new SyntaxError(msg);
+          } else {
+            throw new SyntaxError(line, msg);
+          }
+        }
+        acceptIdentifier(line, name);
+      }
+    }
+  }
+
+  private static void acceptIdentifier(int line, String attr) throws SyntaxError {
     for (int i = 0; i < attr.length(); ++i) {
       char ch = attr.charAt(i);
       if ((i == 0 && !Character.isJavaIdentifierStart(ch)) ||
@@ -0,0 +1,361 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jastadd.tinytemplate.fragment.Conditional;
+import org.jastadd.tinytemplate.fragment.Fragment;
+import org.jastadd.tinytemplate.fragment.Include;
+import org.jastadd.tinytemplate.fragment.Join;
+
+/**
+ * A reader that expands a template lazily. The expansion is resumed each
+ * time the reader runs out of buffered output, so only a small part of the
+ * expansion is kept in memory.
+ *
+ * <p>The reader keeps an explicit stack of expansion frames for the
+ * template lines, conditionals, includes and joins that are being expanded.
+ * Includes and joins with nested indentation, and foreach loops, are
+ * expanded in one step.
+ *
+ * <p>A template line that becomes empty after expansion is deleted, so
+ * whitespace output is held back until the line either produces some
+ * non-whitespace output or ends.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class TemplateReader extends Reader {
+
+  private static abstract class Frame {
+    /**
+     * The template frame that receives the output of this frame
+     */
+    final TemplateFrame owner;
+
+    Frame(TemplateFrame owner) {
+      this.owner = owner;
+    }
+  }
+
+  private static class TemplateFrame extends Frame {
+    /**
+     * Template name, or <code>null</code> for conditional parts
+     */
+    final String name;
+    final List<List<Fragment>> lines;
+    int line = 0;
+    int fragment = 0;
+
+    /**
+     * Set when the current line is known to not be deleted
+     */
+    boolean committed;
+
+    /**
+     * Held back whitespace output of the current line
+     */
+    final StringBuilder pending = new StringBuilder();
+
+    TemplateFrame(TemplateFrame owner, String name, Template template) {
+      super(owner);
+      this.name = name;
+      this.lines = template.lines;
+      startLine();
+    }
+
+    void startLine() {
+      fragment = 0;
+      pending.setLength(0);
+      committed = line >= lines.size() || !Template.hasExpansion(lines.get(line));
+    }
+  }
+
+  private static class JoinFrame extends Frame {
+    final Join join;
+
+    /**
+     * The joined sequence
+     */
+    final Object sequence;
+
+    /**
+     * Iterator over the sequence, or <code>null</code> if the sequence is a
+     * primitive array that is joined without boxing
+     */
+    final Iterator<?> iterator;
+
+    /**
+     * Index of the next element of a primitive array
+     */
+    int index = 0;
+    final int length;
+
+    boolean first = true;
+
+    /**
+     * Context for expanding the projection template, or <code>null</code>
+     */
+    final SimpleContext scope;
+
+    JoinFrame(TemplateFrame owner, Join join, Object sequence, SimpleContext scope) {
+      super(owner);
+      this.join = join;
+      this.sequence = sequence;
+      this.scope = scope;
+      if (Sequences.isPrimitiveArray(sequence) && !join.hasProjection()) {
+        iterator = null;
+        length = Array.getLength(sequence);
+      } else {
+        iterator = Sequences.iterator(sequence);
+        length = 0;
+      }
+    }
+
+    boolean hasNext() {
+      return iterator == null ? index < length : iterator.hasNext();
+    }
+  }
+
+  private final TemplateContext context;
+  private final List<Frame> stack = new ArrayList<Frame>();
+
+  /**
+   * Expanded output that has not yet been read
+   */
+  private final StringBuilder buffer = new StringBuilder();
+  private int position = 0;
+
+  /**
+   * Scratch buffer for fragment expansions
+   */
+  private final StringBuilder scratch = new StringBuilder();
+
+  private boolean closed = false;
+
+  /**
+   * @param context Context to expand the template in
+   * @param templateName The template to expand
+   */
+  public TemplateReader(TemplateContext context, String templateName) {
+    this.context = context;
+    Template template = context.getTemplate(templateName);
+    if (template != null) {
+      stack.add(new TemplateFrame(null, templateName, template));
+    } else {
+      // Let the context report the unknown template.
+      context.expand(context, templateName, buffer);
+    }
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("reader is closed");
+    }
+    if (len == 0) {
+      return 0;
+    }
+    while (position == buffer.length()) {
+      if (stack.isEmpty()) {
+        return -1;
+      }
+      buffer.setLength(0);
+      position = 0;
+      step();
+    }
+    int n = Math.min(len, buffer.length() - position);
+    buffer.getChars(position, position + n, cbuf, off);
+    position += n;
+    return n;
+  }
+
+  /**
+   * Advance the expansion by one fragment.
+   */
+  private void step() {
+    try {
+      Frame top = stack.get(stack.size() - 1);
+      if (top instanceof JoinFrame) {
+        stepJoin((JoinFrame) top);
+      } else {
+        stepTemplate((TemplateFrame) top);
+      }
+    } catch (TemplateExpansionWarning e) {
+      throw expansionProblem(e);
+    }
+  }
+
+  private void stepTemplate(TemplateFrame frame) {
+    if (frame.line >= frame.lines.size()) {
+      stack.remove(stack.size() - 1);
+      return;
+    }
+    List<Fragment> line = frame.lines.get(frame.line);
+    if (frame.fragment >= line.size()) {
+      // The line is deleted if it was not committed.
+      frame.line += 1;
+      frame.startLine();
+      return;
+    }
+    Fragment fragment = line.get(frame.fragment++);
+    if (fragment instanceof Conditional) {
+      Template part = ((Conditional) fragment).branch(context);
+      stack.add(new TemplateFrame(frame, null, part));
+    } else if (fragment instanceof Include && !((Include) fragment).hasIndentation()) {
+      String name = ((Include) fragment).getTemplateName();
+      Template template = context.getTemplate(name);
+      if (template != null) {
+        stack.add(new TemplateFrame(frame, name, template));
+      } else {
+        expandFragment(frame, fragment);
+      }
+    } else if (fragment instanceof Join && !((Join) fragment).hasIndentation()) {
+      Join join = (Join) fragment;
+      stack.add(new JoinFrame(frame, join, join.evalSequence(context),
+          join.createScope(context)));
+    } else {
+      expandFragment(frame, fragment);
+    }
+  }
+
+  private void stepJoin(JoinFrame frame) {
+    if (!frame.hasNext()) {
+      stack.remove(stack.size() - 1);
+      Sequences.close(frame.sequence);
+      return;
+    }
+    if (!frame.first) {
+      emit(frame.owner, frame.join.getSeparator());
+    }
+    frame.first = false;
+    scratch.setLength(0);
+    if (frame.iterator == null) {
+      Sequences.appendElement(frame.sequence, frame.index++,
+          context.getValueFormatters(), scratch);
+    } else {
+      frame.join.expandElement(context, frame.scope, frame.iterator.next(), scratch);
+    }
+    emit(frame.owner, scratch);
+  }
+
+  private void expandFragment(TemplateFrame frame, Fragment fragment) {
+    scratch.setLength(0);
+    fragment.expand(context, scratch);
+    emit(frame, scratch);
+  }
+
+  /**
+   * Add output to the current line of a template frame.
+   * @param frame
+   * @param text
+   */
+  private void emit(TemplateFrame frame, CharSequence text) {
+    if (text.length() == 0) {
+      return;
+    }
+    if (frame == null) {
+      buffer.append(text);
+      return;
+    }
+    if (!frame.committed) {
+      if (isWhitespace(text)) {
+        frame.pending.append(text);
+        return;
+      }
+      frame.committed = true;
+      emit(frame.owner, frame.pending);
+      frame.pending.setLength(0);
+    }
+    emit(frame.owner, text);
+  }
+
+  private static boolean isWhitespace(CharSequence text) {
+    for (int i = 0; i < text.length(); ++i) {
+      if (!Character.isWhitespace(text.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add the names of the templates being expanded to an expansion warning,
+   * the same way as when the template is expanded by a context.
+   */
+  private TemplateExpansionWarning expansionProblem(TemplateExpansionWarning e) {
+    for (int i = stack.size() - 1; i >= 0; --i) {
+      Frame frame = stack.get(i);
+      if (frame instanceof TemplateFrame && ((TemplateFrame) frame).name != null) {
+        e = new TemplateExpansionWarning("while expanding template '"
+            + ((TemplateFrame) frame).name + "': " + e.getProblem());
+      }
+    }
+    closeFrames();
+    return e;
+  }
+
+  /**
+   * Pop all frames, closing the sequences of unfinished joins.
+   */
+  private void closeFrames() {
+    for (Frame frame: stack) {
+      if (frame instanceof JoinFrame) {
+        try {
+          Sequences.close(((JoinFrame) frame).sequence);
+        } catch (TemplateExpansionWarning e) {
+          // Closing is best effort when the expansion is abandoned.
+        }
+      }
+    }
+    stack.clear();
+  }
+
+  @Override
+  public boolean ready() throws IOException {
+    if (closed) {
+      throw new IOException("reader is closed");
+    }
+    return position < buffer.length();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    closeFrames();
+    buffer.setLength(0);
+    position = 0;
+  }
+}
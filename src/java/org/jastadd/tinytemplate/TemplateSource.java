@@ -0,0 +1,93 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A UTF-8 encoded template file. Templates loaded from a template source
+ * record the byte ranges of their static text in the file, so that large
+ * static regions can be transferred directly from the file during expansion.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class TemplateSource {
+
+  /**
+   * Default minimum size of transferred regions
+   */
+  public static final int TRANSFER_THRESHOLD = 4096;
+
+  private final File file;
+  private final int transferThreshold;
+
+  /**
+   * @param file The template file
+   */
+  public TemplateSource(File file) {
+    this(file, TRANSFER_THRESHOLD);
+  }
+
+  /**
+   * @param file The template file
+   * @param threshold Static regions smaller than this number of bytes are
+   * written as regular output rather than transferred from the file
+   */
+  public TemplateSource(File file, int threshold) {
+    this.file = file;
+    this.transferThreshold = threshold;
+  }
+
+  /**
+   * @return The template file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return Minimum size of transferred regions
+   */
+  public int getTransferThreshold() {
+    return transferThreshold;
+  }
+
+  /**
+   * Open the template file for reading.
+   * @return A new file channel for the template file
+   * @throws IOException
+   */
+  public FileChannel open() throws IOException {
+    return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+  }
+}
@@ -30,15 +30,18 @@
 package org.jastadd.tinytemplate;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
+import org.jastadd.io.ByteOutput;
 import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
 
 /**
@@ -57,6 +60,26 @@ public class TinyTemplate extends TemplateContext {
    */
   private final Map<String, Template> templates = new HashMap<String, Template>();
 
+  /**
+   * Attribute accessors and resolvers of this engine
+   */
+  private final AttributeCache attributeCache = new AttributeCache();
+
+  /**
+   * Attribute values cached between expansions, disabled by default
+   */
+  private final AttributeResultCache attributeResults = new AttributeResultCache();
+
+  /**
+   * Per-expansion attribute memo table, disabled by default
+   */
+  private final AttributeMemo attributeMemo = new AttributeMemo(attributeResults);
+
+  /**
+   * Value formatters of this engine
+   */
+  private final ValueFormatters valueFormatters = new ValueFormatters();
+
   static private boolean throwExceptions = false;
 
   static private boolean printWarnings = true;
@@ -103,49 +126,92 @@ public class TinyTemplate extends TemplateContext {
   }
 
   @Override
-  public void expand(TemplateContext tc, String templateName, PrintStream out) {
-    Template temp = lookupTemplate(templateName);
-    if (temp != null) {
-      try {
+  public void expand(final TemplateContext tc, String templateName, final PrintStream out) {
+    expandTemplate(templateName, new Expansion<RuntimeException>() {
+      @Override
+      public void expand(Template temp) {
         temp.expand(tc, out);
-      } catch (TemplateExpansionWarning e) {
-        templateExpansionProblem(templateName, e);
       }
-    }
+    });
   }
 
   @Override
-  public void expand(TemplateContext tc, String templateName, PrintWriter out) {
-    Template temp = lookupTemplate(templateName);
-    if (temp != null) {
-      try {
+  public void expand(final TemplateContext tc, String templateName, final PrintWriter out) {
+    expandTemplate(templateName, new Expansion<RuntimeException>() {
+      @Override
+      public void expand(Template temp) {
         temp.expand(tc, out);
-      } catch (TemplateExpansionWarning e) {
-        templateExpansionProblem(templateName, e);
       }
-    }
+    });
   }
 
   @Override
-  public void expand(TemplateContext tc, String templateName, StringBuffer out) {
-    Template temp = lookupTemplate(templateName);
-    if (temp != null) {
-      try {
+  public void expand(final TemplateContext tc, String templateName, final StringBuffer out) {
+    expandTemplate(templateName, new Expansion<RuntimeException>() {
+      @Override
+      public void expand(Template temp) {
         temp.expand(tc, out);
-      } catch (TemplateExpansionWarning e) {
-        templateExpansionProblem(templateName, e);
       }
-    }
+    });
+  }
+
+  @Override
+  public void expand(final TemplateContext tc, String templateName, final StringBuilder out) {
+    expandTemplate(templateName, new Expansion<RuntimeException>() {
+      @Override
+      public void expand(Template temp) {
+        temp.expand(tc, out);
+      }
+    });
   }
 
   @Override
-  public void expand(TemplateContext tc, String templateName, StringBuilder out) {
+  public void expand(final TemplateContext tc, String templateName, final Appendable out)
+      throws IOException {
+    expandTemplate(templateName, new Expansion<IOException>() {
+      @Override
+      public void expand(Template temp) throws IOException {
+        temp.expand(tc, out);
+      }
+    });
+  }
+
+  @Override
+  public void expand(final TemplateContext tc, String templateName, final ByteOutput out)
+      throws IOException {
+    expandTemplate(templateName, new Expansion<IOException>() {
+      @Override
+      public void expand(Template temp) throws IOException {
+        temp.expand(tc, out);
+      }
+    });
+  }
+
+  /**
+   * Expands a template to one kind of output
+   */
+  private interface Expansion<E extends Exception> {
+    void expand(Template temp) throws E;
+  }
+
+  /**
+   * Expand a template, with attribute memoization for the duration of the
+   * expansion.
+   * @param templateName
+   * @param expansion
+   * @throws E
+   */
+  private <E extends Exception> void expandTemplate(String templateName,
+      Expansion<E> expansion) throws E {
     Template temp = lookupTemplate(templateName);
     if (temp != null) {
+      boolean memoized = attributeMemo.begin();
       try {
-        temp.expand(tc, out);
+        expansion.expand(temp);
       } catch (TemplateExpansionWarning e) {
         templateExpansionProblem(templateName, e);
+      } finally {
+        attributeMemo.end(memoized);
       }
     }
   }
@@ -170,6 +236,11 @@ public class TinyTemplate extends TemplateContext {
     return temp;
   }
 
+  @Override
+  public Template getTemplate(String templateName) {
+    return templates.get(templateName);
+  }
+
   @Override
   public void flushVariables() {
   }
@@ -195,6 +266,34 @@ public class TinyTemplate extends TemplateContext {
     parser.parse();
   }
 
+  /**
+   * Load templates from a UTF-8 encoded template file. The file offsets of
+   * static template text are recorded, so that large static regions can be
+   * transferred directly from the file when expanding to a byte output.
+   * @param file
+   * @throws SyntaxError
+   * @throws IOException
+   */
+  public void loadTemplates(File file) throws SyntaxError, IOException {
+    loadTemplates(new TemplateSource(file));
+  }
+
+  /**
+   * Load templates from a template file
+   * @param source
+   * @throws SyntaxError
+   * @throws IOException
+   */
+  public void loadTemplates(TemplateSource source) throws SyntaxError, IOException {
+    InputStream in = new FileInputStream(source.getFile());
+    try {
+      TemplateParser parser = new TemplateParser(this, in, source);
+      parser.parse();
+    } finally {
+      in.close();
+    }
+  }
+
   /**
    * Load templates from string literal
    * @param str
@@ -215,9 +314,156 @@ public class TinyTemplate extends TemplateContext {
     templates.put(templateName, template);
   }
 
+  /**
+   * Bind a template to a context class. The attributes referenced in the
+   * template are resolved against the class once, and expanding the template
+   * with a context object of the class, or a subclass, uses the resolved
+   * attributes without looking them up by name.
+   * @param templateName
+   * @param type The context class
+   * @throws SyntaxError if the template does not exist, or if the context
+   * class is missing an attribute used in the template
+   */
+  public void bindTemplate(String templateName, Class<?> type) throws SyntaxError {
+    Template template = templates.get(templateName);
+    if (template == null) {
+      throw new SyntaxError("can not bind unknown template '" + templateName + "'");
+    }
+    try {
+      template.link(type, attributeCache);
+    } catch (SyntaxError e) {
+      throw new SyntaxError("in template '" + templateName + "': " + e.getMessage());
+    }
+  }
+
+  /**
+   * Bind templates to context classes according to the template naming
+   * convention <code>MyClass.templateName:variant</code>. Templates whose
+   * name does not start with the name of a class in the given package are
+   * not bound.
+   * @param packageName The package containing the context classes
+   * @return The number of bound templates
+   * @throws SyntaxError if a context class is missing an attribute
+   * used in a template
+   * @see #bindTemplate(String, Class)
+   */
+  public int bindTemplates(String packageName) throws SyntaxError {
+    return bindTemplates(packageName, TinyTemplate.class.getClassLoader());
+  }
+
+  /**
+   * Bind templates to context classes according to the template naming
+   * convention <code>MyClass.templateName:variant</code>. Templates whose
+   * name does not start with the name of a class in the given package are
+   * not bound.
+   * @param packageName The package containing the context classes
+   * @param loader The class loader used to find the context classes
+   * @return The number of bound templates
+   * @throws SyntaxError if a context class is missing an attribute
+   * used in a template
+   * @see #bindTemplate(String, Class)
+   */
+  public int bindTemplates(String packageName, ClassLoader loader) throws SyntaxError {
+    String prefix = packageName.isEmpty() ? "" : packageName + ".";
+    int count = 0;
+    for (String templateName: templates.keySet()) {
+      int dot = templateName.indexOf('.');
+      if (dot <= 0) {
+        continue;
+      }
+      Class<?> type;
+      try {
+        type = Class.forName(prefix + templateName.substring(0, dot), false, loader);
+      } catch (ClassNotFoundException e) {
+        continue;
+      }
+      bindTemplate(templateName, type);
+      count += 1;
+    }
+    return count;
+  }
+
+  /**
+   * Add an attribute resolver to this engine. Added resolvers are tried
+   * before the built-in resolvers. Resolvers should be added before
+   * templates are bound or expanded.
+   * @param resolver
+   */
+  public void addAttributeResolver(AttributeResolver resolver) {
+    attributeCache.addResolver(resolver);
+  }
+
+  /**
+   * Register an attribute for a context class and its subclasses in this
+   * engine. Attributes should be registered before templates are bound or
+   * expanded.
+   * @param type The context class
+   * @param attribute The attribute name
+   * @param accessor Evaluates the attribute
+   */
+  public void registerAttribute(Class<?> type, String attribute,
+      AttributeAccessor accessor) {
+    attributeCache.registerAttribute(type, attribute, accessor);
+  }
+
+  /**
+   * Register a value formatter for a class and its subclasses in this
+   * engine.
+   * @param type
+   * @param formatter
+   */
+  public void registerValueFormatter(Class<?> type, ValueFormatter formatter) {
+    valueFormatters.register(type, formatter);
+  }
+
+  @Override
+  public AttributeCache getAttributeCache() {
+    return attributeCache;
+  }
+
+  @Override
+  public ValueFormatters getValueFormatters() {
+    return valueFormatters;
+  }
+
+  /**
+   * Toggle per-expansion memoization of attribute values. When enabled, each
+   * attribute is evaluated at most once per context object during a
+   * top-level template expansion, including included templates. Attributes
+   * must not change value during an expansion for this to be safe.
+   * @param b
+   */
+  public void setAttributeMemoization(boolean b) {
+    attributeMemo.setEnabled(b);
+  }
+
+  @Override
+  public AttributeMemo getAttributeMemo() {
+    return attributeMemo;
+  }
+
+  /**
+   * Toggle caching of cacheable attribute values between expansions.
+   * @param b
+   * @see AttributeResultCache
+   */
+  public void setAttributeResultCaching(boolean b) {
+    attributeResults.setEnabled(b);
+  }
+
+  @Override
+  public AttributeResultCache getAttributeResultCache() {
+    return attributeResults;
+  }
+
   @Override
   public Object evalAttribute(String attribute) {
-    return evalAttribute(attribute, null);
+    return evalAttribute(attribute, null, null, attributeCache);
+  }
+
+  @Override
+  public Object evalAttribute(String attribute, AttributeSite site) {
+    return evalAttribute(attribute, null, site, attributeCache);
   }
 
   /**
@@ -227,37 +473,115 @@ public class TinyTemplate extends TemplateContext {
    * @return The value of the attribute on context object
    */
   public static Object evalAttribute(String attribute, Object context) {
-    try {
-      if (context == null) {
-        String msg = "failed to eval " + attribute + "; reason: no context";
-        return expansionWarning(msg);
-      }
-      Method method = context.getClass().getMethod(attribute, new Class[] {});
-      return method.invoke(context, new Object[] {});
-    } catch (SecurityException e) {
-      String msg = "failed to eval attribute '" + attribute +
-        "'; reason: security exception";
-      return expansionWarning(msg);
-    } catch (NoSuchMethodException e) {
-      String msg = "failed to eval attribute '" + attribute +
-        "'; reason: no such method";
-      return expansionWarning(msg);
-    } catch (IllegalArgumentException e) {
-      String msg = "failed to eval attribute '" + attribute +
-        "'; reason: illegal argument exception";
-      return expansionWarning(msg);
-    } catch (IllegalAccessException e) {
-      String msg = "failed to eval attribute '" + attribute +
-        "'; reason: illegal access exception";
-      return expansionWarning(msg);
-    } catch (InvocationTargetException e) {
-      String msg = "failed to eval attribute '" + attribute +
-        "'; reason: invocation target exception (" +
-        e.getTargetException().getMessage() + ")";
+    return evalAttribute(attribute, context, null);
+  }
+
+  /**
+   * Eval attribute on context object
+   * @param attribute
+   * @param context
+   * @param site Inline cache for the evaluation site, or <code>null</code>
+   * @return The value of the attribute on context object
+   */
+  public static Object evalAttribute(String attribute, Object context,
+      AttributeSite site) {
+    return evalAttribute(attribute, context, site, AttributeCache.SHARED);
+  }
+
+  /**
+   * Eval attribute on context object
+   * @param attribute
+   * @param context
+   * @param site Inline cache for the evaluation site, or <code>null</code>
+   * @param cache The attribute cache to find the attribute accessor in
+   * @return The value of the attribute on context object
+   */
+  public static Object evalAttribute(String attribute, Object context,
+      AttributeSite site, AttributeCache cache) {
+    if (context == null) {
+      String msg = "failed to eval " + attribute + "; reason: no context";
       return expansionWarning(msg);
     }
+    try {
+      return accessAttribute(attribute, context, site, cache);
+    } catch (Exception e) {
+      return attributeProblem(attribute, e);
+    }
   }
 
+  /**
+   * Eval attribute on a non-null context object, without handling failures
+   * @param attribute
+   * @param context
+   * @param site Inline cache for the evaluation site, or <code>null</code>
+   * @param cache The attribute cache to find the attribute accessor in
+   * @return The value of the attribute on context object
+   * @throws Exception if the attribute could not be evaluated
+   */
+  static Object accessAttribute(String attribute, Object context,
+      AttributeSite site, AttributeCache cache) throws Exception {
+    if (context == null) {
+      throw new NoContextException();
+    }
+    AttributeAccessor accessor;
+    if (site != null) {
+      accessor = site.lookup(context.getClass(), attribute, cache);
+    } else {
+      accessor = cache.lookup(context.getClass(), attribute);
+    }
+    return accessor.eval(context);
+  }
+
+  /**
+   * Report a failed attribute evaluation
+   * @param attribute
+   * @param e The exception that made the evaluation fail
+   * @return The value to use for the attribute
+   */
+  static Object attributeProblem(String attribute, Exception e) {
+    return expansionWarning("failed to eval attribute '" + attribute +
+        "'; reason: " + problemReason(e));
+  }
+
+  /**
+   * Report a failed step of an attribute path
+   * @param path The full attribute path
+   * @param attribute The attribute that failed
+   * @param e The exception that made the evaluation fail
+   * @return The value to use for the attribute path
+   */
+  static Object attributePathProblem(String path, String attribute, Exception e) {
+    return expansionWarning("failed to eval attribute '" + attribute +
+        "' in attribute path '" + path + "'; reason: " + problemReason(e));
+  }
+
+  private static String problemReason(Exception e) {
+    if (e instanceof NoContextException) {
+      return "no context";
+    } else if (e instanceof SecurityException) {
+      return "security exception";
+    } else if (e instanceof NoSuchMethodException) {
+      return "no such method";
+    } else if (e instanceof IllegalArgumentException) {
+      return "illegal argument exception";
+    } else if (e instanceof IllegalAccessException) {
+      return "illegal access exception";
+    } else if (e instanceof InvocationTargetException) {
+      return "invocation target exception (" +
+        ((InvocationTargetException) e).getTargetException().getMessage() + ")";
+    } else {
+      return e.toString();
+    }
+  }
+
+  /**
+   * Thrown when an attribute is evaluated without a context object
+   */
+  @SuppressWarnings("serial")
+  static class NoContextException extends Exception {
+  }
+
+
   /**
    * Prints a template expansion warning to stderr
    * @param msg
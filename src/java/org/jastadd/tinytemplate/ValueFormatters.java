@@ -0,0 +1,311 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Appends expanded values to the template output.
+ *
+ * <p>Strings and other character sequences are appended without calling
+ * <code>toString()</code>, and boxed primitive values are appended without
+ * first being converted to strings. Other values are appended using their
+ * <code>toString()</code> method, unless a formatter has been registered
+ * for their class or one of its superclasses or interfaces.
+ *
+ * <p>Each template engine has its own formatters, see
+ * {@link TemplateContext#getValueFormatters()}.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class ValueFormatters {
+
+  /**
+   * Marks classes without a registered formatter
+   */
+  private static final ValueFormatter NONE = new ValueFormatter() {
+    @Override
+    public void format(Object value, StringBuilder out) {
+      out.append(value.toString());
+    }
+  };
+
+  /**
+   * Formatters used when no template engine is given. No formatters can be
+   * registered here.
+   */
+  static final ValueFormatters DEFAULT = new ValueFormatters(false);
+
+  private final ConcurrentMap<Class<?>, ValueFormatter> registered =
+      new ConcurrentHashMap<Class<?>, ValueFormatter>();
+
+  /**
+   * Formatter for each formatted class, including inherited formatters
+   */
+  private final ConcurrentMap<Class<?>, ValueFormatter> resolved =
+      new ConcurrentHashMap<Class<?>, ValueFormatter>();
+
+  private final boolean modifiable;
+
+  private volatile boolean hasFormatters = false;
+
+  /**
+   * Create an empty set of value formatters.
+   */
+  public ValueFormatters() {
+    this(true);
+  }
+
+  private ValueFormatters(boolean modifiable) {
+    this.modifiable = modifiable;
+  }
+
+  /**
+   * Register a formatter for a class and its subclasses. A formatter
+   * registered for a class takes precedence over formatters registered for
+   * its superclasses and interfaces, and over the built-in formatting.
+   * @param type
+   * @param formatter
+   */
+  public void register(Class<?> type, ValueFormatter formatter) {
+    if (!modifiable) {
+      throw new IllegalStateException(
+          "formatters can only be registered in a template engine");
+    }
+    registered.put(type, formatter);
+    resolved.clear();
+    hasFormatters = true;
+  }
+
+  /**
+   * Remove the formatter registered for a class.
+   * @param type
+   */
+  public void unregister(Class<?> type) {
+    registered.remove(type);
+    resolved.clear();
+    hasFormatters = !registered.isEmpty();
+  }
+
+  /**
+   * Append a value to the output
+   * @param value
+   * @param out
+   */
+  public void append(Object value, StringBuilder out) {
+    if (value == null) {
+      out.append("null");
+      return;
+    }
+    if (hasFormatters) {
+      ValueFormatter formatter = formatter(value.getClass());
+      if (formatter != NONE) {
+        formatter.format(value, out);
+        return;
+      }
+    }
+    if (value instanceof String) {
+      out.append((String) value);
+    } else if (value instanceof CharSequence) {
+      out.append((CharSequence) value);
+    } else if (value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      out.append(((Number) value).intValue());
+    } else if (value instanceof Long) {
+      out.append(((Long) value).longValue());
+    } else if (value instanceof Double) {
+      out.append(((Double) value).doubleValue());
+    } else if (value instanceof Float) {
+      out.append(((Float) value).floatValue());
+    } else if (value instanceof Boolean) {
+      out.append(((Boolean) value).booleanValue());
+    } else if (value instanceof Character) {
+      out.append(((Character) value).charValue());
+    } else {
+      out.append(value.toString());
+    }
+  }
+
+  /**
+   * Append an int value to the output
+   * @param value
+   * @param out
+   */
+  public void append(int value, StringBuilder out) {
+    if (hasFormatters) {
+      append(Integer.valueOf(value), out);
+    } else {
+      out.append(value);
+    }
+  }
+
+  /**
+   * Append a long value to the output
+   * @param value
+   * @param out
+   */
+  public void append(long value, StringBuilder out) {
+    if (hasFormatters) {
+      append(Long.valueOf(value), out);
+    } else {
+      out.append(value);
+    }
+  }
+
+  /**
+   * Append a boolean value to the output
+   * @param value
+   * @param out
+   */
+  public void append(boolean value, StringBuilder out) {
+    if (hasFormatters) {
+      append(Boolean.valueOf(value), out);
+    } else {
+      out.append(value);
+    }
+  }
+
+  /**
+   * Append a double value to the output
+   * @param value
+   * @param out
+   */
+  public void append(double value, StringBuilder out) {
+    if (hasFormatters) {
+      append(Double.valueOf(value), out);
+    } else {
+      out.append(value);
+    }
+  }
+
+  /**
+   * Append a float value to the output
+   * @param value
+   * @param out
+   */
+  public void append(float value, StringBuilder out) {
+    if (hasFormatters) {
+      append(Float.valueOf(value), out);
+    } else {
+      out.append(value);
+    }
+  }
+
+  /**
+   * Append a char value to the output
+   * @param value
+   * @param out
+   */
+  public void append(char value, StringBuilder out) {
+    if (hasFormatters) {
+      append(Character.valueOf(value), out);
+    } else {
+      out.append(value);
+    }
+  }
+
+  /**
+   * Append a short value to the output
+   * @param value
+   * @param out
+   */
+  public void append(short value, StringBuilder out) {
+    if (hasFormatters) {
+      append(Short.valueOf(value), out);
+    } else {
+      out.append(value);
+    }
+  }
+
+  /**
+   * Append a byte value to the output
+   * @param value
+   * @param out
+   */
+  public void append(byte value, StringBuilder out) {
+    if (hasFormatters) {
+      append(Byte.valueOf(value), out);
+    } else {
+      out.append(value);
+    }
+  }
+
+  /**
+   * @param value
+   * @return The value formatted as a string
+   */
+  public String format(Object value) {
+    if (value instanceof String) {
+      return (String) value;
+    }
+    StringBuilder out = new StringBuilder();
+    append(value, out);
+    return out.toString();
+  }
+
+  private ValueFormatter formatter(Class<?> type) {
+    ValueFormatter formatter = resolved.get(type);
+    if (formatter == null) {
+      formatter = findFormatter(type);
+      resolved.put(type, formatter);
+    }
+    return formatter;
+  }
+
+  private ValueFormatter findFormatter(Class<?> type) {
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      ValueFormatter formatter = registered.get(c);
+      if (formatter != null) {
+        return formatter;
+      }
+    }
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      ValueFormatter formatter = findInterfaceFormatter(c);
+      if (formatter != null) {
+        return formatter;
+      }
+    }
+    return NONE;
+  }
+
+  private ValueFormatter findInterfaceFormatter(Class<?> type) {
+    for (Class<?> iface: type.getInterfaces()) {
+      ValueFormatter formatter = registered.get(iface);
+      if (formatter == null) {
+        formatter = findInterfaceFormatter(iface);
+      }
+      if (formatter != null) {
+        return formatter;
+      }
+    }
+    return null;
+  }
+}
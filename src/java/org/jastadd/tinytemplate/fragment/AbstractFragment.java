@@ -29,6 +29,10 @@
  */
 package org.jastadd.tinytemplate.fragment;
 
+import org.jastadd.tinytemplate.AttributeCache;
+import org.jastadd.tinytemplate.AttributePath;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+
 /**
  * Abstract fragment supertype
  * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
@@ -68,4 +72,31 @@ abstract public class AbstractFragment implements Fragment {
   public boolean isIndentation() {
     return false;
   }
+
+  /**
+   * Resolve the attributes referenced by this fragment against a context
+   * class. Does nothing by default.
+   * @param type The context class
+   * @param cache Cache used to find the attribute accessors
+   * @throws SyntaxError if the context class has no such attribute
+   */
+  public void link(Class<?> type, AttributeCache cache) throws SyntaxError {
+  }
+
+  /**
+   * Link an attribute path to a context class
+   * @param path
+   * @param type
+   * @param cache
+   * @throws SyntaxError if the context class has no such attribute
+   */
+  protected static void linkAttribute(AttributePath path, Class<?> type,
+      AttributeCache cache) throws SyntaxError {
+    try {
+      path.link(type, cache);
+    } catch (NoSuchMethodException e) {
+      throw new SyntaxError("the attribute '" + path.getName(0)
+          + "' does not exist in " + type.getName());
+    }
+  }
 }
@@ -29,7 +29,11 @@
  */
 package org.jastadd.tinytemplate.fragment;
 
+import org.jastadd.tinytemplate.AttributeCache;
+import org.jastadd.tinytemplate.AttributePath;
+import org.jastadd.tinytemplate.AttributeSite;
 import org.jastadd.tinytemplate.TemplateContext;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
 
 /**
  * Reflectively expands an attribute in the template context
@@ -40,16 +44,33 @@ public class AttributeReference extends NestedIndentationFragment {
   protected final String attribute;
 
   /**
-   * @param attributeName
+   * The attribute path, with inline caches for the attribute lookups
+   */
+  protected final AttributePath path;
+
+  /**
+   * @param attributeName Attribute name, or dot-separated attribute path
    */
   public AttributeReference(String attributeName) {
     attribute = attributeName;
+    path = new AttributePath(attributeName);
   }
 
   @Override
   public void expand(TemplateContext context, StringBuilder out) {
-    expandWithIndentation(String.valueOf(context.evalAttribute(attribute)),
-        context, out);
+    expandWithIndentation(context.evalAttribute(path), context, out);
+  }
+
+  @Override
+  public void link(Class<?> type, AttributeCache cache) throws SyntaxError {
+    linkAttribute(path, type, cache);
+  }
+
+  /**
+   * @return The inline cache for the first attribute lookup
+   */
+  public AttributeSite getSite() {
+    return path.getSite();
   }
 
   @Override
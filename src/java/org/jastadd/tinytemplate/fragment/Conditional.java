@@ -29,6 +29,8 @@
  */
 package org.jastadd.tinytemplate.fragment;
 
+import org.jastadd.tinytemplate.AttributeCache;
+import org.jastadd.tinytemplate.AttributePath;
 import org.jastadd.tinytemplate.EmptyTemplate;
 import org.jastadd.tinytemplate.Template;
 import org.jastadd.tinytemplate.TemplateContext;
@@ -47,6 +49,11 @@ public class Conditional extends AbstractFragment {
   protected final boolean negated;
   protected final boolean isAttribute;
 
+  /**
+   * The attribute path of an attribute condition
+   */
+  protected final AttributePath path;
+
   /**
    * Create a if-then conditional
    * @param condition
@@ -86,8 +93,10 @@ public class Conditional extends AbstractFragment {
     }
     if (isAttribute) {
       TemplateParser.acceptAttributeName(-1, this.condition);
+      this.path = new AttributePath(this.condition);
     } else {
       TemplateParser.acceptVariableName(-1, this.condition);
+      this.path = null;
     }
     this.thenPart = thenPart;
     this.thenPart.trimTrailingEmptyLine();
@@ -96,23 +105,36 @@ public class Conditional extends AbstractFragment {
   }
 
   private boolean evalCondition(TemplateContext context) {
-    Object value;
+    boolean result;
     if (isAttribute) {
-      value = context.evalAttribute(condition);
+      result = TemplateContext.isTrue(context.evalAttribute(path));
     } else {
-      value = context.evalVariable(condition);
+      result = context.evalBooleanVariable(condition);
     }
-    boolean result = value.toString().equals("true");
     return negated ? !result : result;
   }
 
+  /**
+   * Evaluate the condition
+   * @param context
+   * @return The template part selected by the condition
+   */
+  public Template branch(TemplateContext context) {
+    return evalCondition(context) ? thenPart : elsePart;
+  }
+
   @Override
   public void expand(TemplateContext context, StringBuilder out) {
-    if (evalCondition(context)) {
-      thenPart.expand(context, out);
-    } else {
-      elsePart.expand(context, out);
+    branch(context).expand(context, out);
+  }
+
+  @Override
+  public void link(Class<?> type, AttributeCache cache) throws SyntaxError {
+    if (isAttribute) {
+      linkAttribute(path, type, cache);
     }
+    thenPart.link(type, cache);
+    elsePart.link(type, cache);
   }
 
   @Override
@@ -0,0 +1,206 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.fragment;
+
+import java.util.Iterator;
+
+import org.jastadd.tinytemplate.AttributeCache;
+import org.jastadd.tinytemplate.AttributePath;
+import org.jastadd.tinytemplate.LoopContext;
+import org.jastadd.tinytemplate.Sequences;
+import org.jastadd.tinytemplate.Template;
+import org.jastadd.tinytemplate.TemplateContext;
+import org.jastadd.tinytemplate.TemplateExpansionWarning;
+import org.jastadd.tinytemplate.TemplateParser;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+
+/**
+ * A loop that expands its body once for each element of a sequence, with
+ * the element bound to the loop variable.
+ *
+ * <p>The body is expanded in a loop context that forwards attribute
+ * evaluation and other variables to the enclosing context. Attributes of the
+ * element are read with a variable path on the loop variable, like
+ * <code>$x.name</code>. The same loop context is used for every element.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+public class Foreach extends AbstractFragment {
+
+  private static final String SYS_NL = System.getProperty("line.separator");
+
+  protected final String variable;
+  protected final String iterable;
+  protected final boolean isAttribute;
+  protected final Template body;
+
+  /**
+   * The attribute path of an attribute sequence
+   */
+  protected final AttributePath path;
+
+  /**
+   * Set if the body ends with a line break
+   */
+  protected final boolean multiLine;
+
+  /**
+   * @param variable The loop variable name
+   * @param iterable The sequence, an attribute path starting with
+   * <code>#</code> or a variable name
+   * @param body
+   * @throws SyntaxError
+   */
+  public Foreach(String variable, String iterable, Template body) throws SyntaxError {
+    if (variable.isEmpty()) {
+      throw new SyntaxError("empty loop variable name");
+    }
+    TemplateParser.acceptVariableName(-1, variable);
+    this.variable = variable;
+    if (iterable.startsWith("#")) {
+      this.iterable = iterable.substring(1);
+      this.isAttribute = true;
+      TemplateParser.acceptAttributeName(-1, this.iterable);
+      this.path = new AttributePath(this.iterable);
+    } else {
+      this.iterable = iterable.startsWith("$") ? iterable.substring(1) : iterable;
+      this.isAttribute = false;
+      this.path = null;
+    }
+    this.body = body;
+    // The indentation before $endforeach is trimmed, but the body keeps its
+    // last line break. The last line break of the whole loop is removed
+    // instead, like the last line break of a conditional.
+    this.multiLine = this.body.endsWithEmptyLine();
+    this.body.trimTrailingEmptyLine();
+    if (multiLine) {
+      this.body.addFragment(NewlineFragment.INSTANCE);
+    }
+  }
+
+  /**
+   * Evaluate the sequence to loop over
+   * @param context
+   * @return The sequence value
+   * @see Sequences
+   */
+  public Object evalSequence(TemplateContext context) {
+    if (isAttribute) {
+      Object value = context.evalAttribute(path);
+      if (Sequences.isSequence(value)) {
+        return value;
+      } else {
+        throw new TemplateExpansionWarning("Attribute '" + iterable + "' is not iterable");
+      }
+    } else {
+      Object value = context.evalVariable(iterable);
+      if (Sequences.isSequence(value)) {
+        return value;
+      } else {
+        throw new TemplateExpansionWarning("Variable '" + iterable + "' is not iterable");
+      }
+    }
+  }
+
+  @Override
+  public void expand(TemplateContext context, StringBuilder out) {
+    Object seq = evalSequence(context);
+    LoopContext scope = new LoopContext(context, variable);
+    int start = out.length();
+    if (seq instanceof int[]) {
+      for (int value : (int[]) seq) {
+        scope.setInt(value);
+        body.expand(scope, out);
+      }
+    } else if (seq instanceof long[]) {
+      for (long value : (long[]) seq) {
+        scope.setLong(value);
+        body.expand(scope, out);
+      }
+    } else if (seq instanceof boolean[]) {
+      for (boolean value : (boolean[]) seq) {
+        scope.setBoolean(value);
+        body.expand(scope, out);
+      }
+    } else if (seq instanceof Object[]) {
+      for (Object value : (Object[]) seq) {
+        scope.setValue(value);
+        body.expand(scope, out);
+      }
+    } else {
+      Iterator<?> iterator = Sequences.iterator(seq);
+      while (iterator.hasNext()) {
+        scope.setValue(iterator.next());
+        body.expand(scope, out);
+      }
+    }
+    if (multiLine && endsWithNewline(out, start)) {
+      out.setLength(out.length() - SYS_NL.length());
+    }
+  }
+
+  private static boolean endsWithNewline(StringBuilder out, int start) {
+    int offset = out.length() - SYS_NL.length();
+    if (offset < start) {
+      return false;
+    }
+    for (int i = 0; i < SYS_NL.length(); ++i) {
+      if (out.charAt(offset + i) != SYS_NL.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void link(Class<?> type, AttributeCache cache) throws SyntaxError {
+    if (isAttribute) {
+      linkAttribute(path, type, cache);
+    }
+    body.link(type, cache);
+  }
+
+  /**
+   * @return The loop variable name
+   */
+  public String getVariable() {
+    return variable;
+  }
+
+  @Override
+  public boolean isConditional() {
+    return true;
+  }
+
+  @Override
+  public boolean isExpansion() {
+    return true;
+  }
+}
@@ -45,6 +45,13 @@ public class Include extends NestedIndentationFragment {
     this.template = templateName;
   }
 
+  /**
+   * @return The name of the included template
+   */
+  public String getTemplateName() {
+    return template;
+  }
+
   @Override
   public void expand(TemplateContext context, StringBuilder out) {
     expandWithIndentation(context.expand(template), context, out);
@@ -0,0 +1,124 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.fragment;
+
+/**
+ * Indents the lines appended to a buffer.
+ *
+ * <p>Each line break is replaced by the system line separator followed by
+ * the indentation. Line breaks are only written when they are followed by
+ * more output, so trailing line breaks are dropped. This is the same
+ * indentation as is used for multi-line expansions in templates.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+class IndentingAppendable implements Appendable {
+  private static final String SYS_NL = System.getProperty("line.separator");
+
+  private final StringBuilder out;
+  private final String indentation;
+
+  /**
+   * Number of line breaks not yet written
+   */
+  private int pending = 0;
+
+  /**
+   * Set if the last character was a carriage return
+   */
+  private boolean cr = false;
+
+  IndentingAppendable(StringBuilder out, String indentation) {
+    this.out = out;
+    this.indentation = indentation;
+  }
+
+  @Override
+  public IndentingAppendable append(CharSequence csq) {
+    if (csq == null) {
+      csq = "null";
+    }
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public IndentingAppendable append(CharSequence csq, int start, int end) {
+    if (csq == null) {
+      csq = "null";
+    }
+    int run = start;
+    for (int i = start; i < end; ++i) {
+      char c = csq.charAt(i);
+      if (c == '\n' || c == '\r') {
+        if (pending == 0) {
+          out.append(csq, run, i);
+        }
+        lineBreak(c);
+        run = i + 1;
+      } else if (pending > 0) {
+        flushLineBreaks();
+        run = i;
+      }
+    }
+    if (pending == 0) {
+      out.append(csq, run, end);
+    }
+    return this;
+  }
+
+  @Override
+  public IndentingAppendable append(char c) {
+    if (c == '\n' || c == '\r') {
+      lineBreak(c);
+    } else {
+      flushLineBreaks();
+      out.append(c);
+    }
+    return this;
+  }
+
+  private void lineBreak(char c) {
+    if (c == '\n' && cr) {
+      // Second half of a CRLF line break.
+      cr = false;
+      return;
+    }
+    pending += 1;
+    cr = c == '\r';
+  }
+
+  private void flushLineBreaks() {
+    cr = false;
+    for (; pending > 0; --pending) {
+      out.append(SYS_NL);
+      out.append(indentation);
+    }
+  }
+}
@@ -30,14 +30,31 @@
  */
 package org.jastadd.tinytemplate.fragment;
 
+import java.lang.reflect.Array;
+import java.util.Iterator;
+
+import org.jastadd.tinytemplate.AttributeCache;
+import org.jastadd.tinytemplate.AttributePath;
+import org.jastadd.tinytemplate.Renderable;
+import org.jastadd.tinytemplate.Sequences;
+import org.jastadd.tinytemplate.SimpleContext;
 import org.jastadd.tinytemplate.TemplateContext;
 import org.jastadd.tinytemplate.TemplateExpansionWarning;
 import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.ValueFormatters;
 
 /**
- * A string joining template fragment. Joins an iterable list of objects with
+ * A string joining template fragment. Joins the elements of a sequence with
  * an optional separator string.
  *
+ * <p>The joined value can be an iterable, an array, an iterator, an
+ * enumeration or a stream. The elements are written to the output one at a
+ * time, and elements of primitive arrays are not boxed.
+ *
+ * <p>A projection can be applied to each element, either an attribute path
+ * that is evaluated on the element, or a template that is expanded with the
+ * element as context object.
+ *
  * @author Niklas Fors <niklas.fors@cs.lth.se>
  */
 public class Join extends NestedIndentationFragment {
@@ -45,6 +62,21 @@ public class Join extends NestedIndentationFragment {
   protected final String sep;
   protected boolean isAttribute;
 
+  /**
+   * The attribute path of an attribute iterable
+   */
+  protected final AttributePath path;
+
+  /**
+   * The attribute path applied to each element, or <code>null</code>
+   */
+  protected final AttributePath projectionPath;
+
+  /**
+   * The template expanded for each element, or <code>null</code>
+   */
+  protected final String projectionTemplate;
+
   /**
    * @param iterable
    * @throws SyntaxError
@@ -59,6 +91,20 @@ public class Join extends NestedIndentationFragment {
    * @throws SyntaxError
    */
   public Join(String iterable, String separator) throws SyntaxError {
+    this(iterable, separator, null);
+  }
+
+  /**
+   * @param iterable
+   * @param separator
+   * @param projection Projection applied to each element, or
+   * <code>null</code>. An attribute path starting with <code>#</code> is
+   * evaluated on each element, otherwise the projection is the name of a
+   * template that is expanded with each element as context object.
+   * @throws SyntaxError
+   */
+  public Join(String iterable, String separator, String projection)
+      throws SyntaxError {
     if (iterable.startsWith("#")) {
       this.iterable = iterable.substring(1);
       isAttribute = true;
@@ -68,51 +114,227 @@ public class Join extends NestedIndentationFragment {
       }
       isAttribute = false;
     }
+    path = isAttribute ? new AttributePath(this.iterable) : null;
     if (separator == null) {
       throw new NullPointerException("Separator must be non-null.");
     }
     this.sep = separator;
+    if (projection == null) {
+      projectionPath = null;
+      projectionTemplate = null;
+    } else if (projection.startsWith("#")) {
+      projectionPath = new AttributePath(projection.substring(1));
+      projectionTemplate = null;
+    } else {
+      projectionPath = null;
+      projectionTemplate = projection;
+    }
   }
 
   @Override
   public void expand(TemplateContext context, StringBuilder out) {
+    Object seq = evalSequence(context);
+    try {
+      expandSequence(context, out, seq);
+    } finally {
+      Sequences.close(seq);
+    }
+  }
+
+  /**
+   * Evaluate the joined sequence
+   * @param context
+   * @return The sequence value
+   * @see Sequences
+   */
+  public Object evalSequence(TemplateContext context) {
     if (isAttribute) {
-      expandAttribute(context, out);
+      Object value = context.evalAttribute(path);
+      if (Sequences.isSequence(value)) {
+        return value;
+      } else {
+        throw new TemplateExpansionWarning("Attribute '" + iterable + "' is not iterable");
+      }
     } else {
-      expandVariable(context, out);
+      Object value = context.evalVariable(iterable);
+      if (Sequences.isSequence(value)) {
+        return value;
+      } else {
+        throw new TemplateExpansionWarning("Variable '" + iterable + "' is not iterable");
+      }
     }
   }
 
-  private void expandAttribute(TemplateContext context, StringBuilder out) {
-    Object value = context.evalAttribute(iterable);
-    if (value instanceof Iterable) {
-      expandIterable(context, out, value);
+  @Override
+  public void link(Class<?> type, AttributeCache cache) throws SyntaxError {
+    if (isAttribute) {
+      linkAttribute(path, type, cache);
+    }
+  }
+
+  /**
+   * @return The separator string
+   */
+  public String getSeparator() {
+    return sep;
+  }
+
+  /**
+   * @return <code>true</code> if a projection is applied to each element
+   */
+  public boolean hasProjection() {
+    return projectionPath != null || projectionTemplate != null;
+  }
+
+  /**
+   * Create the context that the projection template of this join is
+   * expanded in. The same scope can be used for all elements of a sequence.
+   * @param context
+   * @return The projection scope, or <code>null</code> if this join does
+   * not have a projection template
+   */
+  public SimpleContext createScope(TemplateContext context) {
+    return projectionTemplate != null ? new SimpleContext(context, null) : null;
+  }
+
+  /**
+   * Expand one element of the joined sequence, applying the projection of
+   * this join.
+   * @param context
+   * @param scope The projection scope created by
+   * {@link #createScope(TemplateContext)}
+   * @param element
+   * @param out
+   */
+  public void expandElement(TemplateContext context, SimpleContext scope,
+      Object element, StringBuilder out) {
+    if (projectionTemplate != null) {
+      scope.setContextObject(element);
+      scope.expand(scope, projectionTemplate, out);
+      return;
+    }
+    Object value = projectionPath != null
+        ? projectionPath.evalOn(element, context) : element;
+    if (value instanceof Renderable) {
+      TemplateContext.render((Renderable) value, context, out);
     } else {
-      throw new TemplateExpansionWarning("Attribute '" + iterable + "' is not iterable");
+      context.getValueFormatters().append(value, out);
     }
   }
 
-  private void expandVariable(TemplateContext context, StringBuilder out) {
-    Object value = context.evalVariable(iterable);
-    if (value instanceof Iterable) {
-      expandIterable(context, out, value);
+  /**
+   * Append an element to the join output
+   * @param scope Context for expanding the projection template, or
+   * <code>null</code>
+   */
+  private void append(JoinOutput output, SimpleContext scope, Object element) {
+    if (projectionPath != null) {
+      output.append(projectionPath.evalOn(element, output.context));
+    } else if (projectionTemplate != null) {
+      scope.setContextObject(element);
+      scope.expand(scope, projectionTemplate, output.element());
+      output.endElement();
     } else {
-      throw new TemplateExpansionWarning("Variable '" + iterable + "' is not iterable");
+      output.append(element);
     }
   }
 
-  private void expandIterable(TemplateContext context, StringBuilder out, Object value) {
-    Iterable<?> itr = (Iterable<?>) value;
-    StringBuilder sb = new StringBuilder();
+  /**
+   * Writes joined elements and separators, through an indenting output if
+   * the join is indented.
+   */
+  private static class JoinOutput {
+    final TemplateContext context;
+    final StringBuilder out;
+
+    /**
+     * The indenting output, or <code>null</code> if the join is not indented
+     */
+    final IndentingAppendable target;
+
+    /**
+     * Buffer for formatting elements of an indented join
+     */
+    final StringBuilder buf;
+
+    final String sep;
     boolean first = true;
-    for (Object o : itr) {
-      if (sep != null && !first) {
-        sb.append(sep);
+
+    JoinOutput(TemplateContext context, StringBuilder out,
+        IndentingAppendable target, String sep) {
+      this.context = context;
+      this.out = out;
+      this.target = target;
+      this.buf = target == null ? out : new StringBuilder();
+      this.sep = sep;
+    }
+
+    /**
+     * Start the next element
+     * @return The buffer to format the element into
+     */
+    StringBuilder element() {
+      if (!first) {
+        if (target == null) {
+          out.append(sep);
+        } else {
+          target.append(sep);
+        }
       }
       first = false;
-      sb.append(String.valueOf(o));
+      if (target != null) {
+        buf.setLength(0);
+      }
+      return buf;
+    }
+
+    /**
+     * Finish the current element
+     */
+    void endElement() {
+      if (target != null) {
+        target.append(buf);
+      }
+    }
+
+    void append(Object value) {
+      if (value instanceof Renderable) {
+        element();
+        TemplateContext.render((Renderable) value, context,
+            target == null ? out : target);
+      } else {
+        context.getValueFormatters().append(value, element());
+        endElement();
+      }
+    }
+  }
+
+  private void expandSequence(TemplateContext context, StringBuilder out, Object seq) {
+    // An indented join is written through one indenting output, so that line
+    // breaks are indented the same way regardless of which value or
+    // separator they occur in.
+    IndentingAppendable target = hasIndentation()
+        ? (IndentingAppendable) indentingOutput(context, out) : null;
+    JoinOutput output = new JoinOutput(context, out, target, sep);
+    // The projection template is expanded in one context for all elements.
+    SimpleContext scope = createScope(context);
+    if (seq instanceof Object[]) {
+      for (Object o : (Object[]) seq) {
+        append(output, scope, o);
+      }
+    } else if (Sequences.isPrimitiveArray(seq) && !hasProjection()) {
+      int length = Array.getLength(seq);
+      ValueFormatters formatters = context.getValueFormatters();
+      for (int i = 0; i < length; ++i) {
+        Sequences.appendElement(seq, i, formatters, output.element());
+        output.endElement();
+      }
+    } else {
+      Iterator<?> iterator = Sequences.iterator(seq);
+      while (iterator.hasNext()) {
+        append(output, scope, iterator.next());
+      }
     }
-    expandWithIndentation(sb.toString(), context, out);
   }
 
   @Override
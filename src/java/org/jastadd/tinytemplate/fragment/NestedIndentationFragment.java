@@ -29,6 +29,7 @@
  */
 package org.jastadd.tinytemplate.fragment;
 
+import org.jastadd.tinytemplate.Renderable;
 import org.jastadd.tinytemplate.TemplateContext;
 import org.jastadd.tinytemplate.Indentation.IndentationFragment;
 
@@ -61,6 +62,62 @@ public abstract class NestedIndentationFragment extends AbstractFragment {
     }
   }
 
+  /**
+   * Append a value to the output. The value is formatted directly into the
+   * output, and is only converted to a string if it spans multiple lines and
+   * needs to be indented. Renderable values are rendered directly into the
+   * output and indented while they are rendered.
+   * @param value
+   * @param context
+   * @param out
+   */
+  protected void expandWithIndentation(Object value, TemplateContext context,
+      StringBuilder out) {
+    if (value instanceof Renderable) {
+      TemplateContext.render((Renderable) value, context, indentingOutput(context, out));
+      return;
+    }
+    int start = out.length();
+    context.getValueFormatters().append(value, out);
+    indent(start, context, out);
+  }
+
+  /**
+   * Indent the lines of the output following the given start position.
+   * @param start
+   * @param context
+   * @param out
+   */
+  protected void indent(int start, TemplateContext context, StringBuilder out) {
+    if (indentation == null) {
+      return;
+    }
+    for (int i = start; i < out.length(); ++i) {
+      char c = out.charAt(i);
+      if (c == '\n' || c == '\r') {
+        String expansion = out.substring(start);
+        out.setLength(start);
+        expandWithIndentation(expansion, context, out);
+        return;
+      }
+    }
+  }
+
+  /**
+   * @param context
+   * @param out
+   * @return An output that indents the lines appended to the given output,
+   * or the given output if this fragment is not indented
+   */
+  protected Appendable indentingOutput(TemplateContext context, StringBuilder out) {
+    if (indentation == null) {
+      return out;
+    }
+    StringBuilder indent = new StringBuilder();
+    indentation.expand(context, indent);
+    return new IndentingAppendable(out, indent.toString());
+  }
+
   /**
    * Set the indentation for this reference expansion fragment
    * @param indent
@@ -69,6 +126,13 @@ public abstract class NestedIndentationFragment extends AbstractFragment {
     indentation = indent;
   }
 
+  /**
+   * @return <code>true</code> if the expansion of this fragment is indented
+   */
+  public boolean hasIndentation() {
+    return indentation != null;
+  }
+
   @Override
   public boolean isExpansion() {
     return true;
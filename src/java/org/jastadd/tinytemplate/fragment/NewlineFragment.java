@@ -29,6 +29,8 @@
  */
 package org.jastadd.tinytemplate.fragment;
 
+import java.nio.charset.StandardCharsets;
+
 import org.jastadd.tinytemplate.TemplateContext;
 
 /**
@@ -38,10 +40,12 @@ import org.jastadd.tinytemplate.TemplateContext;
  *
  * @author Jesper Öqvist <jesper@llbit.se>
  */
-public class NewlineFragment extends AbstractFragment {
+public class NewlineFragment extends AbstractFragment implements StaticFragment {
 
   private static final String SYS_NL = System.getProperty("line.separator");
 
+  private static final byte[] SYS_NL_BYTES = SYS_NL.getBytes(StandardCharsets.UTF_8);
+
   /**
    * Singleton instance
    */
@@ -54,6 +58,11 @@ public class NewlineFragment extends AbstractFragment {
     out.append(SYS_NL);
   }
 
+  @Override
+  public byte[] getBytes() {
+    return SYS_NL_BYTES;
+  }
+
   @Override
   public String toString() {
     return SYS_NL;
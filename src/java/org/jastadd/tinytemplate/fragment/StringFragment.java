@@ -29,20 +29,25 @@
  */
 package org.jastadd.tinytemplate.fragment;
 
+import java.nio.charset.StandardCharsets;
+
 import org.jastadd.tinytemplate.TemplateContext;
 
 /**
  * @author Jesper Öqvist <jesper@llbit.se>
  */
-public class StringFragment extends AbstractFragment {
+public class StringFragment extends AbstractFragment implements StaticFragment {
 
   protected final String string;
 
+  private final byte[] bytes;
+
   /**
    * @param theString
    */
   public StringFragment(String theString) {
     string = theString;
+    bytes = theString.getBytes(StandardCharsets.UTF_8);
   }
 
   @Override
@@ -50,6 +55,11 @@ public class StringFragment extends AbstractFragment {
     out.append(string);
   }
 
+  @Override
+  public byte[] getBytes() {
+    return bytes;
+  }
+
   @Override
   public String toString() {
     return string;
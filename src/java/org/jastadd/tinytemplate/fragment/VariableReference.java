@@ -47,8 +47,11 @@ public class VariableReference extends NestedIndentationFragment {
 
   @Override
   public void expand(TemplateContext context, StringBuilder out) {
-    expandWithIndentation(String.valueOf(context.evalVariable(variable)),
-        context, out);
+    if (hasIndentation()) {
+      expandWithIndentation(context.evalVariable(variable), context, out);
+    } else {
+      context.expandVariable(variable, out);
+    }
   }
 
   @Override
@@ -0,0 +1,166 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import org.jastadd.tinytemplate.AttributeTable;
+
+/**
+ * Generates attribute tables for classes annotated with
+ * {@link org.jastadd.tinytemplate.TemplateAttributes}.
+ *
+ * <p>The processor is not registered as a service, it has to be enabled
+ * explicitly with the <code>-processor</code> option of javac.
+ *
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+@SupportedAnnotationTypes("org.jastadd.tinytemplate.TemplateAttributes")
+public class AttributeTableProcessor extends AbstractProcessor {
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (TypeElement annotation: annotations) {
+      for (Element element: roundEnv.getElementsAnnotatedWith(annotation)) {
+        if (element.getKind() != ElementKind.CLASS) {
+          processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+              "only classes can have template attribute tables", element);
+          continue;
+        }
+        try {
+          generateTable((TypeElement) element);
+        } catch (IOException e) {
+          processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+              "failed to generate attribute table: " + e.getMessage(), element);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The attribute methods of the class
+   */
+  private static List<ExecutableElement> attributes(TypeElement type) {
+    List<ExecutableElement> attributes = new ArrayList<ExecutableElement>();
+    for (ExecutableElement method: ElementFilter.methodsIn(type.getEnclosedElements())) {
+      Set<Modifier> modifiers = method.getModifiers();
+      if (!modifiers.contains(Modifier.PRIVATE)
+          && !modifiers.contains(Modifier.STATIC)
+          && method.getParameters().isEmpty()
+          && method.getReturnType().getKind() != TypeKind.VOID) {
+        attributes.add(method);
+      }
+    }
+    return attributes;
+  }
+
+  private void generateTable(TypeElement type) throws IOException {
+    PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+    String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+    String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+    String tableName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1)
+        + AttributeTable.SUFFIX;
+    String typeName = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+    JavaFileObject file = processingEnv.getFiler().createSourceFile(
+        binaryName + AttributeTable.SUFFIX, type);
+    PrintWriter out = new PrintWriter(file.openWriter());
+    try {
+      if (!packageName.isEmpty()) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("import java.lang.reflect.InvocationTargetException;");
+      out.println();
+      out.println("import org.jastadd.tinytemplate.AttributeAccessor;");
+      out.println("import org.jastadd.tinytemplate.AttributeTable;");
+      out.println();
+      out.println("/**");
+      out.println(" * Generated attribute table for {@link " + typeName + "}");
+      out.println(" */");
+      out.println("public final class " + tableName + " implements AttributeTable {");
+      List<ExecutableElement> attributes = attributes(type);
+      for (int i = 0; i < attributes.size(); ++i) {
+        String name = attributes.get(i).getSimpleName().toString();
+        out.println("  private static final AttributeAccessor A" + i + " = new AttributeAccessor() {");
+        out.println("    @Override");
+        out.println("    public Object eval(Object target) throws Exception {");
+        out.println("      try {");
+        out.println("        return ((" + typeName + ") target)." + name + "();");
+        out.println("      } catch (Throwable e) {");
+        out.println("        throw new InvocationTargetException(e);");
+        out.println("      }");
+        out.println("    }");
+        out.println("  };");
+        out.println();
+      }
+      out.println("  @Override");
+      out.println("  public AttributeAccessor accessor(String attribute) {");
+      out.println("    switch (attribute) {");
+      for (int i = 0; i < attributes.size(); ++i) {
+        String name = attributes.get(i).getSimpleName().toString();
+        out.println("      case \"" + name + "\":");
+        out.println("        return A" + i + ";");
+      }
+      out.println("      default:");
+      out.println("        return null;");
+      out.println("    }");
+      out.println("  }");
+      out.println("}");
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jastadd.tinytemplate.AttributeResultCache;
+import org.jastadd.tinytemplate.CacheableAttribute;
+import org.jastadd.tinytemplate.SimpleContext;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.TinyTemplate;
+import org.junit.Test;
+
+/**
+ * Tests for caching attribute values between expansions
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+@SuppressWarnings("javadoc")
+public class TestAttributeResultCache {
+
+  public TestAttributeResultCache() {
+    TinyTemplate.printWarnings(false);
+    TinyTemplate.throwExceptions(true);
+  }
+
+  public static class Node {
+    public int count = 0;
+
+    @CacheableAttribute
+    public int cached() {
+      return ++count;
+    }
+
+    public int uncached() {
+      return ++count;
+    }
+  }
+
+  @CacheableAttribute
+  public static class Leaf {
+    public int count = 0;
+
+    public int next() {
+      return ++count;
+    }
+  }
+
+  @Test
+  public void testAnnotation() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#cached #uncached]]\nbar = [[#next]]");
+    tt.setAttributeResultCaching(true);
+    Node node = new Node();
+    assertEquals("1 2", new SimpleContext(tt, node).expand("foo"));
+    assertEquals("1 3", new SimpleContext(tt, node).expand("foo"));
+    Leaf leaf = new Leaf();
+    assertEquals("1", new SimpleContext(tt, leaf).expand("bar"));
+    assertEquals("1", new SimpleContext(tt, leaf).expand("bar"));
+
+    AttributeResultCache cache = tt.getAttributeResultCache();
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(2, cache.size());
+
+    // Values are cached per context object.
+    assertEquals("1", new SimpleContext(tt, new Leaf()).expand("bar"));
+  }
+
+  @Test
+  public void testDeclared() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#uncached #count]]");
+    tt.setAttributeResultCaching(true);
+    tt.getAttributeResultCache().declareCacheable(Node.class, "uncached");
+    Node node = new Node();
+    assertEquals("1 1", new SimpleContext(tt, node).expand("foo"));
+    node.count = 5;
+    assertEquals("1 5", new SimpleContext(tt, node).expand("foo"));
+
+    tt.getAttributeResultCache().declareCacheable(Object.class);
+    assertTrue(tt.getAttributeResultCache().isCacheable(String.class, "length"));
+  }
+
+  @Test
+  public void testInvalidate() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#cached]]");
+    tt.setAttributeResultCaching(true);
+    AttributeResultCache cache = tt.getAttributeResultCache();
+    Node node = new Node();
+    SimpleContext tc = new SimpleContext(tt, node);
+    assertEquals("1", tc.expand("foo"));
+    assertEquals("1", tc.expand("foo"));
+    cache.invalidate(node, "cached");
+    assertEquals("2", tc.expand("foo"));
+    cache.invalidate(node);
+    assertEquals("3", tc.expand("foo"));
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    assertEquals("4", tc.expand("foo"));
+  }
+
+  @Test
+  public void testBounds() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#cached]]");
+    tt.setAttributeResultCaching(true);
+    AttributeResultCache cache = tt.getAttributeResultCache();
+    cache.setMaxSize(2);
+    Node a = new Node();
+    Node b = new Node();
+    Node c = new Node();
+    new SimpleContext(tt, a).expand("foo");
+    new SimpleContext(tt, b).expand("foo");
+    new SimpleContext(tt, a).expand("foo");
+    new SimpleContext(tt, c).expand("foo");
+    // b was the least recently used value.
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertEquals("1", new SimpleContext(tt, a).expand("foo"));
+    assertEquals("2", new SimpleContext(tt, b).expand("foo"));
+
+    cache.setTimeToLive(1, TimeUnit.NANOSECONDS);
+    cache.invalidateAll();
+    assertEquals("2", new SimpleContext(tt, a).expand("foo"));
+    assertEquals("3", new SimpleContext(tt, a).expand("foo"));
+  }
+
+  @Test
+  public void testDisabled() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#cached]]");
+    assertFalse(tt.getAttributeResultCache().isEnabled());
+    Node node = new Node();
+    assertEquals("1", new SimpleContext(tt, node).expand("foo"));
+    assertEquals("2", new SimpleContext(tt, node).expand("foo"));
+  }
+
+  public static class Bean {
+    public int count = 0;
+    public boolean fail = true;
+
+    @CacheableAttribute
+    public int getNext() {
+      return ++count;
+    }
+
+    @CacheableAttribute
+    public String flaky() {
+      count += 1;
+      if (fail) {
+        throw new IllegalStateException("not ready");
+      }
+      return "ready";
+    }
+
+    @CacheableAttribute
+    public Object nothing() {
+      count += 1;
+      return null;
+    }
+  }
+
+  /**
+   * Annotated JavaBean getters are cacheable
+   */
+  @Test
+  public void testGetter() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#next]]");
+    tt.setAttributeResultCaching(true);
+    Bean bean = new Bean();
+    assertEquals("1", new SimpleContext(tt, bean).expand("foo"));
+    assertEquals("1", new SimpleContext(tt, bean).expand("foo"));
+    assertTrue(tt.getAttributeResultCache().isCacheable(Bean.class, "next",
+        tt.getAttributeCache()));
+  }
+
+  /**
+   * Failed evaluations and null values are not cached
+   */
+  @Test
+  public void testFailure() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#flaky]]\nbar = [[#nothing]]");
+    tt.setAttributeResultCaching(true);
+    TinyTemplate.throwExceptions(false);
+    try {
+      Bean bean = new Bean();
+      String failed = new SimpleContext(tt, bean).expand("foo");
+      assertTrue(failed.contains("not ready"));
+      assertEquals(0, tt.getAttributeResultCache().size());
+      bean.fail = false;
+      assertEquals("ready", new SimpleContext(tt, bean).expand("foo"));
+      assertEquals(2, bean.count);
+
+      new SimpleContext(tt, bean).expand("bar");
+      new SimpleContext(tt, bean).expand("bar");
+      assertEquals(4, bean.count);
+      assertEquals(1, tt.getAttributeResultCache().size());
+    } finally {
+      TinyTemplate.throwExceptions(true);
+    }
+  }
+
+  /**
+   * Attributes evaluated directly on a context use the result cache
+   */
+  @Test
+  public void testEvalAttribute() {
+    TinyTemplate tt = new TinyTemplate();
+    tt.setAttributeResultCaching(true);
+    Node node = new Node();
+    assertEquals(1, new SimpleContext(tt, node).evalAttribute("cached"));
+    assertEquals(1, new SimpleContext(tt, node).evalAttribute("cached"));
+    assertEquals(1, tt.getAttributeResultCache().getHits());
+    assertEquals(2, new SimpleContext(tt, node).evalAttribute("uncached"));
+  }
+}
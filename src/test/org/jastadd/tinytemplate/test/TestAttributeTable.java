@@ -0,0 +1,163 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.jastadd.tinytemplate.SimpleContext;
+import org.jastadd.tinytemplate.TemplateContext;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.TinyTemplate;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests for generated attribute tables
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+@SuppressWarnings("javadoc")
+public class TestAttributeTable {
+
+  public TestAttributeTable() {
+    TinyTemplate.printWarnings(false);
+    TinyTemplate.throwExceptions(true);
+  }
+
+  /**
+   * Compile a source file with the attribute table processor
+   * @return The output directory
+   */
+  private static File compile(String className, String source) throws IOException {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    Assume.assumeNotNull(compiler);
+    File dir = Files.createTempDirectory("tinytemplate").toFile();
+    File file = new File(dir, className.replace('.', '/') + ".java");
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+    int result = compiler.run(null, null, null,
+        "-processor", "org.jastadd.tinytemplate.processor.AttributeTableProcessor",
+        "-classpath", System.getProperty("java.class.path"),
+        "-d", dir.getPath(),
+        "-s", dir.getPath(),
+        file.getPath());
+    assertEquals(0, result);
+    return dir;
+  }
+
+  /**
+   * Attributes of a package-private class can be evaluated through the
+   * generated table, without reflection
+   */
+  @Test
+  public void testGeneratedTable() throws Exception {
+    File dir = compile("gen.Node",
+        "package gen;\n" +
+        "@org.jastadd.tinytemplate.TemplateAttributes\n" +
+        "class Node {\n" +
+        "  public String name() { return \"node\"; }\n" +
+        "  int size() { return 3; }\n" +
+        "  public String fail() { throw new IllegalStateException(\"oops\"); }\n" +
+        "  public void run() { }\n" +
+        "  public String arg(int x) { return null; }\n" +
+        "  public static Object create() { return new Node(); }\n" +
+        "  public static class Leaf extends Node {\n" +
+        "    public String name() { return \"leaf\"; }\n" +
+        "  }\n" +
+        "}\n");
+    assertTrue(new File(dir, "gen/Node_AttributeTable.java").isFile());
+    String table = new String(Files.readAllBytes(
+        new File(dir, "gen/Node_AttributeTable.java").toPath()), StandardCharsets.UTF_8);
+    assertTrue(table.contains("case \"name\""));
+    assertTrue(table.contains("case \"size\""));
+    assertTrue(!table.contains("case \"run\""));
+    assertTrue(!table.contains("case \"arg\""));
+    assertTrue(!table.contains("case \"create\""));
+
+    URLClassLoader loader = new URLClassLoader(new URL[] { dir.toURI().toURL() },
+        getClass().getClassLoader());
+    try {
+      Method create = loader.loadClass("gen.Node").getMethod("create");
+      create.setAccessible(true);
+      Object node = create.invoke(null);
+      Object leaf = loader.loadClass("gen.Node$Leaf").getDeclaredConstructor().newInstance();
+
+      TinyTemplate tt = new TinyTemplate("test = [[#name #size]]\nfail = [[#fail]]");
+      TemplateContext tc = new SimpleContext(tt, node);
+      assertEquals("node 3", tc.expand("test"));
+      // The subclass has no table of its own, but overrides a tabled method.
+      assertEquals("leaf 3", new SimpleContext(tt, leaf).expand("test"));
+      try {
+        tc.expand("fail");
+        fail("expected expansion warning");
+      } catch (RuntimeException e) {
+        assertEquals("Template expansion warning: while expanding template 'fail': "
+            + "failed to eval attribute 'fail'; reason: invocation target exception (oops)",
+            e.getMessage());
+      }
+    } finally {
+      loader.close();
+      delete(dir);
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child: children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Classes without tables are still evaluated reflectively
+   */
+  @Test
+  public void testNoTable() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[#size]]");
+    assertEquals("3", new SimpleContext(tt, new ArrayList<Integer>(Arrays.asList(1, 2, 3))).expand("test"));
+  }
+}
@@ -31,9 +31,18 @@ package org.jastadd.tinytemplate.test;
 
 import static org.junit.Assert.*;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jastadd.tinytemplate.AttributeAccessor;
+import org.jastadd.tinytemplate.AttributeResolver;
+import org.jastadd.tinytemplate.AttributeSite;
 import org.jastadd.tinytemplate.SimpleContext;
 import org.jastadd.tinytemplate.TinyTemplate;
 import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.test.mock.MBean;
+import org.jastadd.tinytemplate.test.mock.MLeaf;
+import org.jastadd.tinytemplate.test.mock.MNode;
 import org.junit.Test;
 
 /**
@@ -127,4 +136,370 @@ public class TestAttributes {
 
     assertEquals("", tc.expand("t"));
   }
+
+  /**
+   * An attribute site caches the accessor for each context class
+   */
+  @Test
+  public void testInlineCache_1() {
+    AttributeSite site = new AttributeSite(2);
+    assertEquals("a", TinyTemplate.evalAttribute("toString", "a", site));
+    assertEquals("b", TinyTemplate.evalAttribute("toString", "b", site));
+    assertEquals("1", TinyTemplate.evalAttribute("toString", 1, site));
+    assertEquals(1, site.getHits());
+    assertEquals(2, site.getMisses());
+    assertEquals(2, site.getEntryCount());
+
+    // The site is full, further classes use the shared cache.
+    assertEquals("1.5", TinyTemplate.evalAttribute("toString", 1.5, site));
+    assertEquals(1, site.getMegamorphicLookups());
+    assertEquals(2, site.getEntryCount());
+  }
+
+  /**
+   * Missing attributes are reported each time they are evaluated
+   */
+  @Test
+  public void testInlineCache_2() {
+    AttributeSite site = new AttributeSite();
+    for (int i = 0; i < 2; ++i) {
+      assertEquals("<failed to eval attribute 'imaginaryMethod'; reason: no such method>",
+          TinyTemplate.evalAttribute("imaginaryMethod", "the string", site));
+    }
+  }
+
+  /**
+   * Primitive attribute values are boxed
+   */
+  @Test
+  public void testPrimitiveAttribute() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#length #isEmpty]]");
+    SimpleContext tc = new SimpleContext(tt, "the string");
+    assertEquals("10 false", tc.expand("foo"));
+  }
+
+  private static class Hidden {
+    @SuppressWarnings("unused")
+    public String name() {
+      return "hidden";
+    }
+  }
+
+  /**
+   * Methods of non-public classes are not accessible
+   */
+  @Test
+  public void testNonPublicClass() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#name]]");
+    SimpleContext tc = new SimpleContext(tt, new Hidden());
+    assertEquals("<failed to eval attribute 'name'; reason: illegal access exception>",
+        tc.expand("foo"));
+  }
+
+  /**
+   * A template bound to a context class uses the attributes resolved at
+   * bind time, and can still be expanded with subclasses of the context class
+   * @throws SyntaxError
+   */
+  @Test
+  public void testBinding_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[$if(#isLeaf)#name$else$join(#children, \",\")$endif]]");
+    tt.bindTemplate("foo", MNode.class);
+    assertEquals("a,b", new SimpleContext(tt, new MNode()).expand("foo"));
+    assertEquals("leaf", new SimpleContext(tt, new MLeaf()).expand("foo"));
+  }
+
+  public static class TitledBase {
+    public String getTitle() {
+      return "base";
+    }
+  }
+
+  public static class TitledSub extends TitledBase {
+    public String title() {
+      return "sub";
+    }
+  }
+
+  /**
+   * Subclasses of the bound context class resolve their own attributes
+   * @throws SyntaxError
+   */
+  @Test
+  public void testBinding_4() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#title]]");
+    tt.bindTemplate("foo", TitledBase.class);
+    assertEquals("base", new SimpleContext(tt, new TitledBase()).expand("foo"));
+    assertEquals("sub", new SimpleContext(tt, new TitledSub()).expand("foo"));
+  }
+
+  /**
+   * Missing attributes are reported when the template is bound
+   */
+  @Test
+  public void testBinding_2() {
+    try {
+      TinyTemplate tt = new TinyTemplate("foo = [[$if(#isLeaf)#imaginaryMethod$endif]]");
+      tt.bindTemplate("foo", MNode.class);
+      fail("Expected syntax error!");
+    } catch (SyntaxError e) {
+      assertEquals("in template 'foo': the attribute 'imaginaryMethod' does not exist in "
+          + "org.jastadd.tinytemplate.test.mock.MNode", e.getMessage());
+    }
+  }
+
+  /**
+   * Templates are bound to context classes by the naming convention
+   * @throws SyntaxError
+   */
+  @Test
+  public void testBinding_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "MNode.name = [[#name]]\n" +
+        "MLeaf.name:upper = [[#name]]\n" +
+        "Unknown.name = [[#name]]\n" +
+        "name = [[#name]]");
+    assertEquals(2, tt.bindTemplates("org.jastadd.tinytemplate.test.mock"));
+    assertEquals("leaf", new SimpleContext(tt, new MLeaf()).expand("MLeaf.name:upper"));
+    // Unbound templates are still evaluated by name.
+    assertEquals("leaf", new SimpleContext(tt, new MLeaf()).expand("Unknown.name"));
+  }
+
+  /**
+   * Map entries, JavaBean getters and public fields are attributes
+   * @throws SyntaxError
+   */
+  @Test
+  public void testResolver_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#name #empty #title]]");
+    assertEquals("bean true field", new SimpleContext(tt, new MBean()).expand("foo"));
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("name", "map");
+    map.put("empty", 1);
+    map.put("title", 2.5);
+    // Map entries take precedence over methods.
+    assertEquals("map 1 2.5", new SimpleContext(tt, map).expand("foo"));
+
+    // Methods are used for keys that are not in the map.
+    map.remove("empty");
+    assertEquals("map false 2.5", new SimpleContext(tt, map).expand("foo"));
+  }
+
+  /**
+   * Registered attributes and resolvers take precedence over methods
+   * @throws SyntaxError
+   */
+  @Test
+  public void testResolver_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("foo = [[#name #length]]");
+    tt.registerAttribute(MNode.class, "length", new AttributeAccessor() {
+      @Override
+      public Object eval(Object target) {
+        return ((MNode) target).name().length();
+      }
+    });
+    tt.addAttributeResolver(new AttributeResolver() {
+      @Override
+      public AttributeAccessor resolve(Class<?> type, final String attribute) {
+        if (type != MLeaf.class || !attribute.equals("name")) {
+          return null;
+        }
+        return new AttributeAccessor() {
+          @Override
+          public Object eval(Object target) {
+            return "resolved";
+          }
+        };
+      }
+    });
+    assertEquals("node 4", new SimpleContext(tt, new MNode()).expand("foo"));
+    assertEquals("resolved 4", new SimpleContext(tt, new MLeaf()).expand("foo"));
+
+    // Resolvers are registered per engine.
+    TinyTemplate other = new TinyTemplate("foo = [[#name]]");
+    assertEquals("leaf", new SimpleContext(other, new MLeaf()).expand("foo"));
+  }
+
+  /**
+   * Attributes registered after expansion has started replace the
+   * accessors cached in attribute sites and linked sites
+   * @throws SyntaxError
+   */
+  @Test
+  public void testResolver_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "foo = [[#name]]\n" +
+        "bar = [[#name]]");
+    tt.bindTemplate("bar", MNode.class);
+    assertEquals("node", new SimpleContext(tt, new MNode()).expand("foo"));
+    assertEquals("node", new SimpleContext(tt, new MNode()).expand("bar"));
+    tt.registerAttribute(MNode.class, "name", new AttributeAccessor() {
+      @Override
+      public Object eval(Object target) {
+        return "registered";
+      }
+    });
+    assertEquals("registered", new SimpleContext(tt, new MNode()).expand("foo"));
+    assertEquals("registered", new SimpleContext(tt, new MNode()).expand("bar"));
+  }
+
+  /**
+   * Attribute paths evaluate each attribute on the value of the previous
+   * attribute
+   * @throws SyntaxError
+   */
+  @Test
+  public void testPath_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "ref = [[#(node.name.length)]]\n" +
+        "cond = [[$if(#node.isLeaf)leaf$else$(node.name)$endif]]\n" +
+        "join = [[$join(#node.children, \",\")]]");
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("node", new MNode());
+    SimpleContext tc = new SimpleContext(tt, map);
+    tc.bind("node.name", "var");
+    assertEquals("4", tc.expand("ref"));
+    assertEquals("var", tc.expand("cond"));
+    assertEquals("a,b", tc.expand("join"));
+    map.put("node", new MLeaf());
+    assertEquals("leaf", tc.expand("cond"));
+  }
+
+  /**
+   * A null value in an attribute path skips the rest of the path
+   * @throws SyntaxError
+   */
+  @Test
+  public void testPath_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "ref = [[#(node.name.length)]]\n" +
+        "cond = [[$if(#node.isLeaf)leaf$else!leaf$endif]]");
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("node", null);
+    SimpleContext tc = new SimpleContext(tt, map);
+    assertEquals("null", tc.expand("ref"));
+    assertEquals("!leaf", tc.expand("cond"));
+  }
+
+  /**
+   * A failed attribute in a path skips the rest of the path, and the failed
+   * attribute is reported with the path
+   * @throws SyntaxError
+   */
+  @Test
+  public void testPath_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "middle = [[#(node.imaginary.length)]]\n" +
+        "first = [[#(imaginary.name.length)]]");
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("node", new MNode());
+    SimpleContext tc = new SimpleContext(tt, map);
+    assertEquals("<failed to eval attribute 'imaginary' in attribute path "
+        + "'node.imaginary.length'; reason: no such method>", tc.expand("middle"));
+    tc = new SimpleContext(tt, new MNode());
+    assertEquals("<failed to eval attribute 'imaginary' in attribute path "
+        + "'imaginary.name.length'; reason: no such method>", tc.expand("first"));
+  }
+
+  /**
+   * Attribute paths can not contain empty attribute names
+   */
+  @Test
+  public void testPathError_1() {
+    try {
+      new TinyTemplate("foo = [[#(a..b)]]");
+      fail("Expected syntax error!");
+    } catch (SyntaxError e) {
+      assertEquals("Syntax error at line 1: the attribute path 'a..b' contains an empty attribute name",
+          e.getMessage());
+    }
+  }
+
+  /**
+   * Counts attribute evaluations
+   */
+  public static class Counter {
+    public int count = 0;
+
+    public int next() {
+      return ++count;
+    }
+
+    public Counter self() {
+      return this;
+    }
+
+    public boolean positive() {
+      return count > 0;
+    }
+  }
+
+  /**
+   * Memoized attributes are evaluated once per top-level expansion
+   * @throws SyntaxError
+   */
+  @Test
+  public void testMemo_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "foo = [[#next $if(#positive)#(self.next)$endif $include(bar)]]\n" +
+        "bar = [[#next]]");
+    tt.setAttributeMemoization(true);
+    Counter counter = new Counter();
+    SimpleContext tc = new SimpleContext(tt, counter);
+    assertEquals("1 1 1", tc.expand("foo"));
+    assertEquals("2 2 2", tc.expand("foo"));
+    assertEquals(4, tt.getAttributeMemo().getHits());
+    assertEquals(6, tt.getAttributeMemo().getMisses());
+
+    tt.setAttributeMemoization(false);
+    assertEquals("3 4 5", tc.expand("foo"));
+  }
+
+  /**
+   * Attributes evaluated outside of a template expansion are not memoized
+   */
+  @Test
+  public void testMemo_2() {
+    TinyTemplate tt = new TinyTemplate();
+    tt.setAttributeMemoization(true);
+    Counter counter = new Counter();
+    SimpleContext tc = new SimpleContext(tt, counter);
+    assertEquals(1, tc.evalAttribute("next"));
+    assertEquals(2, tc.evalAttribute("next", new AttributeSite()));
+    assertEquals(0, tt.getAttributeMemo().getMisses());
+  }
+
+  public static class Toggle extends Counter {
+    private final TinyTemplate tt;
+
+    public Toggle(TinyTemplate tt) {
+      this.tt = tt;
+    }
+
+    public String on() {
+      tt.setAttributeMemoization(true);
+      return "";
+    }
+
+    public String off() {
+      tt.setAttributeMemoization(false);
+      return "";
+    }
+  }
+
+  /**
+   * A nested expansion that started while memoization was disabled does not
+   * end the memoized outer expansion
+   * @throws SyntaxError
+   */
+  @Test
+  public void testMemo_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "foo = [[#next#off$include(bar)#next]]\n" +
+        "bar = [[#on]]");
+    tt.setAttributeMemoization(true);
+    SimpleContext tc = new SimpleContext(tt, new Toggle(tt));
+    assertEquals("11", tc.expand("foo"));
+  }
 }
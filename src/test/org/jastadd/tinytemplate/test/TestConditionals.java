@@ -265,16 +265,17 @@ public class TestConditionals {
   }
 
   /**
-   * Attribute conditions must be legal Java identifiers
+   * Attribute conditions must be legal Java identifiers, or paths of legal
+   * Java identifiers
    * @throws SyntaxError
    */
   @Test
   public void testConditionError_2() throws SyntaxError {
     try {
-      new TinyTemplate("dog = [[$if(#x.y)Woof!$(else)silence$endif]]");
+      new TinyTemplate("dog = [[$if(#x.0y)Woof!$(else)silence$endif]]");
       fail("Expected syntax error!");
     } catch (SyntaxError e) {
-      assertEquals("the attribute name 'x.y' is not a valid Java identifier", e.getMessage());
+      assertEquals("the attribute name '0y' is not a valid Java identifier", e.getMessage());
     }
   }
 
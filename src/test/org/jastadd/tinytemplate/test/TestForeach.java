@@ -0,0 +1,332 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jastadd.tinytemplate.LoopContext;
+import org.jastadd.tinytemplate.SimpleContext;
+import org.jastadd.tinytemplate.TemplateContext;
+import org.jastadd.tinytemplate.TemplateExpansionWarning;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.TemplateReader;
+import org.jastadd.tinytemplate.TinyTemplate;
+import org.junit.Test;
+
+/**
+ * Tests for foreach statements
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+@SuppressWarnings("javadoc")
+public class TestForeach {
+
+  private static final String NL = System.getProperty("line.separator");
+
+  /**
+   * Constructor
+   */
+  public TestForeach() {
+    TinyTemplate.printWarnings(false);
+    TinyTemplate.throwExceptions(true);
+  }
+
+  /**
+   * The body is expanded once per element
+   * @throws SyntaxError
+   */
+  @Test
+  public void testForeach_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("t = [[$foreach(x : #list)<$x>$endforeach]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    assertEquals("<a><b><c>", tc.expand("t"));
+  }
+
+  /**
+   * Variables and attributes of the enclosing context are visible in the
+   * body, and the loop variable shadows an outer variable
+   * @throws SyntaxError
+   */
+  @Test
+  public void testForeach_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[$foreach( x:$items )$x#name$y $endforeach$x]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("x", "outer");
+    tc.bind("y", "!");
+    tc.bind("items", Arrays.asList(1, 2));
+    assertEquals("1A! 2A! outer", tc.expand("t"));
+  }
+
+  /**
+   * Multi-line loop bodies keep their indentation
+   * @throws SyntaxError
+   */
+  @Test
+  public void testForeach_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[\n" +
+        "class #name {\n" +
+        "  $foreach(f : #list)\n" +
+        "  int $f;\n" +
+        "  $if(f)\n" +
+        "  $endif\n" +
+        "  $endforeach\n" +
+        "}\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    assertEquals(
+        "class A {" + NL +
+        "  int a;" + NL +
+        "  int b;" + NL +
+        "  int c;" + NL +
+        "}" + NL,
+        tc.expand("t"));
+  }
+
+  /**
+   * Nested loops
+   * @throws SyntaxError
+   */
+  @Test
+  public void testForeach_4() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[\n" +
+        "$foreach(x : #list)\n" +
+        "$x:\n" +
+        "  $foreach(y : #list)\n" +
+        "  $x$y\n" +
+        "  $endforeach\n" +
+        "$endforeach\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    StringBuilder expected = new StringBuilder();
+    for (String x : new A().list()) {
+      expected.append(x).append(":").append(NL);
+      for (String y : new A().list()) {
+        expected.append("  ").append(x).append(y).append(NL);
+      }
+    }
+    assertEquals(expected.toString(), tc.expand("t"));
+  }
+
+  /**
+   * Loops over primitive arrays, with boolean conditions on the loop
+   * variable
+   * @throws SyntaxError
+   */
+  @Test
+  public void testForeach_5() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[$foreach(i : ints)$i,$endforeach $foreach(b : bools)$if(b)T$else F$endif$endforeach]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("ints", new int[] { 3, -1 });
+    tc.bind("bools", new boolean[] { true, false, true });
+    assertEquals("3,-1, T FT", tc.expand("t"));
+  }
+
+  /**
+   * Looping over an empty sequence expands nothing
+   * @throws SyntaxError
+   */
+  @Test
+  public void testForeach_6() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[\n" +
+        "x\n" +
+        "$foreach(i : items)\n" +
+        "  $i\n" +
+        "$endforeach\n" +
+        "y\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("items", new Object[0]);
+    assertEquals("x" + NL + "y" + NL, tc.expand("t"));
+  }
+
+  /**
+   * Attributes of each element are read through variable paths on the loop
+   * variable
+   * @throws SyntaxError
+   */
+  @Test
+  public void testForeach_7() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[$foreach(f : #fields)$f.name.$if(f.visible)!$endif" +
+        "($foreach(c : f.children)$(c.name)$endforeach) $endforeach#name]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    assertEquals("x.!(yz) y.() z.() A", tc.expand("t"));
+  }
+
+  /**
+   * Variables bound on a loop context are local to the current iteration
+   * @throws SyntaxError
+   */
+  @Test
+  public void testForeach_8() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("y", "outer");
+    LoopContext scope = new LoopContext(tc, "x");
+    scope.setValue(new Field("f"));
+    assertEquals("outer", scope.evalVariable("y"));
+    scope.bind("y", "inner");
+    scope.bindInt("z", 3);
+    assertEquals("inner", scope.evalVariable("y"));
+    assertEquals(3, scope.evalVariable("z"));
+    assertEquals("outer", tc.evalVariable("y"));
+    assertEquals("f", scope.evalVariable("x.name"));
+    scope.flushVariables();
+    assertEquals("outer", scope.evalVariable("y"));
+
+    // Rebinding the loop variable starts a new iteration.
+    scope.bind("y", "first");
+    scope.setValue(new Field("g"));
+    assertEquals("outer", scope.evalVariable("y"));
+    scope.bind("y", "second");
+    scope.setInt(1);
+    assertEquals("outer", scope.evalVariable("y"));
+  }
+
+  /**
+   * A template reader expands loops
+   * @throws Exception
+   */
+  @Test
+  public void testReader_1() throws Exception {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[\n" +
+        "$foreach(x : #list)\n" +
+        "  $x\n" +
+        "$endforeach\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    StringWriter out = new StringWriter();
+    TemplateReader reader = new TemplateReader(tc, "t");
+    char[] buf = new char[2];
+    int n;
+    while ((n = reader.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    reader.close();
+    assertEquals(tc.expand("t"), out.toString());
+    assertEquals("  a" + NL + "  b" + NL + "  c" + NL, out.toString());
+  }
+
+  @Test(expected=TemplateExpansionWarning.class)
+  public void testNotIterable_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("t = [[$foreach(x : #name)$x$endforeach]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.expand("t");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testSyntaxError_1() throws SyntaxError {
+    new TinyTemplate("t = [[$foreach(x : #list)$x]]");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testSyntaxError_2() throws SyntaxError {
+    new TinyTemplate("t = [[$x$endforeach]]");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testSyntaxError_3() throws SyntaxError {
+    new TinyTemplate("t = [[$foreach(x #list)$x$endforeach]]");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testSyntaxError_4() throws SyntaxError {
+    new TinyTemplate("t = [[$foreach(x : #list)$x$else$endforeach]]");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testSyntaxError_5() throws SyntaxError {
+    new TinyTemplate("t = [[$if(a)$foreach(x : #list)$x$endif$endforeach]]");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testSyntaxError_6() throws SyntaxError {
+    new TinyTemplate("t = [[$if(a)$x$endforeach$endif]]");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testSyntaxError_7() throws SyntaxError {
+    new TinyTemplate("t = [[$foreach( : #list)$endforeach]]");
+  }
+
+  public static class Field {
+    private final String name;
+    private final boolean visible;
+    private final List<Field> children;
+
+    Field(String name, boolean visible, Field... children) {
+      this.name = name;
+      this.visible = visible;
+      this.children = Arrays.asList(children);
+    }
+
+    Field(String name) {
+      this(name, false);
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public boolean visible() {
+      return visible;
+    }
+
+    public List<Field> children() {
+      return children;
+    }
+  }
+
+  public static class A {
+    public String name() {
+      return "A";
+    }
+
+    public List<Field> fields() {
+      return Arrays.asList(
+          new Field("x", true, new Field("y"), new Field("z")),
+          new Field("y"),
+          new Field("z"));
+    }
+
+    public List<String> list() {
+      return Arrays.asList("a", "b", "c");
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Set;
+
+import org.jastadd.tinytemplate.GenerationPipeline;
+import org.jastadd.tinytemplate.GenerationPipeline.JobResult;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.TinyTemplate;
+import org.junit.Test;
+
+/**
+ * Tests for parallel generation of files
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+@SuppressWarnings("javadoc")
+public class TestGenerationPipeline {
+
+  private static final String NL = System.getProperty("line.separator");
+
+  public TestGenerationPipeline() {
+    TinyTemplate.printWarnings(false);
+    TinyTemplate.throwExceptions(true);
+  }
+
+  public static class Node {
+    private final String name;
+
+    public Node(String name) {
+      this.name = name;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public List<String> children() {
+      throw new IllegalStateException("no children");
+    }
+  }
+
+  private static String readFile(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testGenerate() throws SyntaxError, IOException, InterruptedException {
+    TinyTemplate tt = new TinyTemplate("Class = [[\nclass #name {\n  int x;\n}\n]]");
+    File dir = Files.createTempDirectory("tinytemplate").toFile();
+    GenerationPipeline pipeline = new GenerationPipeline(tt, 4, 2);
+    for (int i = 0; i < 50; ++i) {
+      pipeline.addJob("Class", new Node("C" + i), new File(dir, "p" + (i % 5) + "/C" + i + ".java"));
+    }
+    List<JobResult> results = pipeline.run();
+    assertEquals(50, results.size());
+    for (int i = 0; i < 50; ++i) {
+      JobResult result = results.get(i);
+      assertTrue(result.isChanged());
+      assertEquals(new File(dir, "p" + (i % 5) + "/C" + i + ".java"), result.getJob().getTarget());
+      assertEquals("class C" + i + " {" + NL + "  int x;" + NL + "}" + NL,
+          readFile(result.getJob().getTarget()));
+    }
+
+    // Unchanged files are not rewritten.
+    for (JobResult result: pipeline.run()) {
+      assertFalse(result.isChanged());
+    }
+  }
+
+  /**
+   * The first failed job is reported, in job order
+   */
+  @Test
+  public void testFailure() throws SyntaxError, IOException, InterruptedException {
+    TinyTemplate tt = new TinyTemplate(
+        "Good = [[#name]]\n" +
+        "Bad = [[$join(#children)]]");
+    File dir = Files.createTempDirectory("tinytemplate").toFile();
+    GenerationPipeline pipeline = new GenerationPipeline(tt, 4, 4);
+    pipeline.addJob("Good", new Node("a"), new File(dir, "a.txt"));
+    pipeline.addJob("Bad", new Node("b"), new File(dir, "b.txt"));
+    pipeline.addJob("Good", new Node("c"), new File(dir, "c.txt"));
+    pipeline.addJob("Bad", new Node("d"), new File(dir, "d.txt"));
+    try {
+      pipeline.run();
+      fail("expected generation failure");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("b.txt"));
+      assertEquals(1, e.getSuppressed().length);
+      assertTrue(e.getSuppressed()[0].getMessage().contains("d.txt"));
+    }
+    assertEquals("c", readFile(new File(dir, "c.txt")));
+    assertFalse(new File(dir, "b.txt").exists());
+  }
+
+  /**
+   * Generated files get the default permissions of new files, and
+   * regenerated files keep their permissions
+   */
+  @Test
+  public void testPermissions() throws SyntaxError, IOException, InterruptedException {
+    File dir = Files.createTempDirectory("tinytemplate").toFile();
+    if (Files.getFileAttributeView(dir.toPath(), PosixFileAttributeView.class) == null) {
+      // Not a POSIX file system.
+      return;
+    }
+    File probe = new File(dir, "probe.txt");
+    new FileOutputStream(probe).close();
+    Set<PosixFilePermission> defaults = Files.getPosixFilePermissions(probe.toPath());
+
+    TinyTemplate tt = new TinyTemplate("Class = [[class #name {}]]");
+    GenerationPipeline pipeline = new GenerationPipeline(tt, 2, 2);
+    for (int i = 0; i < 4; ++i) {
+      pipeline.addJob("Class", new Node("C" + i), new File(dir, "C" + i + ".java"));
+    }
+    for (JobResult result: pipeline.run()) {
+      assertEquals(defaults, Files.getPosixFilePermissions(result.getJob().getTarget().toPath()));
+    }
+
+    Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+    File target = new File(dir, "C0.java");
+    Files.write(target.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+    Files.setPosixFilePermissions(target.toPath(), permissions);
+    pipeline.run();
+    assertEquals("class C0 {}", readFile(target));
+    assertEquals(permissions, Files.getPosixFilePermissions(target.toPath()));
+  }
+}
@@ -0,0 +1,279 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jastadd.tinytemplate.CacheableAttribute;
+import org.jastadd.tinytemplate.IncrementalExpansion;
+import org.jastadd.tinytemplate.IncrementalExpansion.Change;
+import org.jastadd.tinytemplate.SimpleContext;
+import org.jastadd.tinytemplate.TemplateContext;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.TinyTemplate;
+import org.junit.Test;
+
+/**
+ * Tests for incremental template expansion
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+@SuppressWarnings("javadoc")
+public class TestIncrementalExpansion {
+
+  private static final String NL = System.getProperty("line.separator");
+
+  public TestIncrementalExpansion() {
+    TinyTemplate.printWarnings(false);
+    TinyTemplate.throwExceptions(true);
+  }
+
+  public static class Node {
+    public String name = "a";
+    public Node child = null;
+
+    public String name() {
+      return name;
+    }
+  }
+
+  @Test
+  public void testReuse() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "test = [[\n" +
+        "x = $x;\n" +
+        "y = $y;\n" +
+        "static\n" +
+        "name = #name;\n" +
+        "]]");
+    Node node = new Node();
+    TemplateContext tc = new SimpleContext(tt, node);
+    tc.bind("x", "1");
+    tc.bind("y", "2");
+    IncrementalExpansion expansion = new IncrementalExpansion(tc, "test");
+    assertEquals(tc.expand("test"), expansion.expand());
+    // Four lines of text, plus the empty last line.
+    assertEquals(5, expansion.getExpandedLines());
+
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(0, expansion.getExpandedLines());
+    assertEquals(0, expansion.getChanges().size());
+
+    tc.bind("y", "3");
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(1, expansion.getExpandedLines());
+    List<Change> changes = expansion.getChanges();
+    assertEquals(1, changes.size());
+    assertEquals(1, changes.get(0).getLine());
+    assertEquals(("x = 1;" + NL).length(), changes.get(0).getOffset());
+    assertEquals("y = 2;" + NL, changes.get(0).getOldText());
+    assertEquals("y = 3;" + NL, changes.get(0).getNewText());
+
+    node.name = "b";
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(1, expansion.getExpandedLines());
+  }
+
+  /**
+   * Conditionals, joins and includes record the values they read
+   */
+  @Test
+  public void testNested() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "inc = [[included $z]]\n" +
+        "test = [[\n" +
+        "$if(cond)\n" +
+        "  then $x\n" +
+        "$endif\n" +
+        "list: $join(list, \", \")\n" +
+        "$include(inc)\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    List<String> list = new ArrayList<String>();
+    list.add("a");
+    tc.bind("cond", "true");
+    tc.bind("x", "x");
+    tc.bind("list", list);
+    tc.bind("z", "z");
+    IncrementalExpansion expansion = new IncrementalExpansion(tc, "test");
+    assertEquals(tc.expand("test"), expansion.expand());
+
+    // Mutating the bound list is detected.
+    list.add("b");
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(1, expansion.getExpandedLines());
+
+    tc.bind("x", "y");
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(1, expansion.getExpandedLines());
+
+    tc.bind("cond", "false");
+    tc.bind("x", "z");
+    assertEquals(tc.expand("test"), expansion.expand());
+    tc.bind("x", "w");
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(0, expansion.getExpandedLines());
+
+    tc.bind("z", "zz");
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(1, expansion.getExpandedLines());
+  }
+
+  /**
+   * Attribute paths are recorded as a whole
+   */
+  @Test
+  public void testPath() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "test = [[\n" +
+        "child = #(child.name);\n" +
+        "]]");
+    Node node = new Node();
+    node.child = new Node();
+    TemplateContext tc = new SimpleContext(tt, node);
+    IncrementalExpansion expansion = new IncrementalExpansion(tc, "test");
+    assertEquals("child = a;" + NL, expansion.expand());
+
+    // The child node is the same, but its name changed.
+    node.child.name = "b";
+    assertEquals("child = b;" + NL, expansion.expand());
+    assertEquals(1, expansion.getChanges().size());
+  }
+
+  /**
+   * Lines with join projections are re-expanded each time
+   */
+  @Test
+  public void testProjection() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "item = [[<#name>]]\n" +
+        "test = [[\n" +
+        "names = $join(nodes, \",\", #name);\n" +
+        "items = $join(nodes, \"\", $include(item));\n" +
+        "static\n" +
+        "]]");
+    Node a = new Node();
+    Node b = new Node();
+    b.name = "b";
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("nodes", Arrays.asList(a, b));
+    IncrementalExpansion expansion = new IncrementalExpansion(tc, "test");
+    assertEquals("names = a,b;" + NL + "items = <a><b>;" + NL + "static" + NL,
+        expansion.expand());
+
+    // The joined list is the same, but a projected value changed.
+    a.name = "c";
+    assertEquals("names = c,b;" + NL + "items = <c><b>;" + NL + "static" + NL,
+        expansion.expand());
+    assertEquals(2, expansion.getChanges().size());
+    assertEquals(2, expansion.getExpandedLines());
+  }
+
+  public static class Mutable {
+    public String text = "a";
+
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+  /**
+   * Values changed in place are detected, also when the value is the same
+   * object as before
+   */
+  @Test
+  public void testMutable() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "test = [[\n" +
+        "m = $m;\n" +
+        "list = $join(list);\n" +
+        "sb = $sb;\n" +
+        "map = $map;\n" +
+        "s = $s;\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    Mutable mutable = new Mutable();
+    List<String> list = new ArrayList<String>();
+    list.add("a");
+    StringBuilder sb = new StringBuilder("x");
+    Map<String, String> map = new HashMap<String, String>();
+    tc.bind("m", mutable);
+    tc.bind("list", list);
+    tc.bind("sb", sb);
+    tc.bind("map", map);
+    tc.bind("s", "s");
+    IncrementalExpansion expansion = new IncrementalExpansion(tc, "test");
+    expansion.expand();
+
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(0, expansion.getExpandedLines());
+
+    mutable.text = "b";
+    list.add("b");
+    sb.append("y");
+    map.put("k", "v");
+    assertEquals(tc.expand("test"), expansion.expand());
+    assertEquals(4, expansion.getExpandedLines());
+    assertEquals(4, expansion.getChanges().size());
+  }
+
+  public static class Counter {
+    public int count = 0;
+
+    @CacheableAttribute
+    public String value() {
+      count += 1;
+      return "v";
+    }
+  }
+
+  /**
+   * Recorded attributes are checked through their evaluation site, so
+   * cached attribute values are reused
+   */
+  @Test
+  public void testCachedAttribute() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[\nvalue = #value;\n]]");
+    tt.getAttributeResultCache().setEnabled(true);
+    Counter counter = new Counter();
+    TemplateContext tc = new SimpleContext(tt, counter);
+    IncrementalExpansion expansion = new IncrementalExpansion(tc, "test");
+    assertEquals("value = v;" + NL, expansion.expand());
+    assertEquals("value = v;" + NL, expansion.expand());
+    assertEquals(0, expansion.getExpandedLines());
+    assertEquals(1, counter.count);
+  }
+}
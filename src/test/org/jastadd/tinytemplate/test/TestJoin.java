@@ -31,14 +31,24 @@
 package org.jastadd.tinytemplate.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.StringWriter;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 import org.jastadd.tinytemplate.SimpleContext;
 import org.jastadd.tinytemplate.TemplateContext;
+import org.jastadd.tinytemplate.TemplateExpansionWarning;
 import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.TemplateReader;
 import org.jastadd.tinytemplate.TinyTemplate;
 import org.junit.Test;
 
@@ -189,6 +199,253 @@ public class TestJoin {
         tc.expand("t"));
   }
 
+  /**
+   * Object and primitive arrays can be joined
+   * @throws SyntaxError
+   */
+  @Test
+  public void testSequence_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("t = [[$join($a, \",\") $join($b, \",\") $join($c) $join($d, \" \")]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("a", new Object[] { "x", 1, null });
+    tc.bind("b", new int[] { 1, -2, 3 });
+    tc.bind("c", new char[] { 'h', 'i' });
+    tc.bind("d", new double[] { 0.5, 2 });
+    assertEquals("x,1,null 1,-2,3 hi 0.5 2.0", tc.expand("t"));
+  }
+
+  /**
+   * Iterators and enumerations can be joined
+   * @throws SyntaxError
+   */
+  @Test
+  public void testSequence_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("t = [[$join($a, \",\") $join($b, \",\")]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("a", Arrays.asList("p", "q").iterator());
+    tc.bind("b", Collections.enumeration(Arrays.asList(7, 8)));
+    assertEquals("p,q 7,8", tc.expand("t"));
+  }
+
+  /**
+   * Indented primitive array join
+   * @throws SyntaxError
+   */
+  @Test
+  public void testSequence_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("t = [[  $join($a, \"\n\")]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("a", new long[] { 1, 2, 3 });
+    assertEquals("  1" + NL + "  2" + NL + "  3", tc.expand("t"));
+  }
+
+  /**
+   * Arrays are joined lazily by a template reader
+   * @throws Exception
+   */
+  @Test
+  public void testSequence_4() throws Exception {
+    TinyTemplate tt = new TinyTemplate("t = [[$join($a, \",\")]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("a", new boolean[] { true, false });
+    StringWriter out = new StringWriter();
+    TemplateReader reader = new TemplateReader(tc, "t");
+    char[] buf = new char[4];
+    int n;
+    while ((n = reader.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    reader.close();
+    assertEquals("true,false", out.toString());
+  }
+
+  /**
+   * Non-sequence values can not be joined
+   * @throws SyntaxError
+   */
+  @Test(expected=TemplateExpansionWarning.class)
+  public void testSequence_5() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("t = [[$join($a)]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("a", 123);
+    tc.expand("t");
+  }
+
+  /**
+   * Closeable iterators are closed after they have been joined, also by a
+   * template reader
+   * @throws Exception
+   */
+  @Test
+  public void testSequence_6() throws Exception {
+    TinyTemplate tt = new TinyTemplate("t = [[$join($a, \",\")]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    ClosingIterator iterator = new ClosingIterator("p", "q");
+    tc.bind("a", iterator);
+    assertEquals("p,q", tc.expand("t"));
+    assertTrue(iterator.closed);
+
+    iterator = new ClosingIterator("r", "s");
+    tc.bind("a", iterator);
+    TemplateReader reader = new TemplateReader(tc, "t");
+    assertEquals('r', reader.read());
+    assertFalse(iterator.closed);
+    reader.close();
+    assertTrue(iterator.closed);
+  }
+
+  /**
+   * Streams are joined and closed, when running on Java 8 or later
+   * @throws Exception
+   */
+  @Test
+  public void testSequence_7() throws Exception {
+    Method streamMethod;
+    try {
+      streamMethod = Collection.class.getMethod("stream");
+    } catch (NoSuchMethodException e) {
+      // Streams are not available.
+      return;
+    }
+    Method onCloseMethod = Class.forName("java.util.stream.BaseStream")
+        .getMethod("onClose", Runnable.class);
+    Object stream = streamMethod.invoke(Arrays.asList("x", "y", "z"));
+    final boolean[] closed = { false };
+    stream = onCloseMethod.invoke(stream,
+        new Runnable() {
+          @Override
+          public void run() {
+            closed[0] = true;
+          }
+        });
+    TinyTemplate tt = new TinyTemplate("t = [[$join($a, \"-\")]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("a", stream);
+    assertEquals("x-y-z", tc.expand("t"));
+    assertTrue(closed[0]);
+  }
+
+  /**
+   * An attribute is evaluated on each element
+   * @throws SyntaxError
+   */
+  @Test
+  public void testProjection_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("t = [[$join(#nodes, \", \", #name) $join($x,\"\",#parent.name)]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    Node a = new Node("a", null);
+    tc.bind("x", new Object[] { new Node("b", a), new Node("c", null), new Node("d", a) });
+    assertEquals("x, y, z anulla", tc.expand("t"));
+  }
+
+  /**
+   * A template is expanded for each element, with the element as context
+   * object
+   * @throws SyntaxError
+   */
+  @Test
+  public void testProjection_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[\n  $join(#nodes, \",\n\", $include(node))\n]]\n" +
+        "node = [[#name(\n  $depth\n)]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    tc.bind("depth", 1);
+    assertEquals(
+        "  x(" + NL +
+        "    1" + NL +
+        "  )," + NL +
+        "  y(" + NL +
+        "    1" + NL +
+        "  )," + NL +
+        "  z(" + NL +
+        "    1" + NL +
+        "  )" + NL,
+        tc.expand("t"));
+  }
+
+  /**
+   * Projections are applied by a template reader
+   * @throws Exception
+   */
+  @Test
+  public void testProjection_3() throws Exception {
+    TinyTemplate tt = new TinyTemplate(
+        "t = [[$join(#nodes, \" \", #name) $join(#nodes, \" \", $include(node))]]\n" +
+        "node = [[<#name>]]");
+    TemplateContext tc = new SimpleContext(tt, new A());
+    StringWriter out = new StringWriter();
+    TemplateReader reader = new TemplateReader(tc, "t");
+    char[] buf = new char[3];
+    int n;
+    while ((n = reader.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    reader.close();
+    assertEquals("x y z <x> <y> <z>", out.toString());
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testProjectionError_1() throws SyntaxError {
+    new TinyTemplate("t = [[$join(#nodes, \",\", name)]]");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testProjectionError_2() throws SyntaxError {
+    new TinyTemplate("t = [[$join(#nodes, \",\", #)]]");
+  }
+
+  @Test(expected=SyntaxError.class)
+  public void testProjectionError_3() throws SyntaxError {
+    new TinyTemplate("t = [[$join(#nodes, \",\", $include())]]");
+  }
+
+  public static class Node {
+    private final String name;
+    private final Node parent;
+
+    public Node(String name, Node parent) {
+      this.name = name;
+      this.parent = parent;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public Node parent() {
+      return parent;
+    }
+  }
+
+  private static class ClosingIterator implements Iterator<String>, AutoCloseable {
+    private final Iterator<String> elements;
+    boolean closed = false;
+
+    ClosingIterator(String... elements) {
+      this.elements = Arrays.asList(elements).iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return elements.hasNext();
+    }
+
+    @Override
+    public String next() {
+      return elements.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
   public static class A {
     public ArrayList<Integer> list() {
       ArrayList<Integer> list = new ArrayList<Integer>();
@@ -197,6 +454,10 @@ public class TestJoin {
       list.add(3);
       return list;
     }
+
+    public List<Node> nodes() {
+      return Arrays.asList(new Node("x", null), new Node("y", null), new Node("z", null));
+    }
   }
 
   @Test(expected=SyntaxError.class)
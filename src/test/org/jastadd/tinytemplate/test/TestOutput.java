@@ -0,0 +1,940 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.jastadd.io.AsyncChannelOutput;
+import org.jastadd.io.ChannelOutput;
+import org.jastadd.io.ChunkedBuffer;
+import org.jastadd.io.CompressedOutput;
+import org.jastadd.io.FileUpdateStream;
+import org.jastadd.io.SpillBuffer;
+import org.jastadd.io.StreamOutput;
+import org.jastadd.tinytemplate.SimpleContext;
+import org.jastadd.tinytemplate.TemplateSource;
+import org.jastadd.tinytemplate.TemplateContext;
+import org.jastadd.tinytemplate.TemplateExpansionWarning;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.TinyTemplate;
+import org.jastadd.tinytemplate.test.mock.ForwardingContext;
+import org.junit.Test;
+
+/**
+ * Tests for the byte-oriented output sinks
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+@SuppressWarnings("javadoc")
+public class TestOutput {
+
+  private static final String NL = System.getProperty("line.separator");
+
+  public TestOutput() {
+    TinyTemplate.printWarnings(false);
+    TinyTemplate.throwExceptions(true);
+  }
+
+  private static String expandBytes(TemplateContext tc, String template) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    tc.expand(template, out);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Static and dynamic text are both written to the output stream
+   */
+  @Test
+  public void testStreamOutput_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[\n  x = $x;\n  y = #toString;\n]]");
+    TemplateContext tc = new SimpleContext(tt, "why");
+    tc.bind("x", 1);
+    assertEquals("  x = 1;" + NL + "  y = why;" + NL, expandBytes(tc, "test"));
+    assertEquals(tc.expand("test"), expandBytes(tc, "test"));
+  }
+
+  /**
+   * Lines that become empty after expansion are deleted
+   */
+  @Test
+  public void testStreamOutput_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[a\n  $x  \nb]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "");
+    assertEquals("a" + NL + "b", expandBytes(tc, "test"));
+  }
+
+  /**
+   * Non-ASCII characters are UTF-8 encoded
+   */
+  @Test
+  public void testStreamOutput_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[$x = $y]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "\u00d6qvist");
+    tc.bind("y", "\u00e5\u00e4\u00f6 \ud83d\ude00");
+    assertEquals("\u00d6qvist = \u00e5\u00e4\u00f6 \ud83d\ude00", expandBytes(tc, "test"));
+  }
+
+  /**
+   * Contexts that do not override the byte output expansion expand in memory
+   * and write the result
+   */
+  @Test
+  public void testStreamOutput_5() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[x = $x;\n  #toString]]");
+    SimpleContext delegate = new SimpleContext(tt, "\u00e5");
+    delegate.bind("x", 1);
+    TemplateContext tc = new ForwardingContext(delegate);
+    assertEquals("x = 1;" + NL + "  \u00e5", expandBytes(tc, "test"));
+  }
+
+  /**
+   * Contexts that do not override the Appendable expansion expand in memory
+   * and append the result
+   */
+  @Test
+  public void testChunkedBuffer_5() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[x = $x;\n  #toString]]");
+    SimpleContext delegate = new SimpleContext(tt, "y");
+    delegate.bind("x", 1);
+    TemplateContext tc = new ForwardingContext(delegate);
+    ChunkedBuffer buf = new ChunkedBuffer();
+    tc.expand("test", buf);
+    assertEquals("x = 1;" + NL + "  y", buf.toString());
+  }
+
+  /**
+   * Output larger than the buffer size
+   */
+  @Test
+  public void testStreamOutput_4() throws SyntaxError, IOException {
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 3000; ++i) {
+      big.append("\u00e5bc");
+    }
+    TinyTemplate tt = new TinyTemplate("test = [[<$x>]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", big.toString());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamOutput output = new StreamOutput(out, 64);
+    tc.expand("test", output);
+    output.flush();
+    assertEquals("<" + big + ">", new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Expansion to a channel
+   */
+  @Test
+  public void testChannelOutput_1() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\n  x = $x;\n\n  $y\n  static text\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "\u00e5\u00e4\u00f6");
+    tc.bind("y", "");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    tc.expand("test", Channels.newChannel(out));
+    assertEquals(tc.expand("test"), new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Gathering writes to a file channel, with small pooled buffers and many
+   * segments
+   */
+  @Test
+  public void testChannelOutput_2() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[$x: a long static string of text $x]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    StringBuilder expected = new StringBuilder();
+    File file = File.createTempFile("tinytemplate", ".txt");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    ChannelOutput output = new ChannelOutput(out.getChannel(), 8, 4);
+    for (int i = 0; i < 2000; ++i) {
+      tc.bind("x", "value" + i);
+      tc.expand("test", output);
+      expected.append(tc.expand("test"));
+    }
+    output.close();
+    assertEquals(expected.toString(), readFile(file));
+  }
+
+  /**
+   * Repeated channel expansions on one context each write their own output
+   */
+  @Test
+  public void testChannelOutput_3() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[$x and some static text]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    for (int i = 0; i < 3; ++i) {
+      tc.bind("x", "value" + i);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      tc.expand("test", Channels.newChannel(out));
+      assertEquals("value" + i + " and some static text",
+          new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Non-blocking channels are rejected
+   */
+  @Test
+  public void testChannelOutput_4() throws IOException {
+    Pipe pipe = Pipe.open();
+    try {
+      pipe.sink().configureBlocking(false);
+      new ChannelOutput(pipe.sink());
+      fail("expected non-blocking channel to be rejected");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    } finally {
+      pipe.sink().close();
+      pipe.source().close();
+    }
+  }
+
+  private static String readFile(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Counts file region transfers
+   */
+  static class CountingOutput extends ChannelOutput {
+    int transfers = 0;
+
+    CountingOutput(WritableByteChannel channel) {
+      super(channel);
+    }
+
+    @Override
+    public void transfer(FileChannel source, long position, long count) throws IOException {
+      transfers += 1;
+      super.transfer(source, position, count);
+    }
+  }
+
+  private static File templateFile(String content) throws IOException {
+    File file = File.createTempFile("tinytemplate", ".tt");
+    file.deleteOnExit();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  /**
+   * Static regions are transferred from the template file
+   */
+  @Test
+  public void testSourceTransfer_1() throws SyntaxError, IOException {
+    File file = templateFile("# comment" + NL
+        + "test = [[" + NL
+        + "static \u00e5\u00e4\u00f6 line" + NL
+        + "  indented line" + NL
+        + "  x = $x;" + NL
+        + "another static line" + NL
+        + "]]" + NL);
+    TinyTemplate tt = new TinyTemplate();
+    tt.loadTemplates(new TemplateSource(file, 1));
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "123");
+
+    File outFile = File.createTempFile("tinytemplate", ".txt");
+    outFile.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(outFile);
+    CountingOutput output = new CountingOutput(out.getChannel());
+    tc.expand("test", output);
+    output.close();
+
+    assertEquals(tc.expand("test"), readFile(outFile));
+    assertEquals(2, output.transfers);
+  }
+
+  /**
+   * Regions are not transferred when the output indentation differs from
+   * the template file
+   */
+  @Test
+  public void testSourceTransfer_2() throws SyntaxError, IOException {
+    File file = templateFile("test = [[" + NL
+        + "  indented line" + NL
+        + "  x = $x;" + NL
+        + "]]" + NL);
+    TinyTemplate tt = new TinyTemplate();
+    tt.loadTemplates(new TemplateSource(file, 1));
+    tt.setIndentation("\t");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "123");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CountingOutput output = new CountingOutput(Channels.newChannel(out));
+    tc.expand("test", output);
+    output.flush();
+
+    assertEquals("\tindented line" + NL + "\tx = 123;" + NL,
+        new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals(0, output.transfers);
+  }
+
+  /**
+   * Large static regions of a template file are written from memory when
+   * the output is not a channel
+   */
+  @Test
+  public void testSourceTransfer_3() throws SyntaxError, IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; ++i) {
+      text.append("line ").append(i).append(NL);
+    }
+    File file = templateFile("test = [[" + NL + text + "$x]]");
+    TinyTemplate tt = new TinyTemplate();
+    tt.loadTemplates(file);
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "end");
+    assertEquals(text + "end", expandBytes(tc, "test"));
+  }
+
+  /**
+   * Stream outputs do not transfer regions from the template file
+   */
+  @Test
+  public void testSourceTransfer_4() throws SyntaxError, IOException {
+    File file = templateFile("test = [[" + NL
+        + "static line" + NL
+        + "x = $x;" + NL
+        + "]]" + NL);
+    TinyTemplate tt = new TinyTemplate();
+    tt.loadTemplates(new TemplateSource(file, 1));
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "123");
+    final int[] transfers = { 0 };
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamOutput output = new StreamOutput(out) {
+      @Override
+      public void transfer(FileChannel source, long position, long count)
+          throws IOException {
+        transfers[0] += 1;
+        super.transfer(source, position, count);
+      }
+    };
+    tc.expand("test", output);
+    output.flush();
+    assertEquals("static line" + NL + "x = 123;" + NL,
+        new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals(0, transfers[0]);
+  }
+
+  /**
+   * Regions are not transferred from a template file that was edited after
+   * the template was loaded
+   */
+  @Test
+  public void testSourceTransfer_5() throws SyntaxError, IOException {
+    File file = templateFile("test = [[" + NL
+        + "static line" + NL
+        + "x = $x;" + NL
+        + "]]" + NL);
+    TinyTemplate tt = new TinyTemplate();
+    tt.loadTemplates(new TemplateSource(file, 1));
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "123");
+    String expected = "static line" + NL + "x = 123;" + NL;
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CountingOutput output = new CountingOutput(Channels.newChannel(out));
+    tc.expand("test", output);
+    output.flush();
+    assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals(1, output.transfers);
+
+    Files.write(file.toPath(), ("test = [[" + NL + "edited line, much longer" + NL
+        + "]]" + NL).getBytes(StandardCharsets.UTF_8));
+    out.reset();
+    output = new CountingOutput(Channels.newChannel(out));
+    tc.expand("test", output);
+    output.flush();
+    assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals(0, output.transfers);
+  }
+
+  /**
+   * Expansion to a chunked buffer gives the same result as expanding to a
+   * string
+   */
+  @Test
+  public void testChunkedBuffer_1() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\n  x = $x;\n  $y\n  end\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "\u00e5\u00e4\u00f6");
+    tc.bind("y", "");
+    ChunkedBuffer buf = new ChunkedBuffer();
+    tc.expand("test", buf);
+    assertEquals(tc.expand("test"), buf.toString());
+    buf.release();
+    assertEquals(0, buf.length());
+  }
+
+  /**
+   * Linking buffers moves the content without copying
+   */
+  @Test
+  public void testChunkedBuffer_2() {
+    ChunkedBuffer a = new ChunkedBuffer();
+    ChunkedBuffer b = new ChunkedBuffer();
+    a.append("abc");
+    b.append("def");
+    a.append(b);
+    a.append('g');
+    assertEquals("abcdefg", a.toString());
+    assertEquals(7, a.length());
+    assertEquals('e', a.charAt(4));
+    assertEquals(0, b.length());
+    a.release();
+  }
+
+  /**
+   * Content larger than a chunk, with a surrogate pair at the chunk boundary
+   */
+  @Test
+  public void testChunkedBuffer_3() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < ChunkedBuffer.CHUNK_SIZE - 1; ++i) {
+      text.append('a');
+    }
+    text.append("\ud83d\ude00");
+    for (int i = 0; i < ChunkedBuffer.CHUNK_SIZE; ++i) {
+      text.append('b');
+    }
+    ChunkedBuffer buf = new ChunkedBuffer();
+    buf.append(text);
+    StringWriter writer = new StringWriter();
+    buf.writeTo(writer);
+    assertEquals(text.toString(), writer.toString());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamOutput output = new StreamOutput(out);
+    buf.writeTo(output);
+    output.flush();
+    assertEquals(text.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    buf.release();
+  }
+
+  /**
+   * Sequential and backward character reads across chunk boundaries
+   */
+  @Test
+  public void testChunkedBuffer_4() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 3 * ChunkedBuffer.CHUNK_SIZE + 17; ++i) {
+      text.append((char) ('a' + i % 26));
+    }
+    ChunkedBuffer buf = new ChunkedBuffer();
+    buf.append(text);
+    for (int i = 0; i < text.length(); ++i) {
+      assertEquals(text.charAt(i), buf.charAt(i));
+    }
+    for (int i = text.length() - 1; i >= 0; i -= 1000) {
+      assertEquals(text.charAt(i), buf.charAt(i));
+    }
+    buf.append("xyz");
+    assertEquals('z', buf.charAt(buf.length() - 1));
+    buf.release();
+  }
+
+  private static String readAll(Reader reader) throws IOException {
+    StringWriter out = new StringWriter();
+    char[] buf = new char[1024];
+    int n;
+    while ((n = reader.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    reader.close();
+    return out.toString();
+  }
+
+  /**
+   * Small expansions stay in memory
+   */
+  @Test
+  public void testSpillBuffer_1() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[x = $x;]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "\u00e5\u00e4\u00f6");
+    SpillBuffer buf = new SpillBuffer(100, null);
+    tc.expand("test", buf);
+    assertFalse(buf.isSpilled());
+    assertEquals("x = \u00e5\u00e4\u00f6;", readAll(buf.openReader()));
+    buf.close();
+  }
+
+  /**
+   * Expansions larger than the threshold spill to a temporary file, which
+   * is deleted when the buffer is closed
+   */
+  @Test
+  public void testSpillBuffer_2() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\n$x: $y\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("y", "\u00e5\u00e4\u00f6");
+    File dir = Files.createTempDirectory("tinytemplate").toFile();
+    dir.deleteOnExit();
+    SpillBuffer buf = new SpillBuffer(64, dir);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      tc.bind("x", i);
+      tc.expand("test", buf);
+      expected.append(tc.expand("test"));
+    }
+    assertTrue(buf.isSpilled());
+    assertEquals(expected.length(), buf.length());
+    assertEquals(expected.toString(), readAll(buf.openReader()));
+    assertEquals(1, dir.list().length);
+    buf.close();
+    assertEquals(0, dir.list().length);
+  }
+
+  /**
+   * Spilled and in-memory content can be moved to a target file
+   */
+  @Test
+  public void testSpillBuffer_3() throws IOException {
+    File target = File.createTempFile("tinytemplate", ".txt");
+    target.deleteOnExit();
+
+    SpillBuffer buf = new SpillBuffer(4, null);
+    buf.append("abc");
+    buf.moveTo(target);
+    assertEquals("abc", readFile(target));
+
+    buf = new SpillBuffer(4, null);
+    buf.append("abc").append("def").append('g');
+    assertTrue(buf.isSpilled());
+    buf.moveTo(target);
+    assertEquals("abcdefg", readFile(target));
+  }
+
+  /**
+   * toString returns the content also after the buffer has spilled
+   */
+  @Test
+  public void testSpillBuffer_4() throws IOException {
+    SpillBuffer buf = new SpillBuffer(4, null);
+    buf.append("abc");
+    assertEquals("abc", buf.toString());
+    buf.append("d\u00e9f").append('g');
+    assertTrue(buf.isSpilled());
+    assertEquals("abcd\u00e9fg", buf.toString());
+    buf.append("h");
+    assertEquals("abcd\u00e9fgh", buf.toString());
+    buf.close();
+  }
+
+  /**
+   * Moved content gets the default permissions in a new file, and keeps the
+   * permissions of a replaced file
+   */
+  @Test
+  public void testSpillBuffer_5() throws IOException {
+    File dir = Files.createTempDirectory("tinytemplate").toFile();
+    dir.deleteOnExit();
+    Set<PosixFilePermission> defaults = defaultPermissions(dir);
+    if (defaults == null) {
+      return;
+    }
+    File small = new File(dir, "small.txt");
+    small.deleteOnExit();
+    SpillBuffer buf = new SpillBuffer(4, null);
+    buf.append("abc");
+    buf.moveTo(small);
+    assertEquals(defaults, Files.getPosixFilePermissions(small.toPath()));
+
+    File large = new File(dir, "large.txt");
+    large.deleteOnExit();
+    buf = new SpillBuffer(4, null);
+    buf.append("abcdefg");
+    assertTrue(buf.isSpilled());
+    buf.moveTo(large);
+    assertEquals(defaults, Files.getPosixFilePermissions(large.toPath()));
+
+    Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+    Files.setPosixFilePermissions(large.toPath(), permissions);
+    buf = new SpillBuffer(4, null);
+    buf.append("hijklmn");
+    buf.moveTo(large);
+    assertEquals("hijklmn", readFile(large));
+    assertEquals(permissions, Files.getPosixFilePermissions(large.toPath()));
+    assertEquals(2, dir.list().length);
+  }
+
+  /**
+   * @return The permissions of a new file in the directory, or
+   * <code>null</code> if the file system does not support POSIX permissions
+   */
+  private static Set<PosixFilePermission> defaultPermissions(File dir) throws IOException {
+    if (Files.getFileAttributeView(dir.toPath(), PosixFileAttributeView.class) == null) {
+      return null;
+    }
+    File probe = new File(dir, "probe.txt");
+    new FileOutputStream(probe).close();
+    Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(probe.toPath());
+    probe.delete();
+    return permissions;
+  }
+
+  private static String inflate(InputStream in) throws IOException {
+    return readAll(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Gzip compressed expansion
+   */
+  @Test
+  public void testCompressedOutput_1() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\n  x = $x;\n  static text\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    StringBuilder expected = new StringBuilder();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedOutput output = new CompressedOutput(out, true);
+    for (int i = 0; i < 1000; ++i) {
+      tc.bind("x", "\u00e5" + i);
+      tc.expand("test", output);
+      expected.append(tc.expand("test"));
+    }
+    output.close();
+    assertTrue(out.size() < expected.length() / 4);
+    assertEquals(expected.toString(),
+        inflate(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+  }
+
+  /**
+   * Zlib compressed expansion, with a flush in the middle of the stream
+   */
+  @Test
+  public void testCompressedOutput_2() throws SyntaxError, IOException,
+      DataFormatException {
+    TinyTemplate tt = new TinyTemplate("test = [[x = $x;]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "1");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedOutput output = new CompressedOutput(out, false);
+    tc.expand("test", output);
+    output.flush();
+    // The flushed output can be decompressed before the stream is finished.
+    Inflater inflater = new Inflater();
+    inflater.setInput(out.toByteArray());
+    byte[] buf = new byte[64];
+    int n = inflater.inflate(buf);
+    inflater.end();
+    assertEquals("x = 1;", new String(buf, 0, n, StandardCharsets.UTF_8));
+    tc.expand("test", output);
+    output.close();
+    assertEquals("x = 1;x = 1;",
+        inflate(new InflaterInputStream(new ByteArrayInputStream(out.toByteArray()))));
+  }
+
+  /**
+   * Finishing a gzip stream starts a new gzip member
+   */
+  @Test
+  public void testCompressedOutput_3() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedOutput output = new CompressedOutput(out, true);
+    output.write("first ");
+    output.finish();
+    output.write("second");
+    output.close();
+    assertEquals("first second",
+        inflate(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+  }
+
+  /**
+   * Output written from a separate writer thread, with a small queue
+   */
+  @Test
+  public void testAsyncOutput_1() throws SyntaxError, IOException {
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      big.append("static text ");
+    }
+    TinyTemplate tt = new TinyTemplate("test = [[\n$x: " + big + "\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    StringBuilder expected = new StringBuilder();
+    File file = File.createTempFile("tinytemplate", ".txt");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    AsyncChannelOutput output = new AsyncChannelOutput(out.getChannel(), 64, 2);
+    for (int i = 0; i < 500; ++i) {
+      tc.bind("x", "\u00e5" + i);
+      tc.expand("test", output);
+      expected.append(tc.expand("test"));
+    }
+    output.close();
+    assertEquals(expected.toString(), readFile(file));
+  }
+
+  /**
+   * A write error in the writer thread is reported by flush
+   */
+  @Test
+  public void testAsyncOutput_2() throws IOException {
+    WritableByteChannel failing = new WritableByteChannel() {
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        throw new IOException("disk full");
+      }
+    };
+    AsyncChannelOutput output = new AsyncChannelOutput(failing);
+    output.write("some output");
+    try {
+      output.flush();
+      fail("expected write error");
+    } catch (IOException e) {
+      assertEquals("disk full", e.getCause().getMessage());
+    }
+    try {
+      output.close();
+      fail("expected write error");
+    } catch (IOException e) {
+      assertEquals("disk full", e.getCause().getMessage());
+    }
+  }
+
+  /**
+   * The writer thread stops when idle, and is started again for more output
+   */
+  @Test
+  public void testAsyncOutput_3() throws IOException, InterruptedException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final List<Thread> writers = new ArrayList<Thread>();
+    WritableByteChannel channel = new WritableByteChannel() {
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public int write(ByteBuffer src) {
+        synchronized (writers) {
+          writers.add(Thread.currentThread());
+        }
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+          out.write(src.get());
+        }
+        return n;
+      }
+    };
+    AsyncChannelOutput output = new AsyncChannelOutput(channel, 64, 2, 10);
+    output.write("first ");
+    output.flush();
+    Thread first;
+    synchronized (writers) {
+      first = writers.get(0);
+    }
+    first.join(5000);
+    assertFalse(first.isAlive());
+
+    output.write("second");
+    output.close();
+    assertEquals("first second",
+        new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * The target file is only replaced when the expansion changes
+   */
+  @Test
+  public void testExpandToFile_1() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\nx = $x;\nstatic text\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    File dir = Files.createTempDirectory("tinytemplate").toFile();
+    dir.deleteOnExit();
+    File file = new File(dir, "out.txt");
+    file.deleteOnExit();
+
+    tc.bind("x", "\u00e5");
+    assertTrue(tc.expandToFile("test", file));
+    assertEquals(tc.expand("test"), readFile(file));
+    assertFalse(tc.expandToFile("test", file));
+
+    // Longer, shorter, and different content.
+    tc.bind("x", "\u00e5\u00e4");
+    assertTrue(tc.expandToFile("test", file));
+    assertEquals(tc.expand("test"), readFile(file));
+    tc.bind("x", "\u00e5");
+    assertTrue(tc.expandToFile("test", file));
+    assertEquals(tc.expand("test"), readFile(file));
+    tc.bind("x", "\u00e4");
+    assertTrue(tc.expandToFile("test", file));
+    assertEquals(tc.expand("test"), readFile(file));
+    assertFalse(tc.expandToFile("test", file));
+
+    // No temporary files are left behind.
+    assertEquals(1, dir.list().length);
+  }
+
+  /**
+   * The target file is compared to a stored digest
+   */
+  @Test
+  public void testExpandToFile_2() throws IOException {
+    File file = File.createTempFile("tinytemplate", ".txt");
+    file.deleteOnExit();
+    FileUpdateStream out = new FileUpdateStream(file, new byte[0]);
+    out.write("content".getBytes(StandardCharsets.UTF_8));
+    out.close();
+    assertTrue(out.isChanged());
+    byte[] digest = out.getDigest();
+
+    out = new FileUpdateStream(file, digest);
+    out.write("content".getBytes(StandardCharsets.UTF_8));
+    out.close();
+    assertFalse(out.isChanged());
+
+    out = new FileUpdateStream(file, digest);
+    out.write("changed".getBytes(StandardCharsets.UTF_8));
+    out.close();
+    assertTrue(out.isChanged());
+    assertEquals("changed", readFile(file));
+  }
+
+  /**
+   * A failed expansion does not modify the target file
+   */
+  @Test
+  public void testExpandToFile_3() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\ndifferent\n$join(x)\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "not iterable");
+    File file = templateFile("original");
+    try {
+      tc.expandToFile("test", file);
+      fail("expected expansion warning");
+    } catch (TemplateExpansionWarning e) {
+    }
+    assertEquals("original", readFile(file));
+  }
+
+  /**
+   * The digest of an expansion is read from a caller-supplied stream and
+   * used for the next expansion
+   */
+  @Test
+  public void testExpandToFile_4() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\nx = $x;\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    File file = File.createTempFile("tinytemplate", ".txt");
+    file.deleteOnExit();
+    tc.bind("x", "1");
+    FileUpdateStream out = new FileUpdateStream(file, new byte[0]);
+    assertTrue(tc.expandToFile("test", out));
+    byte[] digest = out.getDigest();
+
+    out = new FileUpdateStream(file, digest);
+    assertFalse(tc.expandToFile("test", out));
+    assertArrayEquals(digest, out.getDigest());
+
+    tc.bind("x", "2");
+    assertTrue(tc.expandToFile("test", file, digest));
+    assertEquals("x = 2;" + NL, readFile(file));
+  }
+
+  /**
+   * New files get the default permissions, and replaced files keep their
+   * permissions
+   */
+  @Test
+  public void testExpandToFile_5() throws SyntaxError, IOException {
+    File dir = Files.createTempDirectory("tinytemplate").toFile();
+    dir.deleteOnExit();
+    Set<PosixFilePermission> defaults = defaultPermissions(dir);
+    if (defaults == null) {
+      return;
+    }
+
+    TinyTemplate tt = new TinyTemplate("test = [[\nx = $x;\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    File file = new File(dir, "out.txt");
+    file.deleteOnExit();
+    tc.bind("x", "1");
+    assertTrue(tc.expandToFile("test", file));
+    assertEquals(defaults, Files.getPosixFilePermissions(file.toPath()));
+
+    Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+    Files.setPosixFilePermissions(file.toPath(), permissions);
+    tc.bind("x", "2");
+    assertTrue(tc.expandToFile("test", file));
+    assertEquals("x = 2;" + NL, readFile(file));
+    assertEquals(permissions, Files.getPosixFilePermissions(file.toPath()));
+    assertEquals(1, dir.list().length);
+  }
+}
@@ -0,0 +1,206 @@
+/* Copyright (c) 2015, Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ * contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jastadd.tinytemplate.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.jastadd.tinytemplate.SimpleContext;
+import org.jastadd.tinytemplate.TemplateContext;
+import org.jastadd.tinytemplate.TemplateExpansionWarning;
+import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.TemplateReader;
+import org.jastadd.tinytemplate.TinyTemplate;
+import org.jastadd.tinytemplate.test.mock.ForwardingContext;
+import org.junit.Test;
+
+/**
+ * Tests for lazy template expansion with a reader
+ * @author Jesper Öqvist <jesper.oqvist@cs.lth.se>
+ */
+@SuppressWarnings("javadoc")
+public class TestTemplateReader {
+
+  private static final String NL = System.getProperty("line.separator");
+
+  public TestTemplateReader() {
+    TinyTemplate.printWarnings(false);
+    TinyTemplate.throwExceptions(true);
+  }
+
+  /**
+   * Read the expansion with a small read buffer
+   */
+  private static String read(TemplateContext tc, String template) throws IOException {
+    Reader reader = new TemplateReader(tc, template);
+    StringBuilder out = new StringBuilder();
+    char[] buf = new char[3];
+    int n;
+    while ((n = reader.read(buf)) != -1) {
+      out.append(buf, 0, n);
+    }
+    reader.close();
+    return out.toString();
+  }
+
+  @Test
+  public void testStatic() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\n  a b c\n\n  d e f\n]]");
+    assertEquals("  a b c" + NL + NL + "  d e f" + NL, read(tt, "test"));
+  }
+
+  /**
+   * Contexts that do not expose their templates are read through a full
+   * expansion
+   */
+  @Test
+  public void testNoTemplates() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\nx = $x;\n]]");
+    SimpleContext delegate = new SimpleContext(tt, null);
+    delegate.bind("x", "1");
+    TemplateContext tc = new ForwardingContext(delegate);
+    assertEquals("x = 1;" + NL, read(tc, "test"));
+  }
+
+  /**
+   * Lines that become empty after expansion are deleted
+   */
+  @Test
+  public void testDeletedLines() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[\na\n  $x  \n  $y $x\nb\n]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "");
+    tc.bind("y", "y");
+    assertEquals("a" + NL + "  y " + NL + "b" + NL, read(tc, "test"));
+    assertEquals(tc.expand("test"), read(tc, "test"));
+  }
+
+  @Test
+  public void testConditional() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate(
+        "test = [[\n" +
+        "start\n" +
+        "$if(x)\n" +
+        "  then $y\n" +
+        "  $if(!x)\n" +
+        "    nested\n" +
+        "  $endif\n" +
+        "$else\n" +
+        "  else\n" +
+        "$endif\n" +
+        "end\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("y", "value");
+    tc.bind("x", "true");
+    assertEquals(tc.expand("test"), read(tc, "test"));
+    tc.bind("x", "false");
+    assertEquals(tc.expand("test"), read(tc, "test"));
+  }
+
+  @Test
+  public void testInclude() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate(
+        "a = [[\n" +
+        "a1 $x\n" +
+        "  $y\n" +
+        "a2\n" +
+        "]]\n" +
+        "test = [[\n" +
+        "begin\n" +
+        "$include(a)\n" +
+        "  $include(a)\n" +
+        "end\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "x");
+    tc.bind("y", "");
+    assertEquals(tc.expand("test"), read(tc, "test"));
+  }
+
+  @Test
+  public void testJoin() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate(
+        "test = [[\n" +
+        "($join(list, \", \"))\n" +
+        "$join(empty)\n" +
+        "  $join(list, \"\n\")\n" +
+        "]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("list", Arrays.asList("a", "b", "c"));
+    tc.bind("empty", Arrays.asList());
+    assertEquals("(a, b, c)" + NL + "  a" + NL + "  b" + NL + "  c" + NL, read(tc, "test"));
+    assertEquals(tc.expand("test"), read(tc, "test"));
+  }
+
+  /**
+   * Expansion warnings name the templates being expanded
+   */
+  @Test
+  public void testWarning() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate(
+        "a = [[$join(x)]]\n" +
+        "b = [[$include(a)]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    tc.bind("x", "not a list");
+    try {
+      read(tc, "b");
+      fail("expected expansion warning");
+    } catch (TemplateExpansionWarning e) {
+      assertEquals("while expanding template 'b': while expanding template 'a': "
+          + "Variable 'x' is not iterable", e.getProblem());
+    }
+  }
+
+  /**
+   * The first output is available before the whole template is expanded
+   */
+  @Test
+  public void testLazy() throws SyntaxError, IOException {
+    TinyTemplate tt = new TinyTemplate("test = [[first\n$join(list)]]");
+    TemplateContext tc = new SimpleContext(tt, null);
+    Iterable<Object> list = new Iterable<Object>() {
+      @Override
+      public java.util.Iterator<Object> iterator() {
+        throw new Error("list evaluated too early");
+      }
+    };
+    tc.bind("list", list);
+    Reader reader = new TemplateReader(tc, "test");
+    char[] buf = new char[5];
+    assertEquals(5, reader.read(buf));
+    assertEquals("first", new String(buf));
+    reader.close();
+  }
+}
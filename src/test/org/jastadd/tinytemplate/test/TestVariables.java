@@ -31,9 +31,15 @@ package org.jastadd.tinytemplate.test;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.jastadd.tinytemplate.Renderable;
 import org.jastadd.tinytemplate.SimpleContext;
+import org.jastadd.tinytemplate.TemplateContext;
 import org.jastadd.tinytemplate.TinyTemplate;
 import org.jastadd.tinytemplate.TemplateParser.SyntaxError;
+import org.jastadd.tinytemplate.ValueFormatter;
 import org.junit.Test;
 
 /**
@@ -328,4 +334,196 @@ public class TestVariables {
     assertEquals(" $ not a variable ", tt.expand("test"));
   }
 
+  /**
+   * Numbers, booleans, characters and character sequences are formatted
+   * like their string representation
+   * @throws SyntaxError
+   */
+  @Test
+  public void testFormatting_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[$a $b $c $d $e $f $g $h $i]]");
+    SimpleContext tc = new SimpleContext(tt, null);
+    tc.bind("a", 17);
+    tc.bind("b", -5000000000L);
+    tc.bind("c", 1.5);
+    tc.bind("d", 0.25f);
+    tc.bind("e", true);
+    tc.bind("f", 'x');
+    tc.bind("g", new StringBuilder("sb"));
+    tc.bind("h", (short) 3);
+    tc.bind("i", Double.NaN);
+    assertEquals("17 -5000000000 1.5 0.25 true x sb 3 NaN", tc.expand("test"));
+  }
+
+  /**
+   * Multi-line values are indented
+   * @throws SyntaxError
+   */
+  @Test
+  public void testFormatting_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[\n  $a\n  $join($b, \", \")\n]]");
+    SimpleContext tc = new SimpleContext(tt, null);
+    tc.bind("a", new StringBuilder("x\ny"));
+    tc.bind("b", Arrays.asList("p\nq", 2));
+    String nl = System.getProperty("line.separator");
+    assertEquals("  x" + nl + "  y" + nl + "  p" + nl + "  q, 2" + nl, tc.expand("test"));
+  }
+
+  /**
+   * Custom formatters are used for subclasses and implementations of the
+   * registered type
+   * @throws SyntaxError
+   */
+  @Test
+  public void testFormatting_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[$a $b]]");
+    tt.registerValueFormatter(Number.class, new ValueFormatter() {
+      @Override
+      public void format(Object value, StringBuilder out) {
+        out.append('#').append(((Number) value).intValue());
+      }
+    });
+    SimpleContext tc = new SimpleContext(tt, null);
+    tc.bind("a", 2.5);
+    tc.bind("b", "str");
+    assertEquals("#2 str", tc.expand("test"));
+
+    // Formatters are registered per engine.
+    TinyTemplate other = new TinyTemplate("test = [[$a $b]]");
+    tc = new SimpleContext(other, null);
+    tc.bind("a", 2.5);
+    tc.bind("b", "str");
+    assertEquals("2.5 str", tc.expand("test"));
+  }
+
+
+  /**
+   * Primitive variables are expanded like boxed values
+   * @throws SyntaxError
+   */
+  @Test
+  public void testPrimitive_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[$i $l $b $if(b)yes$else no$endif]]");
+    SimpleContext tc = new SimpleContext(tt, null);
+    tc.bindInt("i", -12);
+    tc.bindLong("l", Long.MAX_VALUE);
+    tc.bindBoolean("b", true);
+    assertEquals("-12 9223372036854775807 true yes", tc.expand("test"));
+    assertEquals(-12, tc.evalVariable("i"));
+    assertEquals(Long.MAX_VALUE, tc.evalVariable("l"));
+    assertEquals(true, tc.evalVariable("b"));
+
+    tc.bindBoolean("b", false);
+    tc.bindInt("l", 3);
+    assertEquals("-12 3 false  no", tc.expand("test"));
+  }
+
+  /**
+   * Primitive and object bindings replace each other
+   * @throws SyntaxError
+   */
+  @Test
+  public void testPrimitive_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[$x $if(x)yes$endif]]");
+    SimpleContext parent = new SimpleContext(tt, null);
+    SimpleContext tc = new SimpleContext(parent, null);
+    parent.bindInt("x", 1);
+    assertEquals("1 ", tc.expand("test"));
+    tc.bindBoolean("x", true);
+    assertEquals("true yes", tc.expand("test"));
+    tc.bind("x", "obj");
+    assertEquals("obj ", tc.expand("test"));
+    tc.bindInt("x", 2);
+    assertEquals("2 ", tc.expand("test"));
+    tc.flushVariables();
+    assertEquals("1 ", tc.expand("test"));
+  }
+
+  /**
+   * Renders a fixed string
+   */
+  static class Text implements Renderable {
+    private final String text;
+
+    Text(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public void render(TemplateContext context, Appendable out) throws IOException {
+      out.append(text);
+    }
+  }
+
+  /**
+   * Renders a named block by expanding a template
+   */
+  static class Block implements Renderable {
+    private final String name;
+    private final Object body;
+
+    Block(String name, Object body) {
+      this.name = name;
+      this.body = body;
+    }
+
+    @Override
+    public void render(TemplateContext context, Appendable out) throws IOException {
+      SimpleContext tc = new SimpleContext(context, null);
+      tc.bind("name", name);
+      tc.bind("body", body);
+      tc.expand("block", out);
+    }
+  }
+
+  /**
+   * Renderable values are rendered in the context of the expansion
+   * @throws SyntaxError
+   */
+  @Test
+  public void testRenderable_1() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[<$a> $join($b, \", \")]]");
+    SimpleContext parent = new SimpleContext(tt, null);
+    SimpleContext tc = new SimpleContext(parent, null);
+    parent.bind("a", new Renderable() {
+      @Override
+      public void render(TemplateContext context, Appendable out) throws IOException {
+        out.append("v=").append(context.evalVariable("v").toString());
+      }
+    });
+    tc.bind("v", "child");
+    tc.bind("b", Arrays.asList(new Text("x"), 1, new Text("y")));
+    assertEquals("<v=child> x, 1, y", tc.expand("test"));
+  }
+
+  /**
+   * Nested renderable values are indented while they are rendered
+   * @throws SyntaxError
+   */
+  @Test
+  public void testRenderable_2() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate(
+        "test = [[\n  $a\n]]\n" +
+        "block = [[\n$name {\n  $body\n}\n]]");
+    SimpleContext tc = new SimpleContext(tt, null);
+    tc.bind("a", new Block("x", new Block("y", "z")));
+    String nl = System.getProperty("line.separator");
+    assertEquals("  x {" + nl + "    y {" + nl + "      z" + nl + "    }" + nl
+        + "  }" + nl, tc.expand("test"));
+  }
+
+  /**
+   * Renderable values are indented the same way as other multi-line values
+   * @throws SyntaxError
+   */
+  @Test
+  public void testRenderable_3() throws SyntaxError {
+    TinyTemplate tt = new TinyTemplate("test = [[\n  $a\n  $join($b, \", \")\n]]");
+    SimpleContext tc = new SimpleContext(tt, null);
+    tc.bind("a", new Text("x\r\n\ny\n\n"));
+    tc.bind("b", Arrays.asList(new Text("p\n"), "q\rr", new Text("\ns")));
+    String nl = System.getProperty("line.separator");
+    assertEquals("  x" + nl + "  " + nl + "  y" + nl
+        + "  p" + nl + "  , q" + nl + "  r, " + nl + "  s" + nl, tc.expand("test"));
+  }
 }